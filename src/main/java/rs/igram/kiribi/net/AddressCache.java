@@ -0,0 +1,168 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least recently used cache of address resolutions.
+ *
+ * <p>Resolved addresses are kept for the time to live, addresses which could
+ * not be resolved for the shorter negative time to live. An entry is 
+ * invalidated as soon as connecting to its socket address fails.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class AddressCache {
+	/** Default time to live of a resolved address in milliseconds: 60 seconds. */
+	public static final long DEFAULT_TTL = 60 * 1000;
+	/** Default time to live of an unresolved address in milliseconds: 5 seconds. */
+	public static final long DEFAULT_NEGATIVE_TTL = 5 * 1000;
+	/** Default maximum number of entries: 4096. */
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	private final long ttl;
+	private final long negativeTtl;
+	private final Map<Address,Entry> entries;
+	private long hits;
+	private long misses;
+	private long invalidations;
+	// summed age of the entries served
+	private long age;
+	
+	AddressCache() {
+		this(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_CAPACITY);
+	}
+	
+	AddressCache(long ttl, long negativeTtl, int capacity) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Address,AddressCache.Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	// returns the fresh entry for the address or null on a miss
+	synchronized Entry get(Address address) {
+		var entry = entries.get(address);
+		var now = System.currentTimeMillis();
+		if(entry != null && entry.expires < now) {
+			entries.remove(address);
+			entry = null;
+		}
+		if(entry == null) {
+			misses++;
+		} else {
+			hits++;
+			age += now - entry.created;
+		}
+		return entry;
+	}
+	
+	synchronized void put(Address address, InetSocketAddress socketAddress) {
+		var now = System.currentTimeMillis();
+		entries.put(address, new Entry(socketAddress, now, now + (socketAddress == null ? negativeTtl : ttl)));
+	}
+	
+	synchronized void remove(Address address) {
+		entries.remove(address);
+	}
+	
+	synchronized void invalidate(Address address) {
+		if(entries.remove(address) != null) invalidations++;
+	}
+	
+	/**
+	 * Returns the number of lookups answered from this cache.
+	 *
+	 * @return The number of lookups answered from this cache.
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of lookups not answered from this cache.
+	 *
+	 * @return The number of lookups not answered from this cache.
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+	
+	/**
+	 * Returns the fraction of lookups answered from this cache.
+	 *
+	 * @return The fraction of lookups answered from this cache.
+	 */
+	public synchronized double hitRate() {
+		var total = hits + misses;
+		return total == 0 ? 0 : (double)hits / total;
+	}
+	
+	/**
+	 * Returns the average age in milliseconds of the entries answering lookups.
+	 *
+	 * @return The average age in milliseconds of the entries answering lookups.
+	 */
+	public synchronized double staleness() {
+		return hits == 0 ? 0 : (double)age / hits;
+	}
+	
+	/**
+	 * Returns the number of entries invalidated because connecting failed.
+	 *
+	 * @return The number of entries invalidated because connecting failed.
+	 */
+	public synchronized long invalidations() {
+		return invalidations;
+	}
+	
+	/**
+	 * Returns the number of entries in this cache.
+	 *
+	 * @return The number of entries in this cache.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	static final class Entry {
+		// null if the address could not be resolved
+		final InetSocketAddress socketAddress;
+		final long created;
+		final long expires;
+		
+		Entry(InetSocketAddress socketAddress, long created, long expires) {
+			this.socketAddress = socketAddress;
+			this.created = created;
+			this.expires = expires;
+		}
+	}
+}
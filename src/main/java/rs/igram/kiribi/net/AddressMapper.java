@@ -26,6 +26,9 @@ package rs.igram.kiribi.net;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import rs.igram.kiribi.net.stack.discovery.Discovery;
@@ -91,6 +94,38 @@ public abstract class AddressMapper {
 	 */			
 	public abstract InetSocketAddress lookup(Address address) throws IOException, InterruptedException;
 	
+	/**
+	 * Retrieves the <code>InetSocketAddress</code> associated with each of the given addresses.
+	 *
+	 * @param addresses The addresses to lookup.
+	 * @return A map of each address in iteration order to its associated <code>InetSocketAddress</code> 
+	 * or <code>null</code> if not found.
+	 * @throws IOException if there was a io problem during the lookup.
+	 * @throws InterruptedException if this method was interrupted.
+	 */			
+	public Map<Address, InetSocketAddress> lookupAll(Collection<Address> addresses) throws IOException, InterruptedException {
+		var result = new LinkedHashMap<Address, InetSocketAddress>();
+		for (var address : addresses) result.put(address, lookup(address));
+		return result;
+	}
+	
+	/**
+	 * Discards any cached resolution of the given <code>Address</code>, called when 
+	 * connecting to the resolved <code>InetSocketAddress</code> failed.
+	 *
+	 * @param address The <code>Address</code> to invalidate.
+	 */	
+	public void invalidate(Address address) {}
+	
+	/**
+	 * Returns the resolution cache of this mapper.
+	 *
+	 * @return The resolution cache of this mapper or <code>null</code> if this mapper does not cache.
+	 */	
+	public AddressCache cache() {
+		return null;
+	}
+	
 	/**
 	 * Returns an <code>AddressMapper</code> which relies on a lookup server.
 	 *
@@ -100,7 +135,19 @@ public abstract class AddressMapper {
 	 * @return An <code>AddressMapper</code> which relies on a lookup server.
 	 */	
 	public static AddressMapper lookup(Address address, InetSocketAddress socketAddress, InetSocketAddress serverAddress) {
-		return new LookupMapper(address, socketAddress, serverAddress);
+		return new LookupMapper(address, socketAddress, new Lookup(address, socketAddress, serverAddress));
+	}
+	
+	/**
+	 * Returns an <code>AddressMapper</code> which relies on a cluster of lookup servers.
+	 *
+	 * @param address The <code>Address</code> associated with this mapper.
+	 * @param socketAddress The <code>InetSocketAddress</code> associated with this mapper.
+	 * @param servers The lookup servers associated with this mapper.
+	 * @return An <code>AddressMapper</code> which relies on a cluster of lookup servers.
+	 */	
+	public static AddressMapper lookup(Address address, InetSocketAddress socketAddress, ShardRing servers) {
+		return new LookupMapper(address, socketAddress, new Lookup(address, socketAddress, servers));
 	}
 	
 	/**
@@ -133,33 +180,75 @@ public abstract class AddressMapper {
 	private static class LookupMapper extends AddressMapper {
 		/** The <code>Lookup</code> associated with this mapper. */
 		public final Lookup lookup;
+		/** The resolution cache associated with this mapper. */
+		public final AddressCache cache = new AddressCache();
 		
 		/**
 		 * Instantiates a <code>LookupMapper</code> instance.
 		 *
 		 * @param address The <code>Address</code> associated with this mapper.
 		 * @param socketAddress The <code>InetSocketAddress</code> associated with this mapper.
-		 * @param serverAddress The <code>InetSocketAddress</code> of the lookup server associated with this mapper.
+		 * @param lookup The <code>Lookup</code> client of the lookup servers associated with this mapper.
 		 */	
-		public LookupMapper(Address address, InetSocketAddress socketAddress, InetSocketAddress serverAddress) {
+		public LookupMapper(Address address, InetSocketAddress socketAddress, Lookup lookup) {
 			super(address, socketAddress);
 			
-			lookup = new Lookup(address, socketAddress, serverAddress);
+			this.lookup = lookup;
+		}
+	
+		@Override
+		public void close() {
+			lookup.close();
 		}
 	
 		@Override
 		public void register() throws IOException, InterruptedException, InterruptedException {
 			lookup.register();
+			cache.remove(address);
 		}
 	
 		@Override
 		public void unregister() throws IOException, InterruptedException, InterruptedException {
 			lookup.unregister();
+			cache.remove(address);
 		}
 		
 		@Override
 		public InetSocketAddress lookup(Address address) throws IOException, InterruptedException {
-			return lookup.lookup(address);
+			var entry = cache.get(address);
+			if (entry != null) return entry.socketAddress;
+			
+			var socketAddress = lookup.lookup(address);
+			cache.put(address, socketAddress);
+			return socketAddress;
+		}
+		
+		// answers cached addresses and resolves the rest in batches
+		@Override
+		public Map<Address, InetSocketAddress> lookupAll(Collection<Address> addresses) throws IOException, InterruptedException {
+			var result = new LinkedHashMap<Address, InetSocketAddress>();
+			var misses = new ArrayList<Address>();
+			for (var address : addresses) {
+				var entry = cache.get(address);
+				result.put(address, entry == null ? null : entry.socketAddress);
+				if (entry == null) misses.add(address);
+			}
+			if (!misses.isEmpty()) {
+				var resolved = lookup.lookupAll(misses);
+				resolved.forEach(cache::put);
+				result.putAll(resolved);
+			}
+			return result;
+		}
+	
+		@Override
+		public void invalidate(Address address) {
+			cache.invalidate(address);
+		}
+	
+		@Override
+		public AddressCache cache() {
+			return cache;
 		}
 	}
 	
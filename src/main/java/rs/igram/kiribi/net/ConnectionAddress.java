@@ -60,4 +60,17 @@ public final class ConnectionAddress {
 		this.address = address;
 		this.id = id;
 	}
+
+	@Override
+	public int hashCode() {return 31 * address.hashCode() + Long.hashCode(id);}
+
+	@Override
+	public boolean equals(Object o){
+		if(this == o) return true;
+		if(o != null && o.getClass() == ConnectionAddress.class){
+			var a = (ConnectionAddress)o;
+			return id == a.id && address.equals(a.address);
+		}
+		return false;
+	}
 }
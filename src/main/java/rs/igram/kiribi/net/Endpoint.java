@@ -50,6 +50,14 @@ public interface Endpoint extends EncodedStream {
 	 */
 	void close() throws IOException;
 	
+	/**
+	 * Sends any writes this endpoint has buffered. The default 
+	 * implementation does nothing.
+	 *
+	 * @throws IOException if there was a problem sending the buffered writes.
+	 */
+	default void flush() throws IOException {}
+	
 	/**
 	 * Returns the remote <code>SocketAddress</code> this enpoint is connected to.
 	 *
@@ -60,6 +68,33 @@ public interface Endpoint extends EncodedStream {
 		throw new UnsupportedOperationException();
 	}
 	
+	/**
+	 * Registers a listener run each time bytes arrive at this endpoint or its 
+	 * input ends, so a server can read from endpoints with input pending 
+	 * instead of blocking a thread on each. The listener runs on the thread 
+	 * completing the socket read and must not block. The default 
+	 * implementation registers nothing and returns <code>false</code>.
+	 *
+	 * @param listener The listener to run when bytes arrive.
+	 * @return <code>true</code> if the listener was registered, <code>false</code> otherwise.
+	 * @see #hasInput()
+	 */
+	default boolean readable(Runnable listener) {
+		return false;
+	}
+	
+	/**
+	 * Returns <code>true</code> if this endpoint holds input which was not 
+	 * read yet, or the end of its input. A read following <code>true</code> 
+	 * waits at most for the rest of a message which has started to arrive. 
+	 * The default implementation returns <code>false</code>.
+	 *
+	 * @return <code>true</code> if this endpoint holds unread input, <code>false</code> otherwise.
+	 */
+	default boolean hasInput() {
+		return false;
+	}
+	
 	/**
 	 * This method allows consumers to register for connection state changes.
 	 *
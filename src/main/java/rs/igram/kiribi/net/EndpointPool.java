@@ -0,0 +1,269 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+
+/**
+ * Per host pool of established endpoints.
+ *
+ * <p>Endpoints are borrowed with {@link #borrow(Object, Opener)} and go
+ * back to the pool when the borrower closes them. An endpoint is only 
+ * pooled again if it passes the health check, and idle endpoints are 
+ * closed once they have been idle for the idle timeout. At most 
+ * <code>maxPerHost</code> endpoints per host are open at once, borrowers
+ * beyond that wait for one to be returned.
+ *
+ * @param <K> The type of host key.
+ * @author Michael Sargent
+ */
+final class EndpointPool<K> {
+	static final int DEFAULT_MAX_PER_HOST = 64;
+	// idle timeout in millis
+	static final long DEFAULT_IDLE_TIMEOUT = 60_000;
+	// longest a borrower waits for a busy host in millis
+	static final long DEFAULT_BORROW_TIMEOUT = 5_000;
+	
+	private final Map<K,Host> hosts = new HashMap<>();
+	private final Predicate<Endpoint> healthy;
+	private final int maxPerHost;
+	private final long idleTimeout;
+	private final long borrowTimeout;
+	private boolean closed;
+	
+	EndpointPool(Predicate<Endpoint> healthy) {
+		this(healthy, DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT, DEFAULT_BORROW_TIMEOUT);
+	}
+	
+	EndpointPool(Predicate<Endpoint> healthy, int maxPerHost, long idleTimeout, long borrowTimeout) {
+		this.healthy = healthy;
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout;
+		this.borrowTimeout = borrowTimeout;
+	}
+	
+	@FunctionalInterface
+	interface Opener {
+		Endpoint open() throws IOException;
+	}
+	
+	/**
+	 * Borrows an endpoint to the given host, opening one if none is idle.
+	 *
+	 * @param key The host key.
+	 * @param opener Opens a new endpoint to the host.
+	 * @return An endpoint which returns to the pool when closed, or
+	 * <code>null</code> if the opener returned <code>null</code>.
+	 * @throws IOException if there was a problem opening an endpoint or
+	 * the host stayed busy.
+	 */
+	Endpoint borrow(K key, Opener opener) throws IOException {
+		Host host;
+		var deadline = System.currentTimeMillis() + borrowTimeout;
+		var stale = new ArrayList<Endpoint>();
+		try {
+			synchronized(this) {
+				if(closed) throw new IOException("Pool closed");
+				host = hosts.computeIfAbsent(key, k -> new Host());
+				while(true) {
+					var idle = host.idle.poll();
+					if(idle != null) {
+						if(healthy.test(idle.endpoint)) return new PooledEndpoint(key, idle.endpoint);
+						host.active--;
+						stale.add(idle.endpoint);
+						continue;
+					}
+					if(host.active < maxPerHost) break;
+					
+					var wait = deadline - System.currentTimeMillis();
+					if(wait <= 0) throw new IOException("Too many connections to host");
+					try {
+						wait(wait);
+					} catch(InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				host.active++;
+			}
+		} finally {
+			stale.forEach(EndpointPool::close);
+		}
+		
+		Endpoint endpoint = null;
+		try {
+			endpoint = opener.open();
+		} finally {
+			if(endpoint == null) {
+				synchronized(this) {
+					host.active--;
+					notifyAll();
+				}
+			}
+		}
+		return endpoint == null ? null : new PooledEndpoint(key, endpoint);
+	}
+	
+	private void release(K key, Endpoint endpoint) {
+		synchronized(this) {
+			var host = hosts.get(key);
+			if(host != null && !closed && healthy.test(endpoint)) {
+				host.idle.push(new Idle(endpoint));
+				notifyAll();
+				return;
+			}
+			if(host != null) host.active--;
+			notifyAll();
+		}
+		close(endpoint);
+	}
+	
+	/**
+	 * Closes endpoints which have been idle longer than the idle timeout.
+	 */
+	void evict() {
+		var expired = new ArrayList<Endpoint>();
+		synchronized(this) {
+			var now = System.currentTimeMillis();
+			var i = hosts.values().iterator();
+			while(i.hasNext()) {
+				var host = i.next();
+				// returned endpoints are pushed so the oldest are last
+				while(!host.idle.isEmpty() && now - host.idle.peekLast().since >= idleTimeout) {
+					expired.add(host.idle.pollLast().endpoint);
+					host.active--;
+				}
+				if(host.active == 0) i.remove();
+			}
+			if(!expired.isEmpty()) notifyAll();
+		}
+		expired.forEach(EndpointPool::close);
+	}
+	
+	synchronized int idle(K key) {
+		var host = hosts.get(key);
+		return host == null ? 0 : host.idle.size();
+	}
+	
+	synchronized int active(K key) {
+		var host = hosts.get(key);
+		return host == null ? 0 : host.active;
+	}
+	
+	/**
+	 * Closes all idle endpoints, borrowed endpoints are closed when returned.
+	 */
+	void close() {
+		var idle = new ArrayList<Endpoint>();
+		synchronized(this) {
+			closed = true;
+			hosts.values().forEach(h -> h.idle.forEach(e -> idle.add(e.endpoint)));
+			hosts.clear();
+			notifyAll();
+		}
+		idle.forEach(EndpointPool::close);
+	}
+	
+	private static void close(Endpoint endpoint) {
+		try {
+			endpoint.close();
+		} catch(IOException e) {
+			// ignore
+		}
+	}
+	
+	private class Host {
+		// open endpoints, borrowed or idle
+		int active;
+		final Deque<Idle> idle = new ArrayDeque<>();
+	}
+	
+	private static class Idle {
+		final Endpoint endpoint;
+		final long since = System.currentTimeMillis();
+		
+		Idle(Endpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+	}
+	
+	private class PooledEndpoint implements Endpoint {
+		private final K key;
+		private final Endpoint endpoint;
+		private volatile boolean returned;
+		
+		PooledEndpoint(K key, Endpoint endpoint) {
+			this.key = key;
+			this.endpoint = endpoint;
+		}
+		
+		@Override
+		public void write(Encodable data) throws IOException {
+			if(returned) throw new IOException("Endpoint not open");
+			endpoint.write(data);
+		}
+
+		@Override
+		public <T> T read(Decoder<T> decoder) throws IOException {
+			if(returned) throw new IOException("Endpoint not open");
+			return endpoint.read(decoder);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if(!returned) endpoint.flush();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !returned && endpoint.isOpen();
+		}
+		
+		@Override
+		public SocketAddress remote() throws IOException {
+			return endpoint.remote();
+		}
+
+		// returns the endpoint to the pool
+		@Override
+		public void close() throws IOException {
+			if(returned) return;
+			returned = true;
+			try {
+				endpoint.flush();
+			} finally {
+				release(key, endpoint);
+			}
+		}
+	}
+}
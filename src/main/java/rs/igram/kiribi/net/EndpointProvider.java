@@ -30,12 +30,15 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -44,7 +47,8 @@ import java.util.concurrent.TimeoutException;
  * @author Michael Sargent
  */
 public abstract class EndpointProvider {
-	final Map<Address,SocketAddress> cache = new HashMap<>();
+	/** The default maximum number of concurrent connection attempts made by <code>openAll</code>. */
+	public static final int DEFAULT_PARALLELISM = 32;
 	
 	/** The address associated with this endpoint provider. */
 	public final Address address;
@@ -69,6 +73,18 @@ public abstract class EndpointProvider {
 		return new UDPEndpointProvider(socketAddress, address, nattAddress);
 	}
 		
+	/**
+	 * Returns a udp endpoint provider using a cluster of NATT servers.
+	 * 
+	 * @param socketAddress The socket address this endpoint provider will use.
+	 * @param address The address the returned endpoint provider will use.
+	 * @param nattServers The NATT servers the returned endpoint provider will use.
+	 * @return Returns a udp endpoint provider.
+	 */
+	public static EndpointProvider udp(InetSocketAddress socketAddress, Address address, ShardRing nattServers) {
+		return new UDPEndpointProvider(socketAddress, address, nattServers);
+	}
+		
 	/**
 	 * Returns a tcp endpoint provider.
 	 * 
@@ -78,6 +94,21 @@ public abstract class EndpointProvider {
 	public static EndpointProvider tcp(AddressMapper mapper) {
 		return new TCPEndpointProvider(mapper);
 	}
+		
+	/**
+	 * Returns a tcp endpoint provider.
+	 *
+	 * <p>A multiplexing provider carries the endpoints it opens to a peer as 
+	 * services over a single connection and expects each connection it accepts 
+	 * to do the same, so peers must agree on the setting.</p>
+	 * 
+	 * @param mapper The address mapper this endpoint provider will use.
+	 * @param multiplex Whether endpoints to the same peer share one connection.
+	 * @return Returns a tcp endpoint provider.
+	 */
+	public static EndpointProvider tcp(AddressMapper mapper, boolean multiplex) {
+		return new TCPEndpointProvider(mapper, multiplex);
+	}
 
 	/**
 	 * Returns the default multicast group address.
@@ -113,6 +144,77 @@ public abstract class EndpointProvider {
 	public abstract Endpoint open(ConnectionAddress address) 
 		throws IOException, InterruptedException;
 		
+	/**
+	 * Opens endpoints to each of the provided addresses concurrently using 
+	 * the default parallelism.
+	 *
+	 * @param addresses The addresses to open endpoints to.
+	 * @return Returns a map of addresses to futures which will complete with the associated endpoint.
+	 * @see #openAll(Collection, int)
+	 */
+	public Map<ConnectionAddress,Future<Endpoint>> openAll(Collection<ConnectionAddress> addresses) {
+		return openAll(addresses, DEFAULT_PARALLELISM);
+	}
+		
+	/**
+	 * Opens endpoints to each of the provided addresses concurrently.
+	 *
+	 * <p>At most <code>parallelism</code> connection attempts will be in progress at 
+	 * any given time. The future associated with an address completes exceptionally 
+	 * if the endpoint could not be opened.</p>
+	 *
+	 * <p>The default implementation opens the addresses in turn with {@link #open(ConnectionAddress)} 
+	 * and returns completed futures.</p>
+	 *
+	 * @param addresses The addresses to open endpoints to.
+	 * @param parallelism The maximum number of concurrent connection attempts.
+	 * @return Returns a map of addresses to futures which will complete with the associated endpoint.
+	 * @throws IllegalArgumentException if <code>parallelism</code> is less than one.
+	 */
+	public Map<ConnectionAddress,Future<Endpoint>> openAll(Collection<ConnectionAddress> addresses, int parallelism) {
+		if(parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive: "+parallelism);
+		
+		final Map<ConnectionAddress,Future<Endpoint>> futures = new LinkedHashMap<>();
+		for(var address : addresses) {
+			var future = new CompletableFuture<Endpoint>();
+			try {
+				future.complete(open(address));
+			} catch(Throwable t) {
+				future.completeExceptionally(t);
+			}
+			futures.put(address, future);
+		}
+		return Collections.unmodifiableMap(futures);
+	}
+		
+	// runs at most parallelism workers which open the addresses in turn
+	Map<ConnectionAddress,Future<Endpoint>> openAll(Collection<ConnectionAddress> addresses, int parallelism, NetworkExecutor executor) {
+		if(parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive: "+parallelism);
+		
+		final Map<ConnectionAddress,CompletableFuture<Endpoint>> futures = new LinkedHashMap<>();
+		addresses.forEach(a -> futures.put(a, new CompletableFuture<>()));
+		final Iterator<Map.Entry<ConnectionAddress,CompletableFuture<Endpoint>>> it = futures.entrySet().iterator();
+		
+		Runnable worker = () -> {
+			for(;;) {
+				Map.Entry<ConnectionAddress,CompletableFuture<Endpoint>> e = null;
+				synchronized(it) {
+					if(!it.hasNext()) return;
+					e = it.next();
+				}
+				try {
+					e.getValue().complete(open(e.getKey()));
+				} catch(Throwable t) {
+					e.getValue().completeExceptionally(t);
+				}
+			}
+		};
+		var workers = Math.min(parallelism, futures.size());
+		for(int i = 0; i < workers; i++) executor.submit(worker);
+		
+		return Collections.unmodifiableMap(futures);
+	}
+		
 	/**
 	 * Shuts down this endpoint provider.
 	 */
@@ -0,0 +1,229 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounded pool running secure endpoint handshakes.
+ *
+ * <p>Key exchanges are CPU bound, so they run on their own threads, one per
+ * core, rather than on the network executor. Handshakes beyond the pending
+ * limit are rejected at once, and a queued handshake whose peer will have
+ * timed out is dropped without running. A running handshake is interrupted
+ * once its future is cancelled or completed by a caller giving up on it, so
+ * a silent peer cannot hold a thread.
+ *
+ * @author Michael Sargent
+ */
+public final class HandshakePool {
+	/** Default maximum number of queued handshakes: 256. */
+	public static final int DEFAULT_MAX_PENDING = 256;
+	private static final AtomicInteger POOLS = new AtomicInteger();
+	
+	private final ThreadPoolExecutor executor;
+	private final long timeout;
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong queueTime = new AtomicLong();
+	// completions in the current and last one second window
+	private long windowStart = System.nanoTime();
+	private long windowCount;
+	private long rate;
+	
+	HandshakePool() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PENDING, SecureEndpoint.HANDSHAKE_TIMEOUT * 1000);
+	}
+	
+	HandshakePool(int threads, int maxPending, long timeout) {
+		this.timeout = timeout;
+		var pool = POOLS.incrementAndGet();
+		var count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+			new ArrayBlockingQueue<>(maxPending), r -> {
+				var t = new Thread(r, "handshake-" + pool + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+	}
+	
+	<T> CompletableFuture<T> submit(Callable<T> handshake) {
+		var f = new CompletableFuture<T>();
+		var queued = System.nanoTime();
+		// the thread running the handshake, interrupted if it is abandoned
+		var runner = new AtomicReference<Thread>();
+		f.whenComplete((r, e) -> {
+			synchronized(runner) {
+				var t = runner.get();
+				if(t != null) t.interrupt();
+			}
+		});
+		try {
+			executor.execute(() -> {
+				var waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued);
+				queueTime.addAndGet(waited);
+				if(waited >= timeout) {
+					failed.incrementAndGet();
+					f.completeExceptionally(new IOException("Handshake expired in queue"));
+					return;
+				}
+				synchronized(runner) {
+					if(f.isDone()) return;
+					runner.set(Thread.currentThread());
+				}
+				try {
+					var result = handshake.call();
+					finish(runner);
+					// counted first so a caller sees its own handshake
+					record();
+					if(!f.complete(result)) {
+						// timed out or cancelled meanwhile
+						completed.decrementAndGet();
+						failed.incrementAndGet();
+						discard(result);
+					}
+				} catch(Throwable e) {
+					finish(runner);
+					failed.incrementAndGet();
+					f.completeExceptionally(e);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			f.completeExceptionally(new IOException("Handshake rejected: too many pending", e));
+		}
+		return f;
+	}
+	
+	// detaches the runner and clears an interrupt meant for this handshake
+	private static void finish(AtomicReference<Thread> runner) {
+		synchronized(runner) {
+			runner.set(null);
+			Thread.interrupted();
+		}
+	}
+	
+	private static void discard(Object result) {
+		if(result instanceof Endpoint) {
+			try {
+				((Endpoint)result).close();
+			} catch(IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	void shutdown() {
+		executor.shutdownNow();
+	}
+	
+	private synchronized void record() {
+		completed.incrementAndGet();
+		roll();
+		windowCount++;
+	}
+	
+	// start a new window if a second has passed
+	private void roll() {
+		var now = System.nanoTime();
+		var elapsed = now - windowStart;
+		if(elapsed >= 1_000_000_000L) {
+			rate = elapsed >= 2_000_000_000L ? 0 : windowCount;
+			windowStart = now;
+			windowCount = 0;
+		}
+	}
+	
+	/**
+	 * Returns the number of handshakes queued or running.
+	 *
+	 * @return The number of handshakes queued or running.
+	 */
+	public int pending() {
+		return executor.getQueue().size() + executor.getActiveCount();
+	}
+	
+	/**
+	 * Returns the number of handshakes which completed.
+	 *
+	 * @return The number of handshakes which completed.
+	 */
+	public long completed() {
+		return completed.get();
+	}
+	
+	/**
+	 * Returns the number of handshakes which failed or expired in the queue.
+	 *
+	 * @return The number of handshakes which failed or expired in the queue.
+	 */
+	public long failed() {
+		return failed.get();
+	}
+	
+	/**
+	 * Returns the number of handshakes rejected because too many were pending.
+	 *
+	 * @return The number of handshakes rejected because too many were pending.
+	 */
+	public long rejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Returns the mean time handshakes waited in the queue in milliseconds.
+	 *
+	 * @return The mean time handshakes waited in the queue in milliseconds.
+	 */
+	public double queueTime() {
+		var n = completed.get() + failed.get();
+		return n == 0 ? 0 : (double)queueTime.get() / n;
+	}
+	
+	/**
+	 * Returns the number of handshakes completed in the last full second.
+	 *
+	 * @return The number of handshakes completed in the last full second.
+	 */
+	public synchronized long rate() {
+		roll();
+		return rate;
+	}
+	
+	@Override
+	public String toString() {
+		return "HandshakePool[pending=" + pending() + ",completed=" + completed() + ",failed=" + failed()
+			+ ",rejected=" + rejected() + ",queueTime=" + queueTime() + ",rate=" + rate() + "]";
+	}
+}
@@ -0,0 +1,119 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+
+/**
+ * An in-memory connection between two endpoints of the same host.
+ *
+ * <p>Each message is encoded once on write and handed to the peer through a
+ * lock-free queue, so the reader decodes straight from the sender's buffer.
+ * Encoding on write keeps the copy semantics of a network endpoint: the
+ * sender may reuse or mutate the written object afterwards.</p>
+ *
+ * @author Michael Sargent
+ */
+final class LoopbackConnection {
+	// wakes readers blocked on a closed connection
+	private static final byte[] EOF = new byte[0];
+	
+	final LoopbackEndpoint proxy;
+	final LoopbackEndpoint service;
+	private final Runnable onClose;
+	private final AtomicBoolean isOpen = new AtomicBoolean(true);
+	
+	LoopbackConnection() {
+		this(() -> {});
+	}
+	
+	LoopbackConnection(Runnable onClose) {
+		this.onClose = onClose;
+		
+		var toProxy = new LinkedTransferQueue<byte[]>();
+		var toService = new LinkedTransferQueue<byte[]>();
+		
+		proxy = new LoopbackEndpoint(toProxy, toService);
+		service = new LoopbackEndpoint(toService, toProxy);
+	}
+	
+	// runs once however many threads close either side
+	private void close() {
+		if(!isOpen.compareAndSet(true, false)) return;
+		proxy.in.offer(EOF);
+		service.in.offer(EOF);
+		onClose.run();
+	}
+	
+	final class LoopbackEndpoint implements Endpoint {
+		private final BlockingQueue<byte[]> in;
+		private final BlockingQueue<byte[]> out;
+		
+		private LoopbackEndpoint(BlockingQueue<byte[]> in, BlockingQueue<byte[]> out) {
+			this.in = in;
+			this.out = out;
+		}
+		
+		@Override
+		public void write(Encodable data) throws IOException {
+			if(!isOpen.get()) throw new IOException("Endpoint not open");
+			
+			out.offer(data.encode());
+		}
+
+		@Override
+		public <T> T read(Decoder<T> decoder) throws IOException {
+			if(!isOpen.get() && in.isEmpty()) throw new EOFException();
+			
+			try {
+				var b = in.take();
+				if(b == EOF) {
+					// leave the marker for any other blocked reader
+					in.offer(EOF);
+					throw new EOFException();
+				}
+				return decoder.decode(b);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		@Override
+		public boolean isOpen() {return isOpen.get();}
+
+		@Override
+		public void close() throws IOException {
+			LoopbackConnection.this.close();
+		}
+	}
+}
@@ -0,0 +1,469 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInput;
+import rs.igram.kiribi.io.VarOutput;
+
+import static rs.igram.kiribi.net.SecureEndpoint.MUX_FRAGMENTS;
+
+/**
+ * Multiplexes service endpoints over a single secure endpoint.
+ *
+ * <p>Transfers larger than {@link #FRAGMENT_SIZE} are split into fragments
+ * and senders take turns on a fair lock, so a large transfer on one 
+ * service does not hold up the others.</p>
+ *
+ * <p>Reassembly is bounded: a transfer larger than the transfer limit
+ * closes its service, fragments left unfinished for longer than the
+ * partial timeout are dropped, and once the unfinished transfers reach
+ * the total limit or {@link #MAX_PARTIALS} the least recently active is 
+ * dropped and its service closed.</p>
+ *
+ * @author Michael Sargent
+ */
+class MUX<S extends SecureEndpoint> {
+	static final byte OPEN_SERVICE = 	  10;
+	static final byte TRANSFER_SERVICE =  11; 
+	static final byte CLOSE_SERVICE = 	  12;
+	// all but the last part of a fragmented transfer
+	static final byte TRANSFER_FRAGMENT = 13;
+	// largest packet payload written while another service waits
+	static final int FRAGMENT_SIZE = 16 * 1024;
+	// largest transfer sent or reassembled
+	static final int MAX_TRANSFER_SIZE = 16 * 1024 * 1024;
+	// most bytes held in unfinished transfers across all services
+	static final long MAX_PARTIAL_SIZE = 2L * MAX_TRANSFER_SIZE;
+	// most unfinished transfers held at once
+	static final int MAX_PARTIALS = 64;
+	// unfinished transfers idle for longer than this are dropped
+	static final long PARTIAL_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+	
+	private final Map<Long,ServiceEndpoint> delegates = Collections.synchronizedMap(new HashMap<>());
+	// partially received transfers, least recently active first - only 
+	// touched by the reader
+	private final Map<Long,Partial> partials = new LinkedHashMap<>(16, 0.75f, true);
+	// grants the root endpoint to waiting senders in turn
+	private final ReentrantLock sending = new ReentrantLock(true);
+	private final Consumer<Endpoint> consumer;
+	private final NetworkExecutor executor;
+	private final int maxTransfer;
+	private final long maxPartial;
+	private final long partialTimeout;
+	// bytes held in partials - only touched by the reader
+	private long partialSize;
+	
+	S root;
+	private Future<?> future;
+	private boolean isClosed;
+	
+	MUX(S root, Consumer<Endpoint> consumer, NetworkExecutor executor) {
+		this(root, consumer, executor, MAX_TRANSFER_SIZE, MAX_PARTIAL_SIZE, PARTIAL_TIMEOUT);
+	}
+	
+	MUX(S root, Consumer<Endpoint> consumer, NetworkExecutor executor, int maxTransfer, long maxPartial, long partialTimeout) {
+		this.root = root;
+		this.consumer = consumer;
+		this.executor = executor;
+		this.maxTransfer = maxTransfer;
+		this.maxPartial = maxPartial;
+		this.partialTimeout = partialTimeout;
+		
+		future = executor.submit(this::read);
+	}
+
+	void reset(S value) {
+		if(future != null) future.cancel(true);
+		delegates.values().forEach(ServiceEndpoint::setClosed);
+		delegates.clear();
+		partials.clear();
+		partialSize = 0;
+		try {
+			root.close();
+		} catch(Exception e) {
+			// ignore
+		}
+		isClosed = false;
+		root = value;
+		future = executor.submit(this::read);
+	}
+	
+	S root() {return root;}
+	
+	protected void flush() throws IOException {
+		if(!isClosed) root.flush();
+	}
+	
+	// stop reading from the root endpoint - the caller is responsible 
+	// for releasing a reader blocked on the root endpoint
+	void suspend() {
+		if(future != null) future.cancel(true);
+		future = null;
+	}
+	
+	// restart reading from the root endpoint
+	void resume() {
+		if(future == null && !isClosed) future = executor.submit(this::read);
+	}
+	
+	// created by client side for new outgoing session
+	public ServiceEndpoint open(long address) throws IOException {
+		if(isClosed) throw new IllegalStateException("MUX is closed");
+
+		return delegates.computeIfAbsent(address, k -> new ServiceEndpoint(address));
+	}
+
+	// pass off to delegate for processing
+	protected void process(long id, byte[] b) {
+		if(isClosed) return;
+		var delegate = delegates.get(id);
+		if(delegate == null) {
+			delegate = new ServiceEndpoint(id);
+			delegates.put(id, delegate);
+			final ServiceEndpoint ep = delegate;
+			executor.submit(() -> consumer.accept(ep));
+		}
+		delegate.queue.add(b);
+	}
+	
+	// reassemble fragmented transfers
+	private void process(Packet packet) throws IOException {
+		var now = System.nanoTime();
+		var partial = partials.get(packet.id);
+		if(partial == null) {
+			if(packet.action == TRANSFER_SERVICE) {
+				process(packet.id, packet.data);
+				return;
+			}
+			if(partials.size() >= MAX_PARTIALS) expire(now);
+			if(partials.size() >= MAX_PARTIALS) evict();
+			partial = new Partial();
+			partials.put(packet.id, partial);
+		}
+		partial.touched = now;
+		if(partial.data != null && partial.data.size() + packet.data.length > maxTransfer) fail(packet.id, partial);
+		// the rest of a failed transfer is dropped
+		if(partial.data == null) {
+			if(packet.action == TRANSFER_SERVICE) partials.remove(packet.id);
+			return;
+		}
+		if(packet.action == TRANSFER_SERVICE) {
+			discard(packet.id);
+			partial.data.writeBytes(packet.data);
+			process(packet.id, partial.data.toByteArray());
+			return;
+		}
+		if(partialSize + packet.data.length > maxPartial) expire(now);
+		while(partialSize + packet.data.length > maxPartial && drop(packet.id));
+		if(partialSize + packet.data.length > maxPartial) {
+			fail(packet.id, partial);
+			return;
+		}
+		partial.data.writeBytes(packet.data);
+		partialSize += packet.data.length;
+	}
+	
+	// drop a transfer over the limit and close its service on both sides -
+	// the partial stays as a marker until the transfer ends or expires
+	private void fail(long id, Partial partial) {
+		if(partial.data != null) partialSize -= partial.data.size();
+		partial.data = null;
+		if(delegates.containsKey(id)) {
+			close(id);
+		} else {
+			try {
+				send(new Packet(id));
+			} catch(IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	private void discard(long id) {
+		var partial = partials.remove(id);
+		if(partial != null && partial.data != null) partialSize -= partial.data.size();
+	}
+	
+	// fails the least recently active transfer holding bytes other than 
+	// the given one, returns false if there is none
+	private boolean drop(long keep) {
+		for(var e : partials.entrySet()) {
+			if(e.getKey() == keep || e.getValue().data == null) continue;
+			fail(e.getKey(), e.getValue());
+			return true;
+		}
+		return false;
+	}
+	
+	// removes the least recently active partial, failing its transfer
+	private void evict() {
+		var eldest = partials.entrySet().iterator().next();
+		if(eldest.getValue().data != null) fail(eldest.getKey(), eldest.getValue());
+		partials.remove(eldest.getKey());
+	}
+	
+	// drop partials idle for longer than the timeout
+	private void expire(long now) {
+		var stale = new ArrayList<Long>();
+		partials.forEach((id, partial) -> {
+			if(now - partial.touched > partialTimeout) stale.add(id);
+		});
+		for(var id : stale) {
+			var partial = partials.get(id);
+			if(partial.data != null) fail(id, partial);
+			discard(id);
+		}
+	}
+
+	protected void read() {
+		while(!Thread.interrupted()) {
+			if(isClosed) return;
+			try {
+				var packet = root.read(Packet::new);
+				switch(packet.action){
+				case OPEN_SERVICE:
+					break;
+				case TRANSFER_SERVICE:
+				case TRANSFER_FRAGMENT:
+					process(packet);
+					break;
+				case CLOSE_SERVICE:
+					// keep the marker of a failed transfer until it expires
+					var partial = partials.get(packet.id);
+					if(partial != null && partial.data != null) discard(packet.id);
+					close(packet.id);
+					break;
+				}
+			} catch(IOException e) {
+				if(!Thread.currentThread().isInterrupted()) onFailed(e);
+				return;
+			}
+		}
+	}
+	
+	// override as needed
+	protected void onFailed(IOException e) {}
+	
+	protected void transfer(long id, byte[] data) throws IOException {
+		if(isClosed) return;
+		if(data.length > maxTransfer) throw new IOException("Transfer too large: "+data.length);
+		if(data.length <= FRAGMENT_SIZE || root.protocolVersion < MUX_FRAGMENTS) {
+			send(new Packet(TRANSFER_SERVICE, id, data));
+			return;
+		}
+		for(int off = 0; off < data.length; off += FRAGMENT_SIZE) {
+			var end = Math.min(off + FRAGMENT_SIZE, data.length);
+			var action = end == data.length ? TRANSFER_SERVICE : TRANSFER_FRAGMENT;
+			// stop once the service is closed, by either side
+			if(off > 0 && !delegates.containsKey(id)) throw new IOException("Service closed");
+			send(new Packet(action, id, Arrays.copyOfRange(data, off, end)));
+		}
+	}
+	
+	private void send(Packet packet) throws IOException {
+		sending.lock();
+		try {
+			root.write(packet);
+		} finally {
+			sending.unlock();
+		}
+	}
+	
+	// close delegate
+	protected void close(long id) {
+		if(!delegates.containsKey(id)) return;
+		try {
+			if(!isClosed) send(new Packet(id));
+		} catch(IOException e) {
+			// ignore
+		}
+		var delegate = delegates.remove(id);
+		if(delegate != null) {
+			delegate.setClosed();
+		}
+		// notify subclass
+		onClosed(id);
+	}
+	
+	// override as needed
+	protected void onClosed(long id) {}
+	
+	protected void write(long id, byte[] data) throws IOException {
+		transfer(id, data);
+	}
+	
+	public synchronized void dispose(boolean notify) {
+		delegates.entrySet().forEach(e -> {
+			try {
+				send(new Packet(e.getKey()));
+			} catch(IOException ex) {
+				// ignore
+			}
+		});
+		delegates.values().forEach(ServiceEndpoint::setClosed);
+		delegates.clear();
+		// give some time to notify remote peers
+		try {
+			TimeUnit.MILLISECONDS.sleep(250);
+		} catch(Exception z) {
+			// ignore
+		}
+		
+		try {
+			if(notify) root.writeRaw(new byte[]{SecureEndpoint.CLOSE});
+			if(future != null) future.cancel(true);
+			root.close();
+		} catch(Exception e) {
+			// ignore
+		}
+		
+		isClosed = true;
+		
+		// notify subclass
+		onDisposed(this);
+	}
+		
+	// override as needed
+	protected void onDisposed(MUX<S> mux) {}
+	
+	boolean isClosed() {return isClosed;}
+	
+	int services() {return delegates.size();}
+	
+	class ServiceEndpoint implements Endpoint {
+		final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+		final long id;
+		private Consumer<ConnectionState> consumer;
+		private boolean isOpen = true;
+		
+		ServiceEndpoint(long id) {
+			this(id, null);
+		}
+		
+		ServiceEndpoint(long id, Consumer<ConnectionState> consumer) {
+			this.id = id;
+			this.consumer = consumer;
+		}
+		
+		@Override
+		public void state(Consumer<ConnectionState> consumer) {
+			this.consumer = consumer;
+		}
+		
+		@Override
+		public void write(Encodable data) throws IOException {
+			if(!isOpen) throw new IOException("Endpoint not open");
+			
+			MUX.this.transfer(id, data.encode());
+		}
+
+		@Override
+		public void flush() throws IOException {
+			MUX.this.flush();
+		}
+
+		@Override
+		public <T> T read(Decoder<T> decoder) throws IOException {
+			if(!isOpen) throw new IOException("Endpoint not open");
+			
+			try {
+				return decoder.decode(queue.take());
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return isOpen;
+		}
+
+		@Override
+		public void close() throws IOException {
+			isOpen = false;
+			MUX.this.close(id);
+		}
+		
+		private void setClosed() {
+			isOpen = false;
+			if(consumer != null) {
+				executor.submit(() -> consumer.accept(ConnectionState.CLOSED));
+			}
+		}
+	}
+	
+	// partially received transfer - data is null once the transfer failed
+	private static final class Partial {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		long touched;
+	}
+	
+	class Packet implements Encodable {
+		final byte action;
+		final long id;
+		final byte[] data;
+	
+		Packet(byte action, long id, byte[] data) {
+			this.action = action;
+			this.id = id;
+			this.data = data;
+		}
+		
+		Packet(long id) {
+			this(CLOSE_SERVICE, id, new byte[0]);
+		}
+		
+		public Packet(VarInput in) throws IOException {
+			action = in.readByte();
+			id = in.readLong();
+			data = in.readBytes();
+		}
+		
+		@Override
+		public void write(VarOutput out) throws IOException {
+			out.writeByte(action);
+			out.writeLong(id);
+			out.writeBytes(data);
+		}
+	}
+}
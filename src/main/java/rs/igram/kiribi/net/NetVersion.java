@@ -37,6 +37,11 @@ import rs.igram.kiribi.io.VarOutput;
  */
 final class NetVersion implements Encodable {
 	public static final NetVersion V1 = new NetVersion(1,1,1);
+	public static final NetVersion V2 = new NetVersion(1,1,2);
+	public static final NetVersion V3 = new NetVersion(1,1,3);
+	public static final NetVersion V4 = new NetVersion(1,1,4);
+	public static final NetVersion V5 = new NetVersion(1,1,5);
+	public static final NetVersion V6 = new NetVersion(1,1,6);
 	
 	public final int version;
 	public final int serialVersion;
@@ -54,7 +59,7 @@ final class NetVersion implements Encodable {
 		protocolVersion = in.readInt();
 	}
 
-	public static NetVersion current() {return V1;}
+	public static NetVersion current() {return V6;}
 	
 	@Override
 	public void write(VarOutput out) throws IOException {
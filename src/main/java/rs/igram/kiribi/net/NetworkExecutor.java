@@ -46,6 +46,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -68,30 +69,48 @@ public class NetworkExecutor {
     );
 	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3);
 	private final List<Action> actions = new ArrayList<>();
+	private final Thread hook = new Thread(this::terminate);
+	private final AtomicBoolean terminated = new AtomicBoolean();
 	
 	/**
 	 * Instantiates a new <code>NetworkExecutor</code> instance.
 	 */
 	public NetworkExecutor() {
-		Runnable shutdown = () -> {
-			scheduler.shutdownNow();
-			try{
-				Collections.sort(actions);
-				new ArrayList<Action>(actions).forEach(a -> {
-					a.runnable.run();
-				});
-				executor.shutdown();
-				if(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
-					executor.shutdownNow();
-					if(!executor.awaitTermination(2, TimeUnit.SECONDS))
-						LOGGER.log(Level.FINE, "Kiribi pool failed to terminate");
-				}
-			}catch(InterruptedException e){
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+	
+	/**
+	 * Shuts this executor down, running its shutdown tasks. Executors which
+	 * are not shut down are shut down when the vm exits.
+	 */
+	public final void shutdown() {
+		try{
+			Runtime.getRuntime().removeShutdownHook(hook);
+		}catch(IllegalStateException e){
+			// the vm is exiting and the hook runs anyway
+			return;
+		}
+		terminate();
+	}
+	
+	private void terminate() {
+		if(!terminated.compareAndSet(false, true)) return;
+		scheduler.shutdownNow();
+		try{
+			Collections.sort(actions);
+			new ArrayList<Action>(actions).forEach(a -> {
+				a.runnable.run();
+			});
+			executor.shutdown();
+			if(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
 				executor.shutdownNow();
-				Thread.currentThread().interrupt();
+				if(!executor.awaitTermination(2, TimeUnit.SECONDS))
+					LOGGER.log(Level.FINE, "Kiribi pool failed to terminate");
 			}
-		};
-		Runtime.getRuntime().addShutdownHook(new Thread(shutdown));
+		}catch(InterruptedException e){
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 	/**
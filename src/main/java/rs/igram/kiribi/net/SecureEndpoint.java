@@ -24,10 +24,23 @@
  
 package rs.igram.kiribi.net;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import rs.igram.kiribi.crypto.KeyExchange;
 import rs.igram.kiribi.io.ByteStream;
@@ -51,100 +64,611 @@ abstract class SecureEndpoint implements Endpoint {
 	static final byte DATA  = 2; 
 	static final byte RESET = 3; 
 	static final byte CLOSE = 4; 
-	byte flag = INIT;
+	// follows the init header in place of a key exchange frame
+	static final byte RESUME = 5; 
+	// derivation label of the proof a resuming proxy holds the ticket secret
+	static final byte CONFIRM = 4;
+	// modifier on data frames - more chunks of the same message follow
+	static final byte BULK = 0x10;
+	// modifier on data frames - the payload holds several messages
+	static final byte BATCH = 0x20;
+	// modifier on data frames - the payload is deflated
+	static final byte DEFLATED = 0x40;
+	volatile byte flag = INIT;
+	// encoded messages above this size are encrypted in parallel chunks
+	static final int BULK_THRESHOLD = 64 * 1024;
+	static final int CHUNK_SIZE = 32 * 1024;
+	// largest message written or read, bounding what a peer can make us allocate
+	static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+	// most frames of a bulk message
+	static final int MAX_CHUNKS = MAX_MESSAGE_SIZE / CHUNK_SIZE;
+	// sequence number and gcm tag added to each encrypted frame
+	static final int FRAME_OVERHEAD = SessionCipher.SEQ_LENGTH + 16;
+	// init header: flag, protocol version and magic
+	static final int HEADER_LENGTH = 10;
+	// first protocol version accepting the header with the key exchange
+	static final int COMBINED_HANDSHAKE = 2;
+	// first protocol version with session tickets
+	static final int SESSION_TICKETS = 3;
+	// first protocol version reading batched frames
+	static final int BATCH_FRAMES = 4;
+	// first protocol version reading deflated frames
+	static final int COMPRESSION = 5;
+	// first protocol version reassembling fragmented mux transfers
+	static final int MUX_FRAGMENTS = 6;
+	// payloads below this are sent as they are
+	static final int COMPRESSION_THRESHOLD = 256;
+	static final int COMPRESSION_SAMPLE = 4096;
+	// coalescing defaults: max delay in millis and one datagram payload
+	static final long DEFAULT_COALESCE_WINDOW = 5;
+	static final int DEFAULT_COALESCE_THRESHOLD = 1400;
 	// handshake timeout in  seconds
 	protected static final long HANDSHAKE_TIMEOUT = 5;
 	protected KeyExchange exchanger;
 	protected int protocolVersion;
 	private CountDownLatch latch = new CountDownLatch(1);
+	private Handshake stream;
+	private final Object writeLock = new Object();
+	private final Object readLock = new Object();
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+	// coalesced writes, guarded by the write lock
+	private final List<byte[]> batch = new ArrayList<>();
+	private int batched;
+	private long window;
+	private int threshold;
+	// times and runs the flush of a window, writeRaw may block
+	private NetworkExecutor timer;
+	// bumped on every drain so stale timers do nothing
+	private long generation;
+	// failure of a timed flush, thrown on the next write
+	private IOException failure;
+	// messages of a batched frame not read yet, guarded by the read lock
+	private final Deque<byte[]> unbatched = new ArrayDeque<>();
+	// set once the session runs on a ticket secret
+	private SessionCipher cipher;
 	boolean isProxy;
+	boolean resumed;
 	Address remote;
+	// resumption tickets, null to always run the full key exchange
+	Sessions sessions;
 		
 	protected synchronized Endpoint connect(boolean isProxy) throws IOException {
 		this.isProxy = isProxy;
-			
-		// magic and version
-		var buf = new byte[10];
-		var version = NetVersion.current();
-
+		
 		if(isProxy){
-			buf[0] = INIT;
-			buf[1] = (byte)version.protocolVersion;
-			Magic.magic(buf, 2);
-			writeRaw(buf);
-				
-			buf = readRaw();
-			if(buf[0] != INIT){
-				throw new IOException("Attempt to initialize connection with wrong control flag: "+buf[0]);
-			}
-			var b = Magic.verifyMagic(buf, 2);
-			if(!b){
-				throw new IOException("Bad Voodoo");
-			}
-			protocolVersion = buf[1];
+			proxy();
 		}else{
-			buf = readRaw();
-			if(buf[0] != INIT){
-				throw new IOException("Attempt to initialize connection with wrong control flag: "+buf[0]);
+			service();
+		}
+			
+		flag = DATA;
+		latch.countDown();
+			
+		return this;
+	}
+	
+	/**
+	 * Returns the key under which a proxy keeps the resumption ticket for
+	 * its peer.
+	 *
+	 * @return The session key, or <code>null</code> if sessions with this
+	 * peer should not be resumed.
+	 * @throws IOException if there was a problem determining the key.
+	 */
+	protected Object sessionKey() throws IOException {
+		return remote;
+	}
+	
+	private void proxy() throws IOException {
+		var header = new byte[HEADER_LENGTH];
+		header[0] = INIT;
+		header[1] = (byte)NetVersion.current().protocolVersion;
+		Magic.magic(header, 2);
+		
+		var key = sessions == null ? null : sessionKey();
+		var ticket = key == null ? null : sessions.ticket(key);
+		// a session still running on another connection to the peer is 
+		// left to it, resuming it would close that connection
+		var owner = ticket == null ? null : ticket.owner;
+		if(owner != null && owner.isOpen()) ticket = null;
+		if(ticket != null){
+			var nonce = Sessions.random(Sessions.NONCE_LENGTH);
+			writeRaw(concat(header, RESUME, ticket.id, nonce));
+			var b = readRaw();
+			verify(b);
+			protocolVersion = b[1];
+			var off = HEADER_LENGTH + 1 + Sessions.NONCE_LENGTH;
+			if(b.length > off && b[HEADER_LENGTH] == RESUME){
+				var serviceNonce = extract(b, HEADER_LENGTH + 1, Sessions.NONCE_LENGTH);
+				var c = new SessionCipher(ticket.secret, nonce, serviceNonce, true);
+				// the next ticket id comes under the session keys, which also
+				// shows the service holds the ticket secret
+				var next = c.decrypt(extract(b, off, b.length - off));
+				if(next.length != Sessions.ID_LENGTH) throw new IOException("Invalid ticket");
+				writeRaw(SessionCipher.derive(ticket.secret, CONFIRM, nonce, serviceNonce));
+				sessions.replace(key, ticket, next, nonce, serviceNonce).owner = this;
+				takeOver(ticket);
+				resume(c);
+				return;
 			}
-			protocolVersion = Math.min(buf[1], version.protocolVersion);
-			var b = Magic.verifyMagic(buf, 2);
-			if(!b){
-				throw new IOException("Bad Voodoo");
+			// ticket expired or unknown to the service
+			sessions.remove(key);
+			exchange(new Handshake(null, false, null));
+		}else{
+			// the init header rides on the first key exchange frame and the
+			// echo on the reply, so both complete in a single round trip
+			try{
+				exchange(new Handshake(header, true, null));
+			}catch(LegacyPeerException e){
+				// the peer echoed our first frame as a plain init frame and is
+				// now waiting for the key exchange to start
+				exchange(new Handshake(null, false, null));
 			}
-			buf[1] = (byte)protocolVersion;
-			writeRaw(buf);
 		}
-
-		// key exchange
-		ByteStream stream = new ByteStream() {
-			@Override
-			public void write(byte[] b) throws IOException {
-				var d = new byte[b.length + 1];
-				d[0] = flag;
-				System.arraycopy(b, 0, d, 1, b.length);
-				writeRaw(d);
-			}
-			@Override
-			public byte[] read() throws IOException {
-				var b = readRaw();
-				return extract(b, 1, b.length - 1);
+		
+		if(protocolVersion >= SESSION_TICKETS){
+			ticket = exchanger.read(Sessions.Ticket::new);
+			cipher = new SessionCipher(ticket.secret, ticket.id, ticket.id, true);
+			ticket.owner = this;
+			if(key != null) sessions.put(key, ticket);
+		}
+	}
+	
+	private void service() throws IOException {
+		var b = readRaw();
+		verify(b);
+		protocolVersion = Math.min(b[1], NetVersion.current().protocolVersion);
+		var echo = extract(b, 0, HEADER_LENGTH);
+		echo[1] = (byte)protocolVersion;
+		
+		if(b.length == HEADER_LENGTH){
+			// plain init frame - the peer waits for the echo
+			writeRaw(echo);
+			exchange(new Handshake(null, false, null));
+		}else if(b[HEADER_LENGTH] == RESUME){
+			var off = HEADER_LENGTH + 1;
+			var ticket = sessions == null || b.length != off + Sessions.ID_LENGTH + Sessions.NONCE_LENGTH ? 
+				null : sessions.find(extract(b, off, Sessions.ID_LENGTH));
+			if(ticket != null){
+				var nonce = Sessions.random(Sessions.NONCE_LENGTH);
+				var proxyNonce = extract(b, off + Sessions.ID_LENGTH, Sessions.NONCE_LENGTH);
+				var c = new SessionCipher(ticket.secret, proxyNonce, nonce, false);
+				var next = Sessions.random(Sessions.ID_LENGTH);
+				writeRaw(concat(echo, RESUME, nonce, c.encrypt(next)));
+				// the ticket id alone is no proof, the ticket is only used up 
+				// and its session taken over once the proxy shows it holds 
+				// the secret
+				var proof = readRaw();
+				if(!MessageDigest.isEqual(proof, SessionCipher.derive(ticket.secret, CONFIRM, proxyNonce, nonce))
+					|| sessions.redeem(ticket.id) != ticket){
+					throw new IOException("Resumption not confirmed");
+				}
+				sessions.reissue(ticket, next, proxyNonce, nonce).owner = this;
+				takeOver(ticket);
+				resume(c);
+				return;
 			}
-		};
-		exchanger = new KeyExchange(isProxy, stream);
+			// reject - the proxy falls back to the key exchange
+			writeRaw(echo);
+			exchange(new Handshake(null, false, null));
+		}else{
+			// combined frame - our echo rides on the first reply
+			exchange(new Handshake(echo, false, extract(b, HEADER_LENGTH, b.length - HEADER_LENGTH)));
+		}
+		
+		if(protocolVersion >= SESSION_TICKETS){
+			var ticket = sessions == null ? 
+				new Sessions.Ticket(Sessions.random(Sessions.ID_LENGTH), Sessions.random(SessionCipher.KEY_LENGTH)) :
+				sessions.issue();
+			exchanger.write(ticket);
+			cipher = new SessionCipher(ticket.secret, ticket.id, ticket.id, false);
+			ticket.owner = this;
+		}
+	}
+	
+	// the endpoint which ran a resumed session is closed before the session 
+	// is handed back, so its reader can't consume frames meant for this one
+	private void takeOver(Sessions.Ticket ticket) {
+		var previous = ticket.owner;
+		ticket.owner = null;
+		if(previous == null || previous == this) return;
+		try{
+			previous.close();
+		}catch(IOException e){
+			// the previous connection is being abandoned either way
+		}
+	}
+	
+	private void resume(SessionCipher cipher) throws IOException {
+		stream = new Handshake(null, false, null);
+		this.cipher = cipher;
+		resumed = true;
+	}
+	
+	private void exchange(Handshake handshake) throws IOException {
+		stream = handshake;
+		exchanger = new KeyExchange(isProxy, handshake);
 		try{
 			exchanger.exchange();
 		}catch(ArrayIndexOutOfBoundsException e){
 			// ec will throw this if something is wonky
 			throw new IOException(e);
 		}
-			
-		flag = DATA;
-		latch.countDown();
-			
-		return this;
 	}
+	
+	/**
+	 * Returns the control flag of a frame without its modifiers.
+	 *
+	 * @param flag The first byte of a frame.
+	 * @return The control flag.
+	 */
+	static byte control(byte flag) {
+		return (byte)(flag & 0x0f);
+	}
+	
+	// applies f to each of n items on the common pool
+	private static byte[][] parallel(int n, Chunk f) throws IOException {
+		try{
+			return IntStream.range(0, n).parallel()
+				.mapToObj(i -> {
+					try{
+						return f.apply(i);
+					}catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+				})
+				.toArray(byte[][]::new);
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+	}
+	
+	@FunctionalInterface
+	private interface Chunk {
+		byte[] apply(int i) throws IOException;
+	}
+	
+	private static void verify(byte[] b) throws IOException {
+		if(b.length < HEADER_LENGTH || b[0] != INIT){
+			throw new IOException("Attempt to initialize connection with wrong control flag: "+b[0]);
+		}
+		var v = Magic.verifyMagic(b, 2);
+		if(!v){
+			throw new IOException("Bad Voodoo");
+		}
+	}
+	
+	private static byte[] concat(byte[] header, byte flag, byte[]... parts) {
+		var l = header.length + 1;
+		for(var p : parts) l += p.length;
+		var d = new byte[l];
+		System.arraycopy(header, 0, d, 0, header.length);
+		var off = header.length;
+		d[off++] = flag;
+		for(var p : parts){
+			System.arraycopy(p, 0, d, off, p.length);
+			off += p.length;
+		}
+		return d;
+	}
+	
+	// key exchange stream which prefixes the first frame in each direction
+	// with the init header - peers below COMBINED_HANDSHAKE send and echo
+	// the header on its own
+	private class Handshake implements ByteStream {
+		// header to send with the next frame
+		private byte[] header;
+		// whether the peer's header is still to be read
+		private boolean awaiting;
+		// frame which arrived with the peer's header
+		private byte[] early;
+		// flag of the last frame read
+		private byte last;
+		// whether key exchange bytes went out with our header
+		private boolean combined;
+		
+		Handshake(byte[] header, boolean awaiting, byte[] early) {
+			this.header = header;
+			this.awaiting = awaiting;
+			this.early = early;
+		}
+		
+		@Override
+		public void write(byte[] b) throws IOException {
+			write(flag, b);
+		}
+		
+		void write(byte f, byte[] b) throws IOException {
+			var off = header == null ? 0 : header.length;
+			var d = new byte[off + b.length + 1];
+			if(header != null){
+				System.arraycopy(header, 0, d, 0, off);
+				header = null;
+				combined = true;
+			}
+			d[off] = f;
+			System.arraycopy(b, 0, d, off + 1, b.length);
+			writeRaw(d);
+		}
+		
+		@Override
+		public byte[] read() throws IOException {
+			if(early != null){
+				var b = early;
+				early = null;
+				last = b[0];
+				return extract(b, 1, b.length - 1);
+			}
+			// never block with our header unsent
+			if(header != null){
+				writeRaw(header);
+				header = null;
+			}
+			while(true){
+				var b = readRaw();
+				var off = 0;
+				if(awaiting){
+					awaiting = false;
+					verify(b);
+					protocolVersion = b[1];
+					if(protocolVersion < COMBINED_HANDSHAKE && combined) throw new LegacyPeerException();
+					off = HEADER_LENGTH;
+					if(b.length == HEADER_LENGTH) continue;
+				}
+				last = b[off];
+				return extract(b, off + 1, b.length - off - 1);
+			}
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	private static class LegacyPeerException extends IOException {}
 				
 	protected abstract void writeRaw(byte[] b) throws IOException;
 	protected abstract byte[] readRaw() throws IOException;
+	
+	// whether readRaw has bytes to return without waiting for the peer
+	protected boolean hasRawInput() {
+		return false;
+	}
+	
+	@Override
+	public boolean hasInput() {
+		synchronized(readLock){
+			if(!unbatched.isEmpty()) return true;
+		}
+		var s = stream;
+		return (s != null && s.early != null) || hasRawInput();
+	}
 		
+	/**
+	 * Gathers small writes into one frame.
+	 *
+	 * <p>Messages which encode to less than <code>threshold</code> bytes
+	 * are buffered until the buffer reaches the threshold, 
+	 * <code>window</code> millis pass or {@link #flush()} is called. 
+	 * Coalescing needs a peer at {@link #BATCH_FRAMES} or later and is
+	 * ignored otherwise.
+	 *
+	 * @param window The longest a buffered message waits in millis, 0 
+	 * to disable coalescing.
+	 * @param threshold The buffer size in bytes which triggers a flush.
+	 * @param timer The executor flushing the buffer once the window passes.
+	 */
+	void coalesce(long window, int threshold, NetworkExecutor timer) {
+		synchronized(writeLock){
+			this.window = window;
+			this.threshold = threshold;
+			this.timer = timer;
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		synchronized(writeLock){
+			drain();
+		}
+	}
+	
 	@Override
 	public void write(Encodable data) throws IOException {
 		try{
 			latch.await(HANDSHAKE_TIMEOUT, TimeUnit.SECONDS);
-			exchanger.write(data);
+			if(cipher == null){
+				exchanger.write(data);
+				return;
+			}
+			var b = data.encode();
+			if(b.length > MAX_MESSAGE_SIZE) throw new IOException("Message too large: "+b.length);
+			synchronized(writeLock){
+				if(window > 0 && b.length < threshold && protocolVersion >= BATCH_FRAMES){
+					buffer(b);
+					return;
+				}
+				drain();
+			}
+			send(b, DATA);
 		}catch(Exception e){
 			throw new IOException(e);
 		}
 	}
+	
+	private void send(byte[] b, byte f) throws IOException {
+		if(protocolVersion >= COMPRESSION && b.length >= COMPRESSION_THRESHOLD){
+			var d = deflate(b);
+			// skip payloads which don't shrink by at least an eighth
+			if(d != null){
+				b = d;
+				f |= DEFLATED;
+			}
+		}
+		send0(b, f);
+	}
+	
+	private void send0(byte[] b, byte f) throws IOException {
+		if(b.length < BULK_THRESHOLD){
+			synchronized(writeLock){
+				stream.write(f, cipher.encrypt(b));
+			}
+			return;
+		}
+		// encrypt the chunks on several cores, then send them in order - the
+		// lock keeps other frames from taking later numbers and going first
+		var n = (b.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		synchronized(writeLock){
+			var seq = cipher.reserve(n);
+			var chunks = parallel(n, i -> {
+				var off = i * CHUNK_SIZE;
+				return cipher.encrypt(seq + i, b, off, Math.min(CHUNK_SIZE, b.length - off));
+			});
+			for(int i = 0; i < n; i++){
+				stream.write(i < n - 1 ? (byte)(DATA | BULK) : f, chunks[i]);
+			}
+		}
+	}
+	
+	// called with the write lock held
+	private void buffer(byte[] b) throws IOException {
+		if(failure != null) throw failure;
+		
+		if(batch.isEmpty()){
+			var scheduled = ++generation;
+			// the scheduler only times the flush, the pool runs it
+			timer.schedule(() -> timer.submit(() -> flush(scheduled)), window, TimeUnit.MILLISECONDS);
+		}
+		batch.add(b);
+		batched += b.length + 4;
+		if(batched >= threshold) drain();
+	}
+	
+	private void flush(long scheduled) {
+		synchronized(writeLock){
+			// skip if flushed since
+			if(generation != scheduled) return;
+			try{
+				drain();
+			}catch(IOException e){
+				failure = e;
+			}
+		}
+	}
+	
+	// called with the write lock held
+	private void drain() throws IOException {
+		if(failure != null){
+			var e = failure;
+			failure = null;
+			throw e;
+		}
+		if(batch.isEmpty()) return;
+		
+		generation++;
+		var out = new VarOutputStream();
+		out.writeInt(batch.size());
+		for(var b : batch) out.writeBytes(b);
+		batch.clear();
+		batched = 0;
+		send(out.toByteArray(), (byte)(DATA | BATCH));
+	}
 
 	@Override
 	public <T> T read(Decoder<T> decoder) throws IOException {
 		try{
 			latch.await(HANDSHAKE_TIMEOUT, TimeUnit.SECONDS);
-			return exchanger.read(decoder);
+			if(cipher == null) return exchanger.read(decoder);
+			byte[] b;
+			synchronized(readLock){
+				b = unbatched.poll();
+				if(b == null){
+					var frames = new ArrayList<byte[]>();
+					long size = 0;
+					do{
+						var f = stream.read();
+						size += f.length;
+						frames.add(f);
+						if(frames.size() > MAX_CHUNKS || size > MAX_MESSAGE_SIZE + (long)frames.size() * FRAME_OVERHEAD){
+							// the rest of the message can't be skipped
+							close();
+							throw new IOException("Message too large: "+frames.size()+" frames, "+size+" bytes");
+						}
+					}while((stream.last & BULK) != 0);
+					b = decrypt(frames);
+					if((stream.last & DEFLATED) != 0) b = inflate(b);
+					
+					if((stream.last & BATCH) != 0){
+						var in = new VarInputStream(b);
+						var n = in.readInt();
+						for(int i = 0; i < n; i++) unbatched.add(in.readBytes());
+						b = unbatched.poll();
+					}
+				}
+			}
+			return decoder.decode(b);
 		}catch(Exception e){
 			throw new IOException(e);
 		}
 	}
+	
+	// returns the length prefixed deflated payload, or null if it is
+	// incompressible
+	static byte[] deflate(byte[] b) {
+		var deflater = DEFLATER.get();
+		// probe the head of large payloads first
+		if(b.length > 4 * COMPRESSION_SAMPLE){
+			deflater.reset();
+			deflater.setInput(b, 0, COMPRESSION_SAMPLE);
+			deflater.finish();
+			var probe = new byte[COMPRESSION_SAMPLE];
+			var n = deflater.deflate(probe);
+			if(!deflater.finished() || n > COMPRESSION_SAMPLE - COMPRESSION_SAMPLE / 8) return null;
+		}
+		deflater.reset();
+		deflater.setInput(b);
+		deflater.finish();
+		var max = b.length - b.length / 8;
+		var d = new byte[max];
+		ByteBuffer.wrap(d).putInt(b.length);
+		var n = 4;
+		while(!deflater.finished() && n < max){
+			n += deflater.deflate(d, n, max - n);
+		}
+		return deflater.finished() ? Arrays.copyOf(d, n) : null;
+	}
+	
+	// the length prefix is checked before allocating, and the payload must 
+	// inflate to exactly that length
+	static byte[] inflate(byte[] d) throws IOException {
+		var inflater = INFLATER.get();
+		inflater.reset();
+		if(d.length < 4) throw new IOException("Bad deflated frame");
+		var length = ByteBuffer.wrap(d).getInt();
+		if(length < 0 || length > MAX_MESSAGE_SIZE) throw new IOException("Bad deflated frame length: "+length);
+		inflater.setInput(d, 4, d.length - 4);
+		var b = new byte[length];
+		try{
+			var n = 0;
+			while(n < length && !inflater.finished()){
+				var r = inflater.inflate(b, n, length - n);
+				if(r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n += r;
+			}
+			// a full buffer stops short of the end of the stream
+			if(n == length && !inflater.finished()) n += inflater.inflate(new byte[1]);
+			if(n != length || !inflater.finished()) throw new IOException("Bad deflated frame");
+		}catch(DataFormatException e){
+			throw new IOException(e);
+		}
+		return b;
+	}
+	
+	private byte[] decrypt(List<byte[]> frames) throws IOException {
+		if(frames.size() == 1) return cipher.decrypt(frames.get(0));
+			
+		var seq = cipher.expect(frames.size());
+		var chunks = parallel(frames.size(), i -> cipher.decrypt(seq + i, frames.get(i)));
+		var out = new ByteArrayOutputStream(chunks.length * CHUNK_SIZE);
+		for(var c : chunks) out.write(c);
+		return out.toByteArray();
+	}
 }
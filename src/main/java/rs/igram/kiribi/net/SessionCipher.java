@@ -0,0 +1,148 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM cipher for the frames of a session.
+ *
+ * <p>Each direction has its own key derived from the session secret and
+ * the nonces both sides contributed to the handshake. Frames carry their
+ * sequence number, which is the GCM nonce. Frames are sent in sequence
+ * order, and a frame whose number is not the next one expected is
+ * rejected, so captured frames cannot be replayed or reordered. Frames
+ * whose numbers were reserved together may be decrypted in parallel.</p>
+ *
+ * @author Michael Sargent
+ */
+final class SessionCipher {
+	static final int KEY_LENGTH = 32;
+	// sequence number prefix
+	static final int SEQ_LENGTH = 8;
+	private static final int TAG_LENGTH = 128;
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	
+	private final SecretKeySpec out;
+	private final SecretKeySpec in;
+	private final AtomicLong seq = new AtomicLong();
+	// next sequence number expected from the peer
+	private long expected;
+	
+	SessionCipher(byte[] secret, byte[] proxyNonce, byte[] serviceNonce, boolean isProxy) throws IOException {
+		var p2s = key(secret, (byte)1, proxyNonce, serviceNonce);
+		var s2p = key(secret, (byte)2, proxyNonce, serviceNonce);
+		out = isProxy ? p2s : s2p;
+		in = isProxy ? s2p : p2s;
+	}
+	
+	/**
+	 * Reserves a block of consecutive sequence numbers.
+	 *
+	 * @param n The number of frames to reserve.
+	 * @return The first sequence number of the block.
+	 */
+	long reserve(int n) {
+		return seq.getAndAdd(n);
+	}
+	
+	byte[] encrypt(byte[] b) throws IOException {
+		return encrypt(reserve(1), b, 0, b.length);
+	}
+	
+	// safe to call concurrently with distinct sequence numbers
+	byte[] encrypt(long n, byte[] b, int off, int len) throws IOException {
+		try{
+			var cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.ENCRYPT_MODE, out, new GCMParameterSpec(TAG_LENGTH, iv(n)));
+			var d = new byte[SEQ_LENGTH + cipher.getOutputSize(len)];
+			ByteBuffer.wrap(d).putLong(n);
+			cipher.doFinal(b, off, len, d, SEQ_LENGTH);
+			return d;
+		}catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Takes the sequence numbers of the next frames from the peer, which 
+	 * must then be decrypted with them. Called by a single reader.
+	 *
+	 * @param n The number of frames.
+	 * @return The sequence number of the first frame.
+	 */
+	long expect(int n) {
+		var first = expected;
+		expected += n;
+		return first;
+	}
+	
+	byte[] decrypt(byte[] b) throws IOException {
+		return decrypt(expect(1), b);
+	}
+	
+	// safe to call concurrently with distinct sequence numbers
+	byte[] decrypt(long expected, byte[] b) throws IOException {
+		if(b.length < SEQ_LENGTH) throw new IOException("Truncated frame");
+		var n = ByteBuffer.wrap(b).getLong();
+		if(n != expected) throw new IOException("Unexpected frame: " + n + " expected: " + expected);
+		try{
+			var cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.DECRYPT_MODE, in, new GCMParameterSpec(TAG_LENGTH, iv(n)));
+			return cipher.doFinal(b, SEQ_LENGTH, b.length - SEQ_LENGTH);
+		}catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}
+	}
+	
+	private static byte[] iv(long n) {
+		return ByteBuffer.allocate(12).putLong(4, n).array();
+	}
+	
+	private static SecretKeySpec key(byte[] secret, byte label, byte[] proxyNonce, byte[] serviceNonce) throws IOException {
+		return new SecretKeySpec(derive(secret, label, proxyNonce, serviceNonce), "AES");
+	}
+	
+	// HMAC of the label and nonces keyed with the secret
+	static byte[] derive(byte[] secret, byte label, byte[] proxyNonce, byte[] serviceNonce) throws IOException {
+		try{
+			var mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			mac.update(label);
+			mac.update(proxyNonce);
+			mac.update(serviceNonce);
+			return mac.doFinal();
+		}catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}
+	}
+}
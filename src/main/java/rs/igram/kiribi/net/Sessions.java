@@ -0,0 +1,177 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInput;
+import rs.igram.kiribi.io.VarOutput;
+
+/**
+ * Session resumption tickets.
+ *
+ * <p>A service issues a ticket after each full key exchange and keeps its
+ * secret, the proxy keeps the ticket for the peer it connected to.
+ * Presenting the ticket on reconnect skips the key exchange. The service
+ * only redeems a ticket once the proxy has proved it holds the secret, 
+ * and a ticket is redeemed once: the resumed session replaces it with a
+ * ticket whose secret both sides derive from the old one and whose id is
+ * sent encrypted. Each ticket notes the 
+ * endpoint running its session, which is closed when the session is 
+ * resumed elsewhere. Both sides are bounded least
+ * recently used maps whose entries expire after the ticket lifetime.</p>
+ *
+ * @author Michael Sargent
+ */
+final class Sessions {
+	static final int DEFAULT_CAPACITY = 10_000;
+	// ticket lifetime in millis
+	static final long DEFAULT_LIFETIME = 10 * 60 * 1000;
+	static final int ID_LENGTH = 16;
+	static final int NONCE_LENGTH = 16;
+	
+	private final long lifetime;
+	// proxy side: tickets by peer
+	private final Map<Object,Ticket> tickets;
+	// service side: issued tickets by id
+	private final Map<ByteBuffer,Ticket> issued;
+	
+	Sessions() {
+		this(DEFAULT_CAPACITY, DEFAULT_LIFETIME);
+	}
+	
+	Sessions(int capacity, long lifetime) {
+		this.lifetime = lifetime;
+		tickets = lru(capacity);
+		issued = lru(capacity);
+	}
+	
+	synchronized Ticket ticket(Object peer) {
+		return valid(tickets, peer);
+	}
+	
+	synchronized void put(Object peer, Ticket ticket) {
+		ticket.expires = System.currentTimeMillis() + lifetime;
+		tickets.put(peer, ticket);
+	}
+	
+	synchronized void remove(Object peer) {
+		tickets.remove(peer);
+	}
+	
+	synchronized Ticket issue() {
+		var ticket = new Ticket(random(ID_LENGTH), random(SessionCipher.KEY_LENGTH));
+		ticket.expires = System.currentTimeMillis() + lifetime;
+		issued.put(ByteBuffer.wrap(ticket.id), ticket);
+		return ticket;
+	}
+	
+	// service side: an issued ticket, left in place until redeemed
+	synchronized Ticket find(byte[] id) {
+		return valid(issued, ByteBuffer.wrap(id));
+	}
+	
+	// tickets are single use, a resumed session hands out the next one
+	synchronized Ticket redeem(byte[] id) {
+		var key = ByteBuffer.wrap(id);
+		var ticket = valid(issued, key);
+		issued.remove(key);
+		return ticket;
+	}
+	
+	// service side: the ticket replacing a redeemed one
+	synchronized Ticket reissue(Ticket redeemed, byte[] id, byte[] proxyNonce, byte[] serviceNonce) throws IOException {
+		var ticket = next(redeemed, id, proxyNonce, serviceNonce);
+		issued.put(ByteBuffer.wrap(ticket.id), ticket);
+		return ticket;
+	}
+	
+	// proxy side: replaces the used ticket with the one the service issued
+	synchronized Ticket replace(Object peer, Ticket used, byte[] id, byte[] proxyNonce, byte[] serviceNonce) throws IOException {
+		var ticket = next(used, id, proxyNonce, serviceNonce);
+		tickets.put(peer, ticket);
+		return ticket;
+	}
+	
+	// the next ticket's secret is derived on both sides and never sent, and 
+	// it expires with the ticket of the full key exchange
+	private static Ticket next(Ticket ticket, byte[] id, byte[] proxyNonce, byte[] serviceNonce) throws IOException {
+		var next = new Ticket(id, SessionCipher.derive(ticket.secret, (byte)3, proxyNonce, serviceNonce));
+		next.expires = ticket.expires;
+		return next;
+	}
+	
+	static byte[] random(int length) {
+		var b = new byte[length];
+		Magic.random(b);
+		return b;
+	}
+	
+	private <K> Ticket valid(Map<K,Ticket> map, K key) {
+		var ticket = map.get(key);
+		if(ticket != null && ticket.expires < System.currentTimeMillis()) {
+			map.remove(key);
+			return null;
+		}
+		return ticket;
+	}
+	
+	private static <K> Map<K,Ticket> lru(int capacity) {
+		return new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K,Ticket> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	static final class Ticket implements Encodable {
+		final byte[] id;
+		final byte[] secret;
+		// local expiry, not sent
+		long expires;
+		// endpoint running the session, not sent
+		volatile SecureEndpoint owner;
+		
+		Ticket(byte[] id, byte[] secret) {
+			this.id = id;
+			this.secret = secret;
+		}
+		
+		Ticket(VarInput in) throws IOException {
+			id = in.readBytes();
+			secret = in.readBytes();
+		}
+		
+		@Override
+		public void write(VarOutput out) throws IOException {
+			out.writeBytes(id);
+			out.writeBytes(secret);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import rs.igram.kiribi.net.stack.Registry;
+
+/**
+ * Partitions the address space across a cluster of rendezvous servers by 
+ * consistent hashing.
+ *
+ * <p>Each server is placed at a number of points on a ring of 64 bit hashes 
+ * and an address is owned by the server at the first point following the 
+ * hash of the address. Adding or removing a server only moves the addresses 
+ * between it and its neighbours. Placement depends only on the servers' 
+ * socket addresses, so clients and servers configured with the same servers 
+ * agree on the owner of every address.</p>
+ *
+ * <p>With more than one replica an address is also held by the distinct 
+ * servers following its owner around the ring.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class ShardRing {
+	/** The default number of points per server. */
+	public static final int DEFAULT_POINTS = 128;
+	
+	private final List<InetSocketAddress> servers;
+	private final int replicas;
+	// sorted points and the server at each point
+	private final long[] points;
+	private final InetSocketAddress[] owners;
+	
+	/**
+	 * Instantiates a new <code>ShardRing</code> instance with the default number of points per server.
+	 *
+	 * @param servers The socket addresses of the servers.
+	 */
+	public ShardRing(Collection<InetSocketAddress> servers) {
+		this(servers, DEFAULT_POINTS);
+	}
+	
+	/**
+	 * Instantiates a new <code>ShardRing</code> instance.
+	 *
+	 * @param servers The socket addresses of the servers.
+	 * @param pointsPerServer The number of points of each server, more spread the addresses more evenly.
+	 */
+	public ShardRing(Collection<InetSocketAddress> servers, int pointsPerServer) {
+		this(servers, pointsPerServer, 1);
+	}
+	
+	/**
+	 * Instantiates a new <code>ShardRing</code> instance holding each address on several servers.
+	 *
+	 * @param servers The socket addresses of the servers.
+	 * @param pointsPerServer The number of points of each server, more spread the addresses more evenly.
+	 * @param replicas The number of servers holding each address, at most the number of servers.
+	 */
+	public ShardRing(Collection<InetSocketAddress> servers, int pointsPerServer, int replicas) {
+		if(servers.isEmpty()) throw new IllegalArgumentException("No servers");
+		if(pointsPerServer < 1) throw new IllegalArgumentException("Invalid number of points: " + pointsPerServer);
+		if(replicas < 1) throw new IllegalArgumentException("Invalid number of replicas: " + replicas);
+		this.servers = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(servers)));
+		this.replicas = Math.min(replicas, this.servers.size());
+		
+		var n = this.servers.size() * pointsPerServer;
+		var hashes = new long[n][];
+		var b = new byte[Registry.SOCKET_ADDRESS_LENGTH + 4];
+		for(int s = 0, i = 0; s < this.servers.size(); s++) {
+			Registry.encode(this.servers.get(s), b, 0);
+			for(int p = 0; p < pointsPerServer; p++, i++) {
+				b[18] = (byte)(p >>> 24);
+				b[19] = (byte)(p >>> 16);
+				b[20] = (byte)(p >>> 8);
+				b[21] = (byte)p;
+				hashes[i] = new long[]{hash(b, 0, b.length), s};
+			}
+		}
+		// ties are broken by server order so every ring agrees
+		Arrays.sort(hashes, (x, y) -> x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(x[1], y[1]));
+		points = new long[n];
+		owners = new InetSocketAddress[n];
+		for(int i = 0; i < n; i++) {
+			points[i] = hashes[i][0];
+			owners[i] = this.servers.get((int)hashes[i][1]);
+		}
+	}
+	
+	/**
+	 * Returns a <code>ShardRing</code> of the given servers.
+	 *
+	 * @param servers The socket addresses of the servers.
+	 * @return Returns a <code>ShardRing</code> of the given servers.
+	 */
+	public static ShardRing of(InetSocketAddress... servers) {
+		return new ShardRing(Arrays.asList(servers));
+	}
+	
+	/**
+	 * Returns the server owning the address.
+	 *
+	 * @param address The address.
+	 * @return Returns the socket address of the server owning the address.
+	 */
+	public InetSocketAddress owner(Address address) {
+		return owner(address.bytes(), 0);
+	}
+	
+	/**
+	 * Returns the server owning the raw 20 byte address, without allocating.
+	 *
+	 * @param address The array holding the address.
+	 * @param offset The offset of the address.
+	 * @return Returns the socket address of the server owning the address.
+	 */
+	public InetSocketAddress owner(byte[] address, int offset) {
+		if(owners.length == 1) return owners[0];
+		return owners[index(address, offset)];
+	}
+	
+	/**
+	 * Returns the servers holding the address, starting with its owner.
+	 *
+	 * @param address The address.
+	 * @return Returns the socket addresses of the servers holding the address.
+	 */
+	public List<InetSocketAddress> replicas(Address address) {
+		if(replicas == 1) return List.of(owner(address));
+		var result = new ArrayList<InetSocketAddress>(replicas);
+		var i = index(address.bytes(), 0);
+		for(int n = 0; n < owners.length && result.size() < replicas; n++) {
+			var server = owners[(i + n) % owners.length];
+			if(!result.contains(server)) result.add(server);
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the number of servers holding each address.
+	 *
+	 * @return Returns the number of servers holding each address.
+	 */
+	public int replicas() {
+		return replicas;
+	}
+	
+	/**
+	 * Returns <code>true</code> if the socket address is one of the servers.
+	 *
+	 * @param server The socket address to test.
+	 * @return Returns <code>true</code> if the socket address is one of the servers.
+	 */
+	public boolean contains(SocketAddress server) {
+		return servers.contains(server);
+	}
+	
+	/**
+	 * Returns the servers in the order given.
+	 *
+	 * @return Returns the servers in the order given.
+	 */
+	public List<InetSocketAddress> servers() {
+		return servers;
+	}
+	
+	@Override
+	public String toString() {
+		return "ShardRing" + servers;
+	}
+	
+	// index of the first point following the hash of the address
+	private int index(byte[] address, int offset) {
+		var h = hash(address, offset, Registry.ADDRESS_LENGTH);
+		var i = Arrays.binarySearch(points, h);
+		if(i < 0) i = -i - 1;
+		return i == points.length ? 0 : i;
+	}
+	
+	// FNV-1a 64 with a murmur finalizer to spread short and similar inputs
+	private static long hash(byte[] b, int off, int len) {
+		var h = 0xcbf29ce484222325L;
+		for(int i = off; i < off + len; i++) h = (h ^ (b[i] & 0xff)) * 0x100000001b3L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+}
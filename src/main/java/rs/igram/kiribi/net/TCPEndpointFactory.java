@@ -25,15 +25,28 @@
 package rs.igram.kiribi.net;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.channels.AcceptPendingException;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import rs.igram.kiribi.io.VarInputStream;
@@ -44,9 +57,84 @@ import rs.igram.kiribi.io.VarOutputStream;
  * @author Michael Sargent
  */
 public abstract class TCPEndpointFactory {
+	// session resumption tickets
+	static final Sessions sessions = new Sessions();
+	// accepted connection handshakes
+	static final HandshakePool handshakePool = new HandshakePool();
+	// hands accepted endpoints to consumers off the handshake threads
+	private static final ExecutorService dispatcher = Executors.newCachedThreadPool(r -> {
+		var t = new Thread(r, "tcp-dispatch");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	// flushes coalesced writes, created once an endpoint coalesces
+	private static final class Timers {
+		static final NetworkExecutor executor = new NetworkExecutor();
+	}
+	
+	/** The longest opening an endpoint waits for the connection in seconds. */
+	public static final long CONNECT_TIMEOUT = 5;
+	/** The default number of channel group threads: one per core. */
+	public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+	// options and channel group of endpoints opened from here on
+	private static TCPOptions options = TCPOptions.LOW_LATENCY;
+	private static AsynchronousChannelGroup group;
+	private static final AtomicInteger GROUPS = new AtomicInteger();
 	
 	private TCPEndpointFactory() {}
 
+	/**
+	 * Sets the socket options and the number of channel group threads used 
+	 * by endpoints opened after this call.
+	 *
+	 * <p>Endpoints already open keep their options and threads, which exit 
+	 * once the last of those endpoints is closed.</p>
+	 *
+	 * @param options The socket options applied to new endpoints.
+	 * @param threads The number of threads completing socket operations.
+	 * @throws IOException if there was a problem creating the channel group.
+	 * @throws IllegalArgumentException if <code>threads</code> is less than one.
+	 */
+	public static synchronized void configure(TCPOptions options, int threads) throws IOException {
+		if(threads < 1) throw new IllegalArgumentException("Threads must be positive: "+threads);
+		
+		var previous = group;
+		group = group(threads);
+		TCPEndpointFactory.options = options;
+		if(previous != null) previous.shutdown();
+	}
+
+	/**
+	 * Returns the socket options applied to new endpoints.
+	 *
+	 * @return The socket options applied to new endpoints.
+	 */
+	public static synchronized TCPOptions options() {
+		return options;
+	}
+	
+	// dedicated group so socket completions do not share the default pool
+	private static AsynchronousChannelGroup group(int threads) throws IOException {
+		var id = GROUPS.incrementAndGet();
+		var count = new AtomicInteger();
+		return AsynchronousChannelGroup.withFixedThreadPool(threads, r -> {
+			var t = new Thread(r, "tcp-io-" + id + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	private static synchronized AsynchronousSocketChannel channel() throws IOException {
+		if(group == null) group = group(DEFAULT_THREADS);
+		return AsynchronousSocketChannel.open(group);
+	}
+	
+	private static synchronized AsynchronousServerSocketChannel serverChannel() throws IOException {
+		if(group == null) group = group(DEFAULT_THREADS);
+		return AsynchronousServerSocketChannel.open(group);
+	}
+
 	/**
 	 * Returns an endpoint.
 	 *
@@ -59,9 +147,85 @@ public abstract class TCPEndpointFactory {
 	public static Endpoint open(SocketAddress address)
 		throws IOException, InterruptedException, ExecutionException {
 
-		final var channel = AsynchronousSocketChannel.open();
-		channel.connect(address).get();
-		return new ChannelEndpoint(channel).connect(true);
+		return open(address, 0, 0);
+	}
+
+	/**
+	 * Returns an endpoint which coalesces small writes.
+	 *
+	 * <p>Writes which encode to less than <code>threshold</code> bytes are
+	 * buffered and sent as a single frame once the buffer reaches the
+	 * threshold, <code>window</code> milliseconds pass or 
+	 * {@link Endpoint#flush()} is called.
+	 *
+	 * @param address The <code>SocketAddress</code> to connect to.
+	 * @param window The longest a buffered write waits in milliseconds,
+	 * 0 to disable coalescing.
+	 * @param threshold The buffer size in bytes which triggers a send.
+	 * @return Returns an endpoint.
+	 * @throws IOException if there was a problem opening the endpoint.
+	 * @throws InterruptedException if the provider was interrupted while opening the endpoint.
+	 * @throws ExecutionException if there was a problem opening the endpoint.
+	 */
+	public static Endpoint open(SocketAddress address, long window, int threshold)
+		throws IOException, InterruptedException, ExecutionException {
+
+		return open(address, window, threshold, options());
+	}
+
+	/**
+	 * Returns an endpoint which coalesces small writes using the given socket options.
+	 *
+	 * @param address The <code>SocketAddress</code> to connect to.
+	 * @param window The longest a buffered write waits in milliseconds,
+	 * 0 to disable coalescing.
+	 * @param threshold The buffer size in bytes which triggers a send.
+	 * @param options The socket options to apply.
+	 * @return Returns an endpoint.
+	 * @throws IOException if there was a problem opening the endpoint, or the 
+	 * connection or handshake timed out.
+	 * @throws InterruptedException if the provider was interrupted while opening the endpoint.
+	 * @throws ExecutionException if there was a problem opening the endpoint.
+	 * @see #open(SocketAddress, long, int)
+	 * @see #CONNECT_TIMEOUT
+	 */
+	public static Endpoint open(SocketAddress address, long window, int threshold, TCPOptions options)
+		throws IOException, InterruptedException, ExecutionException {
+
+		final var channel = channel();
+		try{
+			options.apply(channel);
+			channel.connect(address).get(CONNECT_TIMEOUT, TimeUnit.SECONDS);
+		}catch(IOException | InterruptedException | ExecutionException e){
+			channel.close();
+			throw e;
+		}catch(TimeoutException e){
+			channel.close();
+			throw new SocketTimeoutException("Connect to " + address + " timed out");
+		}
+		var endpoint = new ChannelEndpoint(channel);
+		if(window > 0) endpoint.coalesce(window, threshold, Timers.executor);
+		// a silent server fails the handshake rather than blocking the caller
+		endpoint.deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(SecureEndpoint.HANDSHAKE_TIMEOUT);
+		try{
+			endpoint.connect(true);
+		}catch(IOException e){
+			channel.close();
+			throw e;
+		}finally{
+			endpoint.deadline = 0;
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Returns the pool running the handshakes of accepted connections,
+	 * which also provides handshake metrics.
+	 *
+	 * @return The pool running the handshakes of accepted connections.
+	 */
+	public static HandshakePool handshakePool() {
+		return handshakePool;
 	}
 
 	/**
@@ -74,26 +238,163 @@ public abstract class TCPEndpointFactory {
 	public static ServerEndpoint server(SocketAddress socketAddress) 
 		throws IOException {	
 			
-		final var channel = AsynchronousServerSocketChannel.open();
-		channel.bind(socketAddress);
-		return  new ServerChannelEndpoint(channel);
+		return server(socketAddress, options());
 	}
 
+	/**
+	 * Returns a server endpoint which applies the given socket options to
+	 * accepted connections.
+	 *
+	 * @param socketAddress The <code>SocketAddress</code> to listen on.
+	 * @param options The socket options to apply.
+	 * @return Returns a server endpoint.
+	 * @throws IOException if there was a problem opening the endpoint.
+	 */
+	public static ServerEndpoint server(SocketAddress socketAddress, TCPOptions options) 
+		throws IOException {	
+			
+		final var channel = serverChannel();
+		try{
+			options.apply(channel);
+			channel.bind(socketAddress, options.backlog);
+		}catch(IOException e){
+			channel.close();
+			throw e;
+		}
+		return  new ServerChannelEndpoint(channel, options);
+	}
+
+	// framed endpoint driven by completion handlers - no thread is held
+	// unless a caller blocks in read, and an idle connection keeps only
+	// the smallest read buffer
 	static class ChannelEndpoint extends SecureEndpoint {
-		private AsynchronousSocketChannel channel;
-		private VarInputStream in;
-		private VarOutputStream out;
+		// read buffer bounds
+		static final int MIN_BUFFER = 512;
+		static final int MAX_BUFFER = 64 * 1024;
+		// unread or unsent bytes beyond which reads pause and writers wait
+		static final int MAX_QUEUED = 1024 * 1024;
+		// longest close waits for queued writes in millis
+		static final long CLOSE_TIMEOUT = 1000;
+		// longest a blocked reader waits before rechecking the channel in millis
+		static final long POLL_INTERVAL = 1000;
+		// longest a read of a listened endpoint waits for the rest of a message in millis
+		static final long STALL_TIMEOUT = 5000;
+		private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+		
+		private final AsynchronousSocketChannel channel;
+		private final Input input = new Input();
+		private final VarInputStream in = new VarInputStream(input);
+		// queued frames, the head is being written
+		private final Deque<ByteBuffer> writes = new ArrayDeque<>();
+		private long unsent;
+		private IOException failure;
+		// time in millis after which blocked reads fail, 0 for none
+		volatile long deadline;
+		// run when bytes arrive, null if reads block for input
+		private volatile Runnable listener;
+		
+		private final CompletionHandler<Integer,ByteBuffer> reader = new CompletionHandler<>() {
+			@Override
+			public void completed(Integer n, ByteBuffer buf) {
+				if(n < 0){
+					input.end(null);
+					notifyReadable();
+					return;
+				}
+				// grow when filled, shrink when mostly empty
+				var size = buf.capacity();
+				var next = n == size ? Math.min(size * 2, MAX_BUFFER) : n < size / 4 ? Math.max(size / 2, MIN_BUFFER) : size;
+				buf.flip();
+				if(input.add(buf, next)) receive(next);
+				notifyReadable();
+			}
+			
+			@Override
+			public void failed(Throwable t, ByteBuffer buf) {
+				input.end(t);
+				notifyReadable();
+			}
+		};
+		
+		private final CompletionHandler<Integer,ByteBuffer> writer = new CompletionHandler<>() {
+			@Override
+			public void completed(Integer n, ByteBuffer buf) {
+				synchronized(writes){
+					if(buf.hasRemaining()){
+						channel.write(buf, buf, this);
+						return;
+					}
+					unsent -= buf.limit();
+					writes.poll();
+					writes.notifyAll();
+					var next = writes.peek();
+					if(next != null) channel.write(next, next, this);
+				}
+			}
+			
+			@Override
+			public void failed(Throwable t, ByteBuffer buf) {
+				synchronized(writes){
+					failure = t instanceof IOException ? (IOException)t : new IOException(t);
+					writes.clear();
+					unsent = 0;
+					writes.notifyAll();
+				}
+			}
+		};
 
 		ChannelEndpoint(AsynchronousSocketChannel channel) {
 			this.channel = channel;
-			in = new VarInputStream(Channels.newInputStream(channel));
-			out = new VarOutputStream(Channels.newOutputStream(channel));
+			sessions = TCPEndpointFactory.sessions;
+			receive(MIN_BUFFER);
+		}
+		
+		private void receive(int size) {
+			var buf = ByteBuffer.allocate(size);
+			try{
+				channel.read(buf, buf, reader);
+			}catch(Exception e){
+				input.end(e);
+			}
+		}
+		
+		private void notifyReadable() {
+			var l = listener;
+			if(l != null) l.run();
+		}
+		
+		@Override
+		public boolean readable(Runnable listener) {
+			this.listener = listener;
+			return true;
+		}
+		
+		@Override
+		protected boolean hasRawInput() {
+			return !input.isEmpty();
+		}
+		
+		@Override
+		protected Object sessionKey() throws IOException {
+			return channel.getRemoteAddress();
 		}
 
 		@Override
 		protected void writeRaw(byte[] b) throws IOException {
+			var out = new VarOutputStream();
 			out.writeBytes(b);
-			out.flush();
+			var frame = ByteBuffer.wrap(out.toByteArray());
+			synchronized(writes){
+				try{
+					while(unsent > MAX_QUEUED && failure == null) writes.wait();
+				}catch(InterruptedException e){
+					throw new InterruptedIOException();
+				}
+				if(failure != null) throw failure;
+				unsent += frame.limit();
+				writes.add(frame);
+				if(writes.size() == 1) channel.write(frame, frame, writer);
+			}
 		}
 		
 		@Override
@@ -103,22 +404,134 @@ public abstract class TCPEndpointFactory {
 
 		@Override
 		public boolean isOpen() {return channel.isOpen();}
+		
+		// open with nothing unread and no failed write - safe to reuse
+		boolean isIdle() {
+			synchronized(writes){
+				if(failure != null) return false;
+			}
+			return channel.isOpen() && input.isEmpty();
+		}
 
 		@Override
 		public void close() throws IOException {
-			if(channel != null && channel.isOpen()) channel.close();
+			if(channel != null && channel.isOpen()) {
+				try {
+					flush();
+					// let queued frames go out
+					synchronized(writes){
+						var deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+						var wait = CLOSE_TIMEOUT;
+						while(!writes.isEmpty() && failure == null && wait > 0){
+							writes.wait(wait);
+							wait = deadline - System.currentTimeMillis();
+						}
+					}
+				} catch(InterruptedException e) {
+					// close anyway
+				} finally {
+					channel.close();
+				}
+			}
 		}
 		
 		public SocketAddress remote() throws IOException {
 			return channel.getRemoteAddress();
 		}
+		
+		// received bytes handed from the read handler to blocking readers
+		private class Input extends InputStream {
+			private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<>();
+			private ByteBuffer current;
+			private int queued;
+			// size of the next read once resumed, 0 if reading
+			private int paused;
+			private volatile IOException error;
+			
+			// returns false if reading should pause until bytes are consumed
+			synchronized boolean add(ByteBuffer b, int next) {
+				queued += b.remaining();
+				chunks.add(b);
+				if(queued <= MAX_QUEUED) return true;
+				paused = next;
+				return false;
+			}
+			
+			boolean isEmpty() {
+				return (current == null || !current.hasRemaining()) && chunks.isEmpty();
+			}
+			
+			void end(Throwable t) {
+				if(t != null) error = t instanceof IOException ? (IOException)t : new IOException(t);
+				chunks.add(EOF);
+			}
+			
+			private synchronized void consumed(int n) {
+				queued -= n;
+				if(paused > 0 && queued <= MAX_QUEUED / 2){
+					var size = paused;
+					paused = 0;
+					receive(size);
+				}
+			}
+			
+			// returns false at the end of the stream
+			private boolean fill() throws IOException {
+				if(current != null && current.hasRemaining()) return true;
+				// a listened endpoint is only read once input arrived, so a 
+				// stalled message must not hold the reading thread
+				var stall = listener == null ? 0 : System.currentTimeMillis() + STALL_TIMEOUT;
+				try{
+					// recheck in case the channel closed without ending the input
+					while((current = chunks.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) == null){
+						if(!channel.isOpen()) throw new ClosedChannelException();
+						var now = System.currentTimeMillis();
+						if((deadline != 0 && now > deadline) || (stall != 0 && now > stall)) throw new SocketTimeoutException("Read timed out");
+					}
+				}catch(InterruptedException e){
+					throw new InterruptedIOException();
+				}
+				if(current == EOF){
+					// leave the marker for the next read
+					chunks.add(EOF);
+					if(error != null) throw error;
+					return false;
+				}
+				return true;
+			}
+			
+			@Override
+			public int read() throws IOException {
+				if(!fill()) return -1;
+				var b = current.get() & 0xff;
+				consumed(1);
+				return b;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len == 0) return 0;
+				if(!fill()) return -1;
+				var n = Math.min(len, current.remaining());
+				current.get(b, off, n);
+				consumed(n);
+				return n;
+			}
+			
+			@Override
+			public int available() {
+				return current == null ? 0 : current.remaining();
+			}
+		}
 	}
 
 	static class ServerChannelEndpoint implements ServerEndpoint {
 		AsynchronousServerSocketChannel channel;
+		final TCPOptions options;
 
-		ServerChannelEndpoint(AsynchronousServerSocketChannel channel) {
+		ServerChannelEndpoint(AsynchronousServerSocketChannel channel, TCPOptions options) {
 			this.channel = channel;
+			this.options = options;
 		}
 
 		@Override
@@ -131,12 +544,24 @@ public abstract class TCPEndpointFactory {
 							if(channel.isOpen()){
 								channel.accept(null, this);
 							}
-							try{
-								var endpoint = new ChannelEndpoint(c).connect(false);
-								consumer.accept(endpoint);
-							}catch(IOException e){
-								// couldn't connect - chuck
-							}
+							handshakePool.submit(() -> {
+									options.apply(c);
+									return new ChannelEndpoint(c).connect(false);
+								})
+								// a silent peer is dropped and frees the handshake thread
+								.orTimeout(SecureEndpoint.HANDSHAKE_TIMEOUT, TimeUnit.SECONDS)
+								.whenCompleteAsync((endpoint, e) -> {
+									if(e == null){
+										consumer.accept(endpoint);
+									}else{
+										// couldn't connect or overloaded - chuck
+										try{
+											c.close();
+										}catch(IOException x){
+											// ignore
+										}
+									}
+								}, dispatcher);
 						}
 						@Override
 						public void failed(Throwable t, Object attachment) {
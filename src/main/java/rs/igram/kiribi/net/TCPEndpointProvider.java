@@ -27,7 +27,19 @@ package rs.igram.kiribi.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import rs.igram.kiribi.net.stack.lookup.Lookup;
 /**
@@ -37,13 +49,29 @@ import rs.igram.kiribi.net.stack.lookup.Lookup;
  */
 final class TCPEndpointProvider extends EndpointProvider {
 	final AddressMapper mapper;
+	// shut down with this provider
+	final NetworkExecutor executor = new NetworkExecutor();
+	// established endpoints by connection address, closing a borrowed endpoint returns it
+	final EndpointPool<ConnectionAddress> pool = new EndpointPool<>(TCPEndpointProvider::reusable);
+	// carry all services to a peer over one connection
+	final boolean multiplex;
+	// multiplexed connections by peer address
+	private final Map<Address,CompletableFuture<TCPMUX>> muxes = new HashMap<>();
+	// multiplexed connections accepted by the server
+	private final Set<TCPMUX> accepted = ConcurrentHashMap.newKeySet();
+	private ScheduledFuture<?> eviction;
 	private ServerEndpoint server;
 	private boolean initialized = false;
 	
 	public TCPEndpointProvider(AddressMapper mapper) {
+		this(mapper, false);
+	}
+	
+	public TCPEndpointProvider(AddressMapper mapper, boolean multiplex) {
 		super(mapper.socketAddress, mapper.address);
 		
 		this.mapper = mapper;
+		this.multiplex = multiplex;
 	}
 
 	@Override
@@ -51,14 +79,107 @@ final class TCPEndpointProvider extends EndpointProvider {
 		throws IOException, InterruptedException {
 
 		init();
-		var remoteAddress = mapper.lookup(address.address);
+		if (multiplex) {
+			var mux = mux(address.address);
+			return mux == null ? null : mux.open(address.id);
+		}
+		return pool.borrow(address, () -> {
+			try{
+				return connect(address.address);
+			}catch(InterruptedException e){
+				throw new IOException(e);
+			}
+		});
+	}
+	
+	// opens a connection to the resolved address - a resolution which 
+	// could not be connected to is discarded from the mapper's cache
+	private Endpoint connect(Address address) throws IOException, InterruptedException {
+		var remoteAddress = mapper.lookup(address);
 		if (remoteAddress == null) return null;
 		try{
 			return TCPEndpointFactory.open(remoteAddress);
-		}catch(Exception e){
-			throw new IOException(e);
+		}catch(IOException e){
+			mapper.invalidate(address);
+			throw e;
+		}catch(ExecutionException e){
+			mapper.invalidate(address);
+			throw new IOException(e.getCause());
 		}
 	}
+	
+	// returns the multiplexed connection to the peer, opening it if needed
+	private TCPMUX mux(Address address) throws IOException, InterruptedException {
+		CompletableFuture<TCPMUX> future;
+		var opener = false;
+		synchronized(muxes) {
+			future = muxes.get(address);
+			if (future == null) {
+				future = new CompletableFuture<>();
+				muxes.put(address, future);
+				opener = true;
+			}
+		}
+		if (opener) {
+			try{
+				var endpoint = connect(address);
+				var mux = endpoint == null ? null : new TCPMUX(address, (SecureEndpoint)endpoint, TCPEndpointProvider::refuse);
+				if (mux == null) {
+					synchronized(muxes) {
+						muxes.remove(address);
+					}
+				}
+				future.complete(mux);
+			}catch(Exception e){
+				synchronized(muxes) {
+					muxes.remove(address);
+				}
+				future.completeExceptionally(e);
+			}
+		}
+		try{
+			return future.get();
+		}catch(ExecutionException e){
+			var cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof InterruptedException) throw (InterruptedException)cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	// services are only opened by the connecting side
+	private static void refuse(Endpoint endpoint) {
+		try{
+			endpoint.close();
+		}catch(IOException e){
+			// ignore
+		}
+	}
+	
+	// number of accepted multiplexed connections
+	int accepted() {
+		return accepted.size();
+	}
+	
+	private static boolean reusable(Endpoint endpoint) {
+		return endpoint instanceof TCPEndpointFactory.ChannelEndpoint 
+			&& ((TCPEndpointFactory.ChannelEndpoint)endpoint).isIdle();
+	}
+
+	@Override
+	public Map<ConnectionAddress,Future<Endpoint>> openAll(Collection<ConnectionAddress> addresses, int parallelism) {
+		// resolve every peer in one round trip so the opens are answered from the mapper's cache
+		if (mapper.cache() != null) {
+			try{
+				mapper.lookupAll(addresses.stream().map(a -> a.address).distinct().collect(Collectors.toList()));
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}catch(Exception e){
+				// resolved one at a time by each open
+			}
+		}
+		return openAll(addresses, parallelism, executor);
+	}
 
 	@Override
 	public ServerEndpoint server() 
@@ -68,6 +189,7 @@ final class TCPEndpointProvider extends EndpointProvider {
 		if (server == null || !server.isOpen())  {		
 			mapper.register();
 			server =  TCPEndpointFactory.server(socketAddress);
+			if (multiplex) server = new MUXServer(server);
 		}
 		
 		return server;
@@ -76,13 +198,25 @@ final class TCPEndpointProvider extends EndpointProvider {
 	@Override
 	public void shutdown() {
 		synchronized(this) {
-			if (!initialized) return;
+			if (!initialized) {
+				executor.shutdown();
+				return;
+			}
 			try{
 				mapper.unregister();
 			}catch(Exception e){
 				// ignore
 			}
 			mapper.close();
+			eviction.cancel(false);
+			pool.close();
+			synchronized(muxes) {
+				muxes.values().forEach(f -> f.thenAccept(m -> { if (m != null) executor.submit(() -> m.dispose(false)); }));
+				muxes.clear();
+			}
+			accepted.forEach(m -> executor.submit(() -> m.dispose(false)));
+			// lets the disposals finish
+			executor.shutdown();
 			initialized = false;
 		}
 	}
@@ -91,7 +225,58 @@ final class TCPEndpointProvider extends EndpointProvider {
 		synchronized(this) {
 			if (initialized) return;
 			mapper.init();
+			var period = EndpointPool.DEFAULT_IDLE_TIMEOUT / 4;
+			eviction = executor.scheduleWithFixedDelay(pool::evict, period, period, TimeUnit.MILLISECONDS);
 			initialized = true;
 		}
 	}
+	
+	private final class TCPMUX extends MUX<SecureEndpoint> {
+		// null if accepted
+		final Address address;
+		
+		TCPMUX(Address address, SecureEndpoint root, Consumer<Endpoint> consumer) {
+			super(root, consumer, executor);
+			this.address = address;
+		}
+		
+		@Override
+		protected void onFailed(IOException e) {
+			executor.submit(() -> dispose(false));
+		}
+		
+		@Override
+		protected void onDisposed(MUX<SecureEndpoint> mux) {
+			accepted.remove(this);
+			if (address == null) return;
+			synchronized(muxes) {
+				var future = muxes.get(address);
+				if (future != null && future.getNow(null) == this) muxes.remove(address);
+			}
+		}
+	}
+	
+	// wraps each accepted connection in a mux handing its services to the consumer
+	private final class MUXServer implements ServerEndpoint {
+		final ServerEndpoint server;
+		
+		MUXServer(ServerEndpoint server) {
+			this.server = server;
+		}
+		
+		@Override
+		public void accept(Consumer<Endpoint> consumer) throws IOException {
+			server.accept(e -> accepted.add(new TCPMUX(null, (SecureEndpoint)e, consumer)));
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return server.isOpen();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			server.close();
+		}
+	}
 }
@@ -0,0 +1,97 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+
+import static java.net.StandardSocketOptions.*;
+
+/**
+ * Socket options applied to TCP endpoints on both the connecting and the 
+ * accepting side.
+ *
+ * <p>A buffer size or backlog of 0 leaves the platform default in place.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class TCPOptions {
+	/** Platform defaults, Nagle's algorithm enabled. */
+	public static final TCPOptions PLATFORM = new TCPOptions(false, false, 0, 0, 0);
+	/** Nagle's algorithm disabled and keep alive enabled - the default. */
+	public static final TCPOptions LOW_LATENCY = new TCPOptions(true, true, 0, 0, 128);
+	/** Low latency with 1 MB socket buffers for bulk transfers. */
+	public static final TCPOptions THROUGHPUT = new TCPOptions(true, true, 1024 * 1024, 1024 * 1024, 128);
+	
+	/** Whether Nagle's algorithm is disabled. */
+	public final boolean noDelay;
+	/** Whether keep alive probes are sent on idle connections. */
+	public final boolean keepAlive;
+	/** The socket send buffer size in bytes. */
+	public final int sendBuffer;
+	/** The socket receive buffer size in bytes. */
+	public final int receiveBuffer;
+	/** The maximum number of pending connections on a server socket. */
+	public final int backlog;
+	
+	/**
+	 * Initializes a newly created <code>TCPOptions</code> object.
+	 *
+	 * @param noDelay Whether Nagle's algorithm is disabled.
+	 * @param keepAlive Whether keep alive probes are sent on idle connections.
+	 * @param sendBuffer The socket send buffer size in bytes.
+	 * @param receiveBuffer The socket receive buffer size in bytes.
+	 * @param backlog The maximum number of pending connections on a server socket.
+	 * @throws IllegalArgumentException if a size or the backlog is negative.
+	 */
+	public TCPOptions(boolean noDelay, boolean keepAlive, int sendBuffer, int receiveBuffer, int backlog) {
+		if(sendBuffer < 0 || receiveBuffer < 0 || backlog < 0) throw new IllegalArgumentException("Negative option");
+		
+		this.noDelay = noDelay;
+		this.keepAlive = keepAlive;
+		this.sendBuffer = sendBuffer;
+		this.receiveBuffer = receiveBuffer;
+		this.backlog = backlog;
+	}
+	
+	// applied before connecting or to an accepted channel
+	void apply(AsynchronousSocketChannel channel) throws IOException {
+		channel.setOption(TCP_NODELAY, noDelay);
+		channel.setOption(SO_KEEPALIVE, keepAlive);
+		if(sendBuffer > 0) channel.setOption(SO_SNDBUF, sendBuffer);
+		if(receiveBuffer > 0) channel.setOption(SO_RCVBUF, receiveBuffer);
+	}
+	
+	// applied before binding so accepted channels inherit the receive buffer
+	void apply(AsynchronousServerSocketChannel channel) throws IOException {
+		if(receiveBuffer > 0) channel.setOption(SO_RCVBUF, receiveBuffer);
+	}
+	
+	@Override
+	public String toString(){
+		return "TCPOptions[noDelay="+noDelay+",keepAlive="+keepAlive+",sendBuffer="+sendBuffer
+			+",receiveBuffer="+receiveBuffer+",backlog="+backlog+"]";
+	}
+}
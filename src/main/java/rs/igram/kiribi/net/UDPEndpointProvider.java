@@ -25,11 +25,7 @@
 package rs.igram.kiribi.net;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.io.UncheckedIOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -38,6 +34,7 @@ import java.net.NoRouteToHostException;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -51,6 +48,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -58,12 +56,6 @@ import java.util.stream.Collectors;
 import rs.igram.kiribi.crypto.KeyExchange;
 import rs.igram.kiribi.crypto.SignedData;
 import rs.igram.kiribi.io.ByteStream;
-import rs.igram.kiribi.io.Decoder;
-import rs.igram.kiribi.io.Encodable;
-import rs.igram.kiribi.io.VarInput;
-import rs.igram.kiribi.io.VarInputStream;
-import rs.igram.kiribi.io.VarOutput;
-import rs.igram.kiribi.io.VarOutputStream;
 import rs.igram.kiribi.net.stack.*;
 import rs.igram.kiribi.net.stack.natt.AddressNotRegisteredException;
 
@@ -86,8 +78,18 @@ final class UDPEndpointProvider extends EndpointProvider {
 	static final long DEFAULT_SEND_TIMEOUT = 30_000;
 	// activity timeout ms (30 minutes)
 	static final long DEFAULT_ACTIVITY_TIMEOUT = 30 * 60 * 1_000;
-	// activity sweep interval ms (3 seconds)
-	static final long DEFAULT_SWEEP_INTERVAL = 3_000;
+	// idle timing wheel tick ms (250 milliseconds)
+	static final long DEFAULT_TICK = 250;
+	// idle timing wheel buckets - 128 seconds per revolution
+	static final int DEFAULT_WHEEL_SIZE = 512;
+	// idle time after which a mux releases its reader and queue ms (1 minute)
+	static final long DEFAULT_HIBERNATE_TIMEOUT = 60 * 1_000;
+	// natt registration renewal ms (24 seconds) - well inside the server lease
+	static final long REGISTRATION_INTERVAL = 24 * 1_000;
+	// queue sentinel used to release a blocked reader
+	private static final byte[] RELEASE = new byte[0];
+	// longest a blocked reader waits before rechecking the endpoint ms
+	static final long POLL_INTERVAL = 1_000;
 	
 	static final boolean isIPV6Supported = false;
 
@@ -95,30 +97,46 @@ final class UDPEndpointProvider extends EndpointProvider {
 	final NetworkExecutor executor;
 	
 	final Object lock = new Object(){};
-	final SocketAddress serverAddress;
+	// the NATT servers, each owning a shard of the address space
+	final ShardRing servers;
 	final Map<SocketAddress,Address> addresses = new HashMap<>();
 	final Map<SocketAddress,Muxx> muxes = new HashMap<>();
 	final Map<Address,Muxx> map = new HashMap<>();
 	// local connections (from/to ourself)
-	final Map<Long,LocalConnection> localConnections = new HashMap<>();
+	final Map<Long,LoopbackConnection> localConnections = Collections.synchronizedMap(new HashMap<>());
+	// in flight connection attempts
+	final Map<Address,CompletableFuture<Muxx>> pending = new HashMap<>();
+	// natt connects made
+	private final AtomicInteger connects = new AtomicInteger();
+	// session resumption tickets
+	final Sessions sessions = new Sessions();
+	private final HandshakePool handshakePool = new HandshakePool();
 	
 	private long activityTimeout = DEFAULT_ACTIVITY_TIMEOUT;
 	private long sendTimeout = DEFAULT_SEND_TIMEOUT;
-	private long sweepInterval = DEFAULT_SWEEP_INTERVAL;
+	long hibernateTimeout = DEFAULT_HIBERNATE_TIMEOUT;
+	private volatile long coalesceWindow;
+	private volatile int coalesceThreshold;
 	private ServerUDPEndpoint server = new ServerUDPEndpoint();
 	private Consumer<Endpoint> consumer;
 	private DatagramSocket nattSocket;
 	private DatagramStack stack;
-	private Future<?> activityMonitor;
+	// idle deadlines of mux root endpoints
+	private final TimingWheel<MUXEndpoint> wheel;
 	private boolean initialized = false;
 	private InetSocketAddress socketAddress;
 	
 	public UDPEndpointProvider(InetSocketAddress socketAddress, Address address, SocketAddress serverAddress) {
+		this(socketAddress, address, ShardRing.of((InetSocketAddress)serverAddress));
+	}
+	
+	public UDPEndpointProvider(InetSocketAddress socketAddress, Address address, ShardRing servers) {
 		super(socketAddress, address);
 		
-		this.serverAddress = serverAddress;
+		this.servers = servers;
 		
 		executor = new NetworkExecutor();
+		wheel = new TimingWheel<>(executor, DEFAULT_TICK, DEFAULT_WHEEL_SIZE, this::expired);
 	}
 
 	private void start() {
@@ -130,12 +148,18 @@ final class UDPEndpointProvider extends EndpointProvider {
 	}
 
 	private void startIPV4(InetSocketAddress socketAddress) {
-		stack = new DatagramIPV4Stack(executor, address, serverAddress, socketAddress, (s,b) -> accept(s, b), this::onIncoming, this::onExpired);
+		stack = new DatagramIPV4Stack(executor, address, servers, socketAddress, (s,b) -> accept(s, b), this::onIncoming, this::onExpired);
 		stack.configure();
 		stack.start();
 			
-		activityMonitor = executor.submit(this::monitorActivity);
+		wheel.start();
 			
+		register();
+		executor.scheduleWithFixedDelay(this::register, REGISTRATION_INTERVAL, REGISTRATION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	// registers with the natt server, renewing the registration lease
+	private void register() {
 		try{
 			stack.register();
 		}catch(Throwable t){
@@ -144,23 +168,34 @@ final class UDPEndpointProvider extends EndpointProvider {
 		}
 	}
 
-	private void monitorActivity() {
-		while(!Thread.currentThread().isInterrupted()) {
-			try {
-				TimeUnit.SECONDS.sleep(sweepInterval);
-			} catch(InterruptedException e) {
-				return;
-			}
-			synchronized(lock){
-				long now = System.currentTimeMillis();
-				muxes.values()
-					 .stream()
-					 .filter(m -> m.root.inactive(now))
-					 .collect(Collectors.toSet())
-					 .forEach(m -> m.dispose(true));
+	// idle deadline passed - hibernate the mux and wait for the activity 
+	// timeout, or dispose it if the activity timeout has passed
+	private void expired(MUXEndpoint ep) {
+		synchronized(lock){
+			var mux = muxes.get(ep.address);
+			if(mux == null || mux.root != ep || ep.isClosed) return;
+			
+			var idle = System.currentTimeMillis() - ep.mark;
+			if(idle >= activityTimeout) {
+				// dispose blocks while notifying the remote peer
+				executor.submit(() -> mux.dispose(true));
+			} else if(idle < hibernateTimeout) {
+				// touched concurrently with expiry
+				ep.timeout.touch(hibernateTimeout - idle);
+			} else {
+				// handshake still pending muxes are not hibernated
+				if(ep.flag == SecureEndpoint.DATA) mux.hibernate();
+				ep.timeout.touch(activityTimeout - idle);
 			}
 		}
 	}
+	
+	// number of hibernating muxes
+	int hibernating() {
+		synchronized(lock){
+			return (int)muxes.values().stream().filter(Muxx::isHibernating).count();
+		}
+	}
 /*	
 	private void kap(DatagramPacket p) {
 		if(kap != null) kap.process(p);
@@ -187,23 +222,16 @@ final class UDPEndpointProvider extends EndpointProvider {
 		
 		var id = address.id;
 		var host = address.address;
-		// result
-		Endpoint endpoint = null;
 		
 		// check here to avoid deadlock - see ServiceAdmin.initialize()
 		
 		// check if we are connecting to ourself
 		if(this.address.equals(host)) {
 			return localConnections.computeIfAbsent(id, k -> {
-				try {
-					var local = new LocalConnection();
-					// connect service
-					executor.submit(() -> consumer.accept(local.service));
-					return local;
-				} catch(IOException e) {
-					// shouldn't happen
-					throw new UncheckedIOException(e);
-				}
+				var local = new LoopbackConnection(() -> localConnections.remove(k));
+				// connect service
+				executor.submit(() -> consumer.accept(local.service));
+				return local;
 			}).proxy;
 		}
 
@@ -223,10 +251,56 @@ final class UDPEndpointProvider extends EndpointProvider {
 			}
 		}
 		
+		// coalesce concurrent connection attempts to the same host so that
+		// only one natt request, hole punch and handshake is in flight
+		CompletableFuture<Muxx> connection = null;
+		var owner = false;
+		synchronized(lock) {
+			// the owner maps the host before it stops pending, so a caller
+			// finding neither must connect
+			mux = map.get(host);
+			if(mux == null || mux.isClosed()) {
+				connection = pending.get(host);
+				if(connection == null) {
+					connection = new CompletableFuture<>();
+					pending.put(host, connection);
+					owner = true;
+				}
+			}
+		}
+		if(connection == null) return mux.open(id);
+		
+		if(owner) {
+			try {
+				connection.complete(connect(host));
+			} catch(Exception e) {
+				connection.completeExceptionally(e);
+			} finally {
+				synchronized(lock) {
+					pending.remove(host);
+				}
+			}
+		}
+		
+		try {
+			mux = connection.get();
+		} catch(ExecutionException e) {
+			var cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(cause);
+		}
+			
+		return mux.open(id);
+	}
+	
+	// natt connect and open mux - only called by the owner of the pending connection
+	private Muxx connect(Address host) throws IOException {
+		Muxx mux = null;
 		SocketAddress inet = null;
 		try{ 
 
 // TODO ADD CACHE BEGIN LOOP
+			connects.incrementAndGet();
 			inet = stack.connect(host);
 			// natt failed
 			if(inet == null) throw new IOException("CONNECT failed");
@@ -235,18 +309,21 @@ final class UDPEndpointProvider extends EndpointProvider {
 			synchronized(lock) {
 				mux = muxes.get(inet);
 				if(mux == null) {
-					mux = openMux(inet, true);
+					mux = openMux(inet, host, true);
 				} else if(mux.isClosed()) {
 					muxes.remove(inet);
-					mux = openMux(inet, true);
+					mux = openMux(inet, host, true);
 				}
 			}
 			// mux failed - shouldn't happen?
 			if(mux == null) throw new IOException("MUX failed");
 			
-			if(mux.address == null) mux.address = host;
+			// callers coalesced on this connection share the handshake, so 
+			// don't hand them a mux which may yet fail
+			mux.handshake.get(2 * SecureEndpoint.HANDSHAKE_TIMEOUT, TimeUnit.SECONDS);
+			if(mux.isClosed()) throw new IOException("Handshake failed");
 			
-			endpoint = mux.open(id);
+			if(mux.address == null) mux.address = host;
 // TODO ADD CACHE LOOP END			
 		//}
 		
@@ -269,7 +346,47 @@ final class UDPEndpointProvider extends EndpointProvider {
 		// kap
 //TODO		if(!isIPV6Supported) kap.add(inet);
 			
-		return endpoint;
+		return mux;
+	}
+
+	@Override
+	public Map<ConnectionAddress,Future<Endpoint>> openAll(Collection<ConnectionAddress> addresses, int parallelism) {
+		start();
+		return openAll(addresses, parallelism, executor);
+	}
+
+	/**
+	 * Returns the number of NATT connects this provider has made. Concurrent
+	 * opens of the same host share a single connect.
+	 *
+	 * @return The number of NATT connects made.
+	 */
+	public int connects() {
+		return connects.get();
+	}
+
+	/**
+	 * Returns the pool running this provider's handshakes, which also 
+	 * provides handshake metrics.
+	 *
+	 * @return The pool running this provider's handshakes.
+	 */
+	public HandshakePool handshakePool() {
+		return handshakePool;
+	}
+
+	/**
+	 * Coalesces small writes over each peer connection opened or accepted 
+	 * after this call. Writes from all services multiplexed to a peer share
+	 * the buffer, which is sent as a single frame.
+	 *
+	 * @param window The longest a buffered write waits in milliseconds,
+	 * 0 to disable coalescing.
+	 * @param threshold The buffer size in bytes which triggers a send.
+	 */
+	public void coalesce(long window, int threshold) {
+		coalesceWindow = window;
+		coalesceThreshold = threshold;
 	}
 
 	@Override
@@ -292,10 +409,10 @@ final class UDPEndpointProvider extends EndpointProvider {
 				TimeUnit.MILLISECONDS.sleep(300);
 			} catch(Exception z) {}
 			
-			if(activityMonitor != null) activityMonitor.cancel(true);
+			wheel.stop();
+			handshakePool.shutdown();
 			if(stack != null) stack.shutdown();
 		
-			activityMonitor = null;
 			stack = null;
 			map.clear();
 		}
@@ -313,7 +430,7 @@ final class UDPEndpointProvider extends EndpointProvider {
 
 	// rmp consumer
 	private void accept(SocketAddress address, byte[] data) {
-		var flag = data[0];
+		var flag = SecureEndpoint.control(data[0]);
 		// if already opened as proxy, 2nd arg to mux ignored so if 
 		// it doesn't already exit assume its a server
 		
@@ -323,12 +440,12 @@ final class UDPEndpointProvider extends EndpointProvider {
 			case SecureEndpoint.INIT:
 				if(mux == null) {
 					// open
-					mux = openMux(address, false);
+					mux = openMux(address, null, false);
 				} else {
 					// reset local peer
 					if(mux.root.flag != SecureEndpoint.INIT) resetMux(mux, address, false);
 				}
-				mux.root().receive(data);
+				mux.receive(data);
 				break;
 			case SecureEndpoint.DATA:
 				if(mux == null) {
@@ -339,7 +456,7 @@ final class UDPEndpointProvider extends EndpointProvider {
 					} catch(InterruptedException x) {}
 				} else {
 					// process
-					mux.root().receive(data);
+					mux.receive(data);
 				}
 				break;
 			case SecureEndpoint.RESET:
@@ -352,31 +469,38 @@ final class UDPEndpointProvider extends EndpointProvider {
 		}
 	}
 
-	private Muxx openMux(SocketAddress sa, boolean isProxy) {
+	private Muxx openMux(SocketAddress sa, Address host, boolean isProxy) {
 		var ep = new MUXEndpoint(sa);
+		ep.remote = host;
 		var mux = new Muxx(ep);
 		muxes.put(sa, mux);
-		executor.submit(() -> {
-			try {
-				ep.connect(isProxy);
-			} catch(Throwable e) {
-				muxes.remove(sa);
-				// todo ?
-			}
+		mux.handshake = ep.handshake(isProxy).whenComplete((r, e) -> {
+			if(e == null) return;
+			// dispose blocks while notifying the remote peer
+			executor.submit(() -> {
+				// close rather than leak its reader and endpoints
+				mux.dispose(false);
+				// tell the proxy rather than let it time out
+				if(!isProxy) refuse(sa);
+			});
 		});
 		
 		return mux;
 	}
 	
+	private void refuse(SocketAddress sa) {
+		try {
+			stack.send(sa, new byte[]{SecureEndpoint.CLOSE});
+		} catch(Exception e) {
+			// ignore
+		}
+	}
+	
 	private void resetMux(Muxx mux, SocketAddress sa, boolean isProxy) {
 		var ep = new MUXEndpoint(sa);
-		executor.submit(() -> {
-			try {
-				ep.connect(isProxy);
-			} catch(Exception e) {
-				muxes.remove(sa);
-				// todo ?
-			}
+		ep.remote = mux.address;
+		mux.handshake = ep.handshake(isProxy).whenComplete((r, e) -> {
+			if(e != null) executor.submit(() -> mux.dispose(false));
 		});
 		mux.reset(ep);
 	}
@@ -396,13 +520,40 @@ final class UDPEndpointProvider extends EndpointProvider {
 	
 	private final class Muxx extends MUX<MUXEndpoint> {
 		Address address;
+		// handshake of the root endpoint, disposing the mux if it fails
+		volatile CompletableFuture<?> handshake;
 		
 		Muxx(SocketAddress sa) {
 			this(new MUXEndpoint(sa));
 		}
 		
 		Muxx(MUXEndpoint root) {
-			super(root, consumer);			
+			super(root, consumer, executor);			
+		}
+		
+		// release the reader task and queue of an idle mux - the session
+		// state is kept so the mux can be woken without a new handshake
+		void hibernate() {
+			synchronized(lock) {
+				if(isClosed() || root.queue == null) return;
+				suspend();
+				root.release();
+			}
+		}
+		
+		// wake if hibernating and pass data to the root endpoint
+		void receive(byte[] data) {
+			synchronized(lock) {
+				if(root.queue == null && !root.isClosed) {
+					root.queue = new LinkedBlockingQueue<>();
+					resume();
+				}
+				root.receive(data);
+			}
+		}
+		
+		boolean isHibernating() {
+			return root.queue == null;
 		}
 		
 		@Override
@@ -410,44 +561,39 @@ final class UDPEndpointProvider extends EndpointProvider {
 		}
 		
 		@Override
-		protected void onDisposed(MUX mux) {
+		protected void onDisposed(MUX<MUXEndpoint> mux) {
+			// a replacement may be mapped already
 			synchronized(lock) {
-				map.remove(address);
-				muxes.remove(root.address);
+				if(address != null && map.get(address) == this) map.remove(address);
+				if(muxes.get(root.address) == this) muxes.remove(root.address);
 			}
 		}
 	}
 	
 	private final class MUXEndpoint extends SecureEndpoint {
-		final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+		// null while hibernating
+		volatile BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
 		final SocketAddress address;
 		boolean isClosed;
-		long mark;
+		volatile long mark = System.currentTimeMillis();
+		final TimingWheel<MUXEndpoint>.Timeout timeout;
 
 		MUXEndpoint(SocketAddress address) {
 			this.address = address;
+			sessions = UDPEndpointProvider.this.sessions;
+			coalesce(coalesceWindow, coalesceThreshold, executor);
+			timeout = wheel.schedule(this, hibernateTimeout);
 		}
 		
-		@Override
-		protected Endpoint connect(boolean isProxy) throws IOException {
-			var f = new CompletableFuture<Endpoint>();
-			executor.submit(() -> {
-				try {
-					Endpoint ep = super.connect(isProxy);
-					f.complete(ep);
-				} catch(IOException e) {
-					f.completeExceptionally(e);
-				}
-			});
-			
-			try {
-				return f.get(HANDSHAKE_TIMEOUT, TimeUnit.SECONDS);
-			} catch(InterruptedException e) {
-				// ignore
-				return null;
-			} catch(Exception e) {
-				throw new IOException(e);
-			}
+		// runs the handshake on the handshake pool without a thread waiting 
+		// for it - a silent peer times out, which interrupts the pool thread, 
+		// and a failed handshake closes this endpoint
+		CompletableFuture<Endpoint> handshake(boolean isProxy) {
+			return handshakePool.submit(() -> connect(isProxy))
+				.orTimeout(HANDSHAKE_TIMEOUT, TimeUnit.SECONDS)
+				.whenComplete((r, e) -> {
+					if(e != null) close();
+				});
 		}
 			
 		@Override
@@ -459,10 +605,11 @@ final class UDPEndpointProvider extends EndpointProvider {
 					throw new IOException("Send failed...");
 				} else {
 					// mark activity
-					if(b[0] == SecureEndpoint.DATA) mark = System.currentTimeMillis();
+					if(SecureEndpoint.control(b[0]) == SecureEndpoint.DATA) mark();
 				}
 			} catch(InterruptedException e) {
-				// ignore
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
 			} catch(TimeoutException e) {
 				throw new IOException(e);
 			} catch(ExecutionException e) {
@@ -473,29 +620,52 @@ final class UDPEndpointProvider extends EndpointProvider {
 		@Override
 		protected byte[] readRaw() throws IOException {
 			if(isClosed) throw new IOException("SecureEndpoint is closed");
+			var q = queue;
+			if(q == null) throw new IOException("SecureEndpoint is hibernating");
 			try {
-				return queue.take();
+				byte[] b;
+				// recheck in case the endpoint was closed without releasing the queue
+				while((b = q.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) == null) {
+					if(isClosed || queue != q) throw new IOException("SecureEndpoint is closed");
+				}
+				if(b == RELEASE) throw new IOException("SecureEndpoint released");
+				return b;
 			} catch(InterruptedException e) {
-				throw new IOException(e);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
 			}
 		}
 		
 		int receive(byte[] data) {
-			if(isClosed) return -1;
+			var q = queue;
+			if(isClosed || q == null) return -1;
 			// mark activity
-			if(data[0] == SecureEndpoint.DATA) mark = System.currentTimeMillis();
-			queue.add(data);
-			return queue.size();
+			if(SecureEndpoint.control(data[0]) == SecureEndpoint.DATA) mark();
+			q.add(data);
+			return q.size();
+		}
+		
+		// drop the queue and release a blocked reader
+		void release() {
+			var q = queue;
+			queue = null;
+			if(q != null) {
+				q.clear();
+				q.add(RELEASE);
+			}
 		}
 		
-		boolean inactive(long now) {
-			return now - mark > activityTimeout;
+		// record activity and push back the idle deadline
+		void mark() {
+			mark = System.currentTimeMillis();
+			timeout.touch(hibernateTimeout);
 		}
 		
 		@Override
 		public void close() {
 			isClosed = true;
-			queue.clear();
+			timeout.cancel();
+			release();
 			synchronized(lock) {
 				muxes.remove(address);
 				Address addr = addresses.remove(address);
@@ -509,279 +679,4 @@ final class UDPEndpointProvider extends EndpointProvider {
 			return !isClosed;
 		}
 	}
-	
-	// connection to ourself (same host address)
-	private class LocalConnection {
-		LocalEndpoint proxy;
-		LocalEndpoint service;
-		
-		LocalConnection() throws IOException {
-			var proxyIn = new PipedInputStream();
-			var serviceOut = new PipedOutputStream(proxyIn);
-			
-			var serviceIn = new PipedInputStream();
-			var proxyOut = new PipedOutputStream(serviceIn);
-			
-			proxy = new LocalEndpoint(proxyIn, proxyOut);
-			service = new LocalEndpoint(serviceIn, serviceOut);
-		}
-		
-		private class LocalEndpoint implements Endpoint {
-			private VarInputStream in;
-			private VarOutputStream out;
-
-			LocalEndpoint(InputStream i, OutputStream o) {
-				in = new VarInputStream(i);
-				out = new VarOutputStream(o);
-			}
-			
-			@Override
-			public void write(Encodable data) throws IOException {
-				out.write(data);
-			}
-
-			@Override
-			public <T> T read(Decoder<T> decoder) throws IOException {
-				return in.read(decoder);
-			}
-
-			@Override
-			public boolean isOpen() {return true;}
-
-			@Override
-			public void close() throws IOException {
-				// ignore
-			}
-		}
-	}
-		
-	// used by udp provider to multiplex services over a single address
-	class MUX<S extends SecureEndpoint> {
-		static final byte OPEN_SERVICE = 	 10;
-		static final byte TRANSFER_SERVICE = 11; 
-		static final byte CLOSE_SERVICE = 	 12;
-		
-		private final Map<Long,ServiceEndpoint> delegates = Collections.synchronizedMap(new HashMap<>());
-		private final Consumer<Endpoint> consumer;
-		
-		S root;
-		private Future<?> future;
-		private boolean isClosed;
-		private Address remote;
-		
-		MUX(S root, Consumer<Endpoint> consumer) {
-			this.root = root;
-			this.consumer = consumer;
-			
-			future = executor.submit(this::read);
-		}
-
-		void reset(S value) {
-			future.cancel(true);
-			delegates.values().forEach(ServiceEndpoint::setClosed);
-			delegates.clear();
-			try {
-				root.close();
-			} catch(Exception e) {
-				// ignore
-			}
-			isClosed = false;
-			root = value;
-			future = executor.submit(this::read);
-		}
-		
-		S root() {return root;}
-		
-		// created by client side for new outgoing session
-		public ServiceEndpoint open(long address) throws IOException {
-			if(isClosed) throw new IllegalStateException("MUX is closed");
-
-			return delegates.computeIfAbsent(address, k -> new ServiceEndpoint(address));
-		}
-
-		// pass off to delegate for processing
-		protected void process(long id, byte[] b) {
-			if(isClosed) return;
-			var delegate = delegates.get(id);
-			if(delegate == null) {
-				delegate = new ServiceEndpoint(id);
-				delegates.put(id, delegate);
-				final ServiceEndpoint ep = delegate;
-				executor.submit(() -> consumer.accept(ep));
-			}
-			delegate.queue.add(b);
-		}
-
-		protected void read() {
-			while(!Thread.interrupted()) {
-				if(isClosed) return;
-				try {
-					var packet = root.read(Packet::new);
-					switch(packet.action){
-					case OPEN_SERVICE:
-						break;
-					case TRANSFER_SERVICE:
-						process(packet.id, packet.data);
-						break;
-					case CLOSE_SERVICE:
-						close(packet.id);
-						break;
-					}
-				} catch(IOException e) {
-					return;
-				}
-			}
-		}
-		
-		protected void transfer(long id, byte[] data) throws IOException {
-			if(isClosed) return;
-			root.write(new Packet(id, data));
-		}
-		
-		// close delegate
-		protected void close(long id) {
-			if(!delegates.containsKey(id)) return;
-			try {
-				if(!isClosed) root.write(new Packet(id));
-			} catch(IOException e) {
-				// ignore
-			}
-			var delegate = delegates.remove(id);
-			if(delegate != null) {
-				delegate.setClosed();
-			}
-			// notify subclass
-			onClosed(id);
-		}
-		
-		// override as needed
-		protected void onClosed(long id) {}
-		
-		protected void write(long id, byte[] data) throws IOException {
-			if(isClosed) return;
-			root.write(new Packet(id, data));
-		}
-		
-		public synchronized void dispose(boolean notify) {
-			delegates.entrySet().forEach(e -> {
-				try {
-					root.write(new Packet(e.getKey()));
-				} catch(IOException ex) {
-					// ignore
-				}
-			});
-			delegates.clear();
-			// give some time to notify remote peers
-			try {
-				TimeUnit.MILLISECONDS.sleep(250);
-			} catch(Exception z) {
-				// ignore
-			}
-			
-			try {
-				if(notify) root.writeRaw(new byte[]{SecureEndpoint.CLOSE});
-				future.cancel(true);
-				root.close();
-			} catch(Exception e) {
-				// ignore
-			}
-			
-			isClosed = true;
-			
-			// notify subclass
-			onDisposed(this);
-		}
-			
-		// override as needed
-		protected void onDisposed(MUX mux) {}
-		
-		boolean isClosed() {return isClosed;}
-		
-		class ServiceEndpoint implements Endpoint {
-			final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
-			final long id;
-			private Consumer<ConnectionState> consumer;
-			private boolean isOpen = true;
-			
-			ServiceEndpoint(long id) {
-				this(id, null);
-			}
-			
-			ServiceEndpoint(long id, Consumer<ConnectionState> consumer) {
-				this.id = id;
-				this.consumer = consumer;
-			}
-			
-			@Override
-			public void state(Consumer<ConnectionState> consumer) {
-				this.consumer = consumer;
-			}
-			
-			@Override
-			public void write(Encodable data) throws IOException {
-				if(!isOpen) throw new IOException("Endpoint not open");
-				
-				MUX.this.transfer(id, data.encode());
-			}
-
-			@Override
-			public <T> T read(Decoder<T> decoder) throws IOException {
-				if(!isOpen) throw new IOException("Endpoint not open");
-				
-				try {
-					return decoder.decode(queue.take());
-				} catch(InterruptedException e) {
-					return null;
-				}
-			}
-			
-			@Override
-			public boolean isOpen() {
-				return isOpen;
-			}
-
-			@Override
-			public void close() throws IOException {
-				isOpen = false;
-				MUX.this.close(id);
-			}
-			
-			private void setClosed() {
-				if(consumer != null) {
-					executor.submit(() -> consumer.accept(ConnectionState.CLOSED));
-				}
-			}
-		}
-		
-		class Packet implements Encodable {
-			final byte action;
-			final long id;
-			final byte[] data;
-		
-			Packet(long id, byte[] data) {
-				action = TRANSFER_SERVICE;
-				this.id = id;
-				this.data = data;
-			}
-			
-			Packet(long id) {
-				action = CLOSE_SERVICE;
-				this.id = id;
-				this.data = new byte[0];
-			}
-			
-			public Packet(VarInput in) throws IOException {
-				action = in.readByte();
-				id = in.readLong();
-				data = in.readBytes();
-			}
-			
-			@Override
-			public void write(VarOutput out) throws IOException {
-				out.writeByte(action);
-				out.writeLong(id);
-				out.writeBytes(data);
-			}
-		}
-	}
 }
@@ -25,42 +25,207 @@
 package rs.igram.kiribi.net.lookup;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.util.concurrent.TimeoutException;
-import java.util.Collections;
-import java.util.HashMap;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
 
+import rs.igram.kiribi.io.ByteUtils;
 import rs.igram.kiribi.io.EncodableBytes;
 import rs.igram.kiribi.io.VarInputStream;
 import rs.igram.kiribi.io.VarOutputStream;
 import rs.igram.kiribi.net.Address;
 import rs.igram.kiribi.net.Endpoint;
+import rs.igram.kiribi.net.NetworkExecutor;
 import rs.igram.kiribi.net.TCPEndpointFactory;
 import rs.igram.kiribi.net.ServerEndpoint;
+import rs.igram.kiribi.net.stack.Leases;
+import rs.igram.kiribi.net.stack.NetworkMux;
+import rs.igram.kiribi.net.stack.NetworkProtocol;
+import rs.igram.kiribi.net.stack.Registry;
+import rs.igram.kiribi.net.stack.RegistryStore;
+import rs.igram.kiribi.net.stack.lookup.NLPProcessor;
+import rs.igram.kiribi.net.ShardRing;
+
+import static java.util.logging.Level.*;
 
 import static rs.igram.kiribi.net.stack.lookup.LookupProtocol.*;
 
 /**
  * Simple Lookup server.
  *
+ * <p>In a cluster whose ring holds each address on several servers, any of 
+ * an address's replicas serves its requests and passes registrations and 
+ * unregistrations on to the others asynchronously. Each registration is 
+ * stamped by the server accepting it with a clock which never runs behind 
+ * the stamps it has seen, and replicas keep the latest. Unregistrations 
+ * leave no trace, so an older registration arriving after one is held until 
+ * its lease ends.</p>
+ *
+ * <p>A server may also serve the datagram stack's lookups and signed 
+ * registrations, one datagram each way, on the UDP port of the socket 
+ * address it listens on. Servers of a cluster redirect datagrams to the 
+ * same socket address of the owner as connections.</p>
+ *
  * @author Michael Sargent
  */
 public final class LookupServer {
+	private static final Logger LOGGER = Logger.getLogger(LookupServer.class.getName());
+	
 	/** Default server port. */
 	public static final int SERVER_PORT = 7732;
+	/** Default registration lease in milliseconds: 5 minutes. */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+	/** Interval between snapshots of a persistent server in milliseconds: 1 minute. */
+	public static final long SNAPSHOT_INTERVAL = 60 * 1000;
+	/** Furthest a replica's update may be stamped ahead of this server's clock in milliseconds: 1 minute. */
+	public static final long MAX_DRIFT = 60 * 1000;
 	
-	private final Map<Address, InetSocketAddress> cache = Collections.synchronizedMap(new HashMap<Address, InetSocketAddress>());
+	// socket address followed by the registration's timestamp
+	private static final int VALUE_LENGTH = Registry.SOCKET_ADDRESS_LENGTH + 8;
+	private static final int LOCKS = 64;
+	// threads serving client requests
+	static final int WORKERS = 2 * Runtime.getRuntime().availableProcessors();
+	// requests served from one client before the others get a turn
+	static final int BURST = 64;
+	private static final AtomicInteger POOLS = new AtomicInteger();
+	// standard MTU - ip/udp headers
+	private static final int PACKET_SIZE = 1472;
+	
+	// held off heap with the lease of each registration, lookups read without 
+	// locking, writes lock a single segment
+	private final Registry cache;
+	// orders the updates of each address, striped by address
+	private final Object[] locks = new Object[LOCKS];
+	private final AtomicLong clock = new AtomicLong();
+	// registrations expire unless renewed by the client registering again
+	private final Leases leases;
+	private final NetworkExecutor executor = new NetworkExecutor();
+	// serves clients with input pending, a client is queued at most once
+	private final ThreadPoolExecutor workers = workers();
+	// journals registrations if persistent, otherwise null
+	private final RegistryStore store;
+	private ScheduledFuture<?> snapshots;
+	// the cluster this server is one shard of, null if not clustered
+	private volatile ShardRing ring;
+	private volatile InetSocketAddress self;
+	// authenticates replication between the servers of the cluster
+	private volatile byte[] key;
+	// replicas of the addresses this server holds by socket address
+	private final Map<InetSocketAddress, Replicator> replicators = new ConcurrentHashMap<>();
+	private final LongAdder replicated = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder redirects = new LongAdder();
+	// open client connections
+	private final Set<Endpoint> connections = ConcurrentHashMap.newKeySet();
 	
 	private  boolean started = false;
 	private ServerEndpoint server;
+	private boolean datagrams = false;
+	private DatagramSocket socket;
+	private Future<?> reader;
 	
 	/**
 	 * Instantiates a new <code>LookupServer</code> instance.
 	 *
 	 */
-	public LookupServer() {}
+	public LookupServer() {
+		this(DEFAULT_TTL);
+	}
+	
+	/**
+	 * Instantiates a new <code>LookupServer</code> instance.
+	 *
+	 * @param ttl The registration lease in milliseconds.
+	 */
+	public LookupServer(long ttl) {
+		this(ttl, null);
+	}
+	
+	/**
+	 * Instantiates a new <code>LookupServer</code> instance which persists its 
+	 * registrations in the given directory and recovers them when started.
+	 *
+	 * @param ttl The registration lease in milliseconds.
+	 * @param dir The directory to persist registrations in or <code>null</code> to not persist them.
+	 */
+	public LookupServer(long ttl, Path dir) {
+		cache = new Registry(Registry.ADDRESS_LENGTH, VALUE_LENGTH, Registry.DEFAULT_CAPACITY, ttl);
+		leases = new Leases(executor, cache, this::expire);
+		store = dir == null ? null : new RegistryStore(dir, cache);
+		for (int i = 0; i < LOCKS; i++) locks[i] = new Object();
+	}
+	
+	/**
+	 * Makes this <code>LookupServer</code> instance one shard of a cluster. Requests 
+	 * for addresses held by other servers are redirected to their owner, and 
+	 * updates are replicated if the ring holds each address on several servers. 
+	 * Must be called before this server is started.
+	 *
+	 * @param ring The servers of the cluster, holding each address on one server.
+	 * @param self The socket address of this server in the ring.
+	 */
+	public void cluster(ShardRing ring, InetSocketAddress self) {
+		cluster(ring, self, null);
+	}
+	
+	/**
+	 * Makes this <code>LookupServer</code> instance one shard of a cluster. Requests 
+	 * for addresses held by other servers are redirected to their owner, and 
+	 * updates are replicated if the ring holds each address on several servers. 
+	 * Updates are only accepted from the other servers of the ring, authenticated 
+	 * with a key they all share. Must be called before this server is started.
+	 *
+	 * @param ring The servers of the cluster.
+	 * @param self The socket address of this server in the ring.
+	 * @param key The key shared by the servers of the cluster, may be <code>null</code> 
+	 * if the ring holds each address on one server.
+	 */
+	public void cluster(ShardRing ring, InetSocketAddress self, byte[] key) {
+		if (!ring.contains(self)) throw new IllegalArgumentException("Not in the ring: " + self);
+		if (ring.replicas() > 1 && key == null) throw new IllegalArgumentException("Replication needs a cluster key");
+		synchronized (this) {
+			if (started) throw new IllegalStateException("Started");
+			this.self = self;
+			this.ring = ring;
+			this.key = key == null ? null : key.clone();
+			replicators.clear();
+			if (ring.replicas() > 1) {
+				for (var server : ring.servers()) {
+					if (!server.equals(self)) replicators.put(server, new Replicator(server, self, this.key));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Makes this <code>LookupServer</code> instance also serve lookups and 
+	 * registrations of the datagram stack on the UDP port of the socket 
+	 * address it listens on. Must be called before this server is started.
+	 */
+	public void datagrams() {
+		synchronized (this) {
+			if (started) throw new IllegalStateException("Started");
+			datagrams = true;
+		}
+	}
 	
 	/**
 	 * Starts this <code>LookupServer</code> instance.
@@ -72,63 +237,509 @@ public final class LookupServer {
 		synchronized (this) {
 			if (started) return;
 			
+			if (store != null) recover();
 			server = TCPEndpointFactory.server(addr);
 			server.accept(this::accept);
+			if (datagrams) {
+				socket = new DatagramSocket(addr);
+				reader = executor.submit(this::receive);
+			}
+			leases.start();
+			replicators.values().forEach(Replicator::start);
 			started = true;
 		}
 	}
 	
+	/**
+	 * Stops this <code>LookupServer</code> instance and closes its client connections.
+	 *
+	 * @throws IOException if there was a problem stopping this <code>LookupServer</code> instance.
+	 */
+	public void stop() throws IOException {
+		synchronized (this) {
+			if (!started) return;
+			
+			server.close();
+			if (socket != null) {
+				reader.cancel(true);
+				socket.close();
+				socket = null;
+			}
+			leases.stop();
+			replicators.values().forEach(Replicator::stop);
+			connections.forEach(LookupServer::close);
+			connections.clear();
+			if (store != null) {
+				snapshots.cancel(false);
+				snapshot();
+				store.close();
+			}
+			started = false;
+		}
+	}
+	
 	/**
 	 * Evicts an address from this <code>LookupServer</code> instance.
 	 *
 	 * @param address The address to evict.
 	 */
 	public void evict(Address address) {
-		cache.remove(address);
+		remove(address);
 	}
 	
+	/**
+	 * Returns the number of requests served by this <code>LookupServer</code> instance.
+	 *
+	 * @return The number of requests served.
+	 */
+	public long requests() {
+		return requests.sum();
+	}
+	
+	/**
+	 * Returns the number of requests redirected to the server owning their address.
+	 *
+	 * @return The number of redirected requests.
+	 */
+	public long redirects() {
+		return redirects.sum();
+	}
+	
+	/**
+	 * Returns the number of updates received from replicas.
+	 *
+	 * @return The number of updates received from replicas.
+	 */
+	public long replicated() {
+		return replicated.sum();
+	}
+	
+	/**
+	 * Returns the number of updates not yet sent to replicas.
+	 *
+	 * @return The number of updates not yet sent to replicas.
+	 */
+	public int pending() {
+		var pending = 0;
+		for (var r : replicators.values()) pending += r.pending();
+		return pending;
+	}
+	
+	/**
+	 * Returns the number of registered addresses.
+	 *
+	 * @return The number of registered addresses.
+	 */
+	public int registrations() {
+		return cache.size();
+	}
+	
+	/**
+	 * Returns the number of registrations which expired without being renewed.
+	 *
+	 * @return The number of expired registrations.
+	 */
+	public long expired() {
+		return leases.expired();
+	}
+	
+	private static ThreadPoolExecutor workers() {
+		var pool = POOLS.incrementAndGet();
+		var count = new AtomicInteger();
+		var workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			var t = new Thread(r, "lookup-server-" + pool + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		workers.allowCoreThreadTimeOut(true);
+		return workers;
+	}
+	
+	// serves requests until the client closes the connection - pipelining 
+	// clients keep the connection open, others close it after one request
 	private void accept(Endpoint endpoint) {
+		connections.add(endpoint);
+		var client = new Client(endpoint);
+		if (endpoint.readable(client::schedule)) {
+			// input may have arrived before the listener
+			client.schedule();
+			return;
+		}
 		try{
-			var request = endpoint.read(EncodableBytes::new);
-			var in = new VarInputStream(request.bytes());
-			var b = in.readByte();
-			var address = in.read(Address::new);
-			var socketAddress = b == REGISTER ? in.readAddress() : null;
-			
-			switch(b) {
-			case REGISTER:
-				cache.put(address, socketAddress);
-				endpoint.write(ack());
-				break;
-			case UNREGISTER:
-				cache.remove(address);
-				endpoint.write(ack());
-				break;
-			case LOOKUP:
-				socketAddress = cache.get(address);
-				endpoint.write(response(socketAddress));
-				break;
-			}	
-			
+			while (endpoint.isOpen()) {
+				var request = endpoint.read(EncodableBytes::new);
+				endpoint.write(process(endpoint, request.bytes()));
+				requests.increment();
+			}
 		} catch(IOException e) {
-			e.printStackTrace();
-			// to do
+			// closed
+		} finally {
+			connections.remove(endpoint);
+			close(endpoint);
 		}
+	}
+	
+	// a connection served by a worker only while it has input, so idle 
+	// clients hold no thread
+	private final class Client implements Runnable {
+		final Endpoint endpoint;
+		final AtomicBoolean scheduled = new AtomicBoolean();
 		
+		Client(Endpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+		
+		void schedule() {
+			if (scheduled.compareAndSet(false, true)) workers.execute(this);
+		}
+		
+		@Override
+		public void run() {
+			try{
+				for (int i = 0; i < BURST && endpoint.hasInput(); i++) {
+					var request = endpoint.read(EncodableBytes::new);
+					endpoint.write(process(endpoint, request.bytes()));
+					requests.increment();
+				}
+			} catch(IOException e) {
+				connections.remove(endpoint);
+				close(endpoint);
+				return;
+			}
+			scheduled.set(false);
+			// input which arrived while serving found the client scheduled
+			if (endpoint.hasInput()) schedule();
+		}
 	}
-
-	private static EncodableBytes ack() throws IOException {
-		return new EncodableBytes(new byte[]{ACK});
+	
+	private EncodableBytes process(Endpoint endpoint, byte[] request) throws IOException {
+		var in = new VarInputStream(request);
+		var out = new VarOutputStream();
+		var b = in.readByte();
+		if (b == PIPELINED) {
+			out.writeLong(in.readLong());
+			b = in.readByte();
+		}
+		if (b == LOOKUP_MANY) {
+			lookupMany(in, out);
+			return new EncodableBytes(out.toByteArray());
+		}
+		// replicas do not pipeline, the whole request is authenticated
+		if (b == REPLICATE && request[0] == REPLICATE) {
+			replicate(endpoint, request, in, out);
+			return new EncodableBytes(out.toByteArray());
+		}
+		var address = in.read(Address::new);
+		if (redirect(out, address)) return new EncodableBytes(out.toByteArray());
+		
+		switch(b) {
+		case REGISTER:
+			var socketAddress = in.readAddress();
+			var timestamp = stamp();
+			put(address, socketAddress, timestamp);
+			replicate(REGISTER, address, socketAddress, timestamp);
+			out.write(ACK);
+			out.writeLong(leases.ttl());
+			break;
+		case UNREGISTER:
+			timestamp = stamp();
+			remove(address, timestamp);
+			replicate(UNREGISTER, address, null, timestamp);
+			out.write(ACK);
+			break;
+		case LOOKUP:
+			response(out, cache.get(address));
+			break;
+		default:
+			out.write(ERROR);
+			out.writeUTF("Unknown request: " + b);
+		}
+		return new EncodableBytes(out.toByteArray());
+	}
+	
+	// answers with the result of each address in request order
+	private void lookupMany(VarInputStream in, VarOutputStream out) throws IOException {
+		var count = in.readInt();
+		if (count < 0 || count > MAX_BATCH) {
+			out.write(ERROR);
+			out.writeUTF("Batch size out of range: " + count);
+			return;
+		}
+		var addresses = new Address[count];
+		for (int i = 0; i < count; i++) addresses[i] = in.read(Address::new);
+		
+		out.write(ACK);
+		out.writeInt(count);
+		for (var address : addresses) {
+			if (!redirect(out, address)) response(out, cache.get(address));
+		}
+	}
+	
+	// names the owner if this server does not hold the address
+	private boolean redirect(VarOutputStream out, Address address) throws IOException {
+		var owner = owner(address);
+		if (owner == null) return false;
+		out.write(REDIRECT);
+		out.writeAddress(owner);
+		return true;
+	}
+	
+	// the owner of the address, null if this server holds it
+	private InetSocketAddress owner(Address address) {
+		var ring = this.ring;
+		if (ring == null) return null;
+		var replicas = ring.replicas(address);
+		if (replicas.contains(self)) return null;
+		redirects.increment();
+		return replicas.get(0);
+	}
+	
+	// serves datagrams until the socket is closed
+	private void receive() {
+		var buf = new byte[PACKET_SIZE];
+		var p = new DatagramPacket(buf, PACKET_SIZE);
+		while (!Thread.currentThread().isInterrupted()) {
+			try{
+				p.setData(buf);
+				socket.receive(p);
+				var response = process(buf, p.getLength());
+				if (response == null) continue;
+				socket.send(new DatagramPacket(response, response.length, p.getSocketAddress()));
+				requests.increment();
+			} catch(SocketException e) {
+				break;
+			} catch(IOException e) {
+				LOGGER.log(FINE, e.toString(), e);
+			}
+		}
+	}
+	
+	// answers a datagram with the request's header and the result, null to 
+	// drop it
+	private byte[] process(byte[] b, int length) throws IOException {
+		if (length < OFF_INET || b[0] != NetworkProtocol.NLP_PROTOCOL) return null;
+		var response = new byte[RESPONSE_LENGTH];
+		System.arraycopy(b, 0, response, 0, OFF_INET);
+		var address = NetworkMux.address(b, OFF_DATA);
+		var owner = owner(address);
+		if (owner != null) {
+			response[OFF_CMD] = REDIRECT;
+			NetworkMux.inet(response, owner, OFF_INET);
+			return response;
+		}
+		
+		switch(b[OFF_CMD]) {
+		case REGISTER:
+			if (!NLPProcessor.verify(b, length, System.currentTimeMillis())) {
+				response[OFF_CMD] = ERROR;
+				break;
+			}
+			var socketAddress = (InetSocketAddress)NetworkMux.inet(b, OFF_INET);
+			var timestamp = stamp();
+			put(address, socketAddress, timestamp);
+			replicate(REGISTER, address, socketAddress, timestamp);
+			response[OFF_CMD] = ACK;
+			ByteUtils.put(response, OFF_TIME, leases.ttl());
+			break;
+		case LOOKUP:
+			socketAddress = cache.get(address);
+			if (socketAddress == null) {
+				response[OFF_CMD] = UNKNOWN;
+			} else {
+				response[OFF_CMD] = ACK;
+				NetworkMux.inet(response, socketAddress, OFF_INET);
+			}
+			break;
+		default:
+			response[OFF_CMD] = ERROR;
+		}
+		return response;
+	}
+	
+	// a clock which never runs behind the stamps it has seen
+	private long stamp() {
+		return clock.updateAndGet(c -> Math.max(c + 1, System.currentTimeMillis()));
+	}
+	
+	// applies the updates of a replica, which names itself and authenticates 
+	// the request with the cluster key
+	private void replicate(Endpoint endpoint, byte[] request, VarInputStream in, VarOutputStream out) throws IOException {
+		var sender = in.readAddress();
+		if (!replica(endpoint, sender) || !Replicator.verify(key, request)) {
+			LOGGER.log(WARNING, "Replication refused from {0}", sender);
+			out.write(ERROR);
+			out.writeUTF("Not a replica: " + sender);
+			return;
+		}
+		var count = in.readInt();
+		if (count < 0 || count > MAX_BATCH) {
+			out.write(ERROR);
+			out.writeUTF("Batch size out of range: " + count);
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			var op = in.readByte();
+			var address = in.read(Address::new);
+			var timestamp = in.readLong();
+			var socketAddress = op == REGISTER ? in.readAddress() : null;
+			// a stamp far ahead would win over every later update and drag 
+			// the clock along
+			if (timestamp > System.currentTimeMillis() + MAX_DRIFT) {
+				LOGGER.log(WARNING, "Update from {0} stamped {1} ahead", new Object[]{sender, timestamp - System.currentTimeMillis()});
+				continue;
+			}
+			clock.accumulateAndGet(timestamp, Math::max);
+			if (op == REGISTER) {
+				put(address, socketAddress, timestamp);
+			} else {
+				remove(address, timestamp);
+			}
+			replicated.increment();
+		}
+		out.write(ACK);
+	}
+	
+	// true if the sender is another server of the ring, connecting from its host
+	private boolean replica(Endpoint endpoint, InetSocketAddress sender) {
+		var ring = this.ring;
+		if (ring == null || key == null || sender.equals(self) || !ring.contains(sender)) return false;
+		try{
+			var remote = endpoint.remote();
+			return remote instanceof InetSocketAddress 
+				&& ((InetSocketAddress)remote).getAddress().equals(sender.getAddress());
+		} catch(IOException | UnsupportedOperationException e) {
+			return false;
+		}
 	}
 	
-	private static EncodableBytes response(InetSocketAddress socketAddress) throws IOException {
+	// queues an update for the other replicas of the address
+	private void replicate(byte op, Address address, InetSocketAddress socketAddress, long timestamp) throws IOException {
+		if (replicators.isEmpty()) return;
 		var out = new VarOutputStream();
+		out.write(op);
+		out.write(address);
+		out.writeLong(timestamp);
+		if (socketAddress != null) out.writeAddress(socketAddress);
+		var update = out.toByteArray();
+		for (var replica : ring.replicas(address)) {
+			var replicator = replicators.get(replica);
+			if (replicator != null) replicator.offer(update);
+		}
+	}
+	
+	// applies a registration unless a later one is held, storing it renews 
+	// its lease
+	private void put(Address address, InetSocketAddress socketAddress, long timestamp) {
+		var key = address.bytes();
+		var value = new byte[VALUE_LENGTH];
+		Registry.encode(socketAddress, value, 0);
+		ByteUtils.put(value, Registry.SOCKET_ADDRESS_LENGTH, timestamp);
+		synchronized (lock(key)) {
+			if (later(key, value, timestamp)) return;
+			write(key, value);
+		}
+	}
+	
+	// applies an unregistration unless a later registration is held
+	private void remove(Address address, long timestamp) {
+		var key = address.bytes();
+		synchronized (lock(key)) {
+			if (later(key, null, timestamp)) return;
+			delete(key);
+		}
+	}
+	
+	// true if the registry holds a registration later than the update, equal 
+	// timestamps are ordered by value so every replica keeps the same one
+	private boolean later(byte[] key, byte[] value, long timestamp) {
+		var current = new byte[VALUE_LENGTH];
+		if (!cache.get(key, 0, current, 0)) return false;
+		var held = ByteUtils.getLong(current, Registry.SOCKET_ADDRESS_LENGTH);
+		if (held != timestamp) return held > timestamp;
+		return value == null || Arrays.compare(current, value) > 0;
+	}
+	
+	private Object lock(byte[] key) {
+		return locks[(key[0] & 0xff) % LOCKS];
+	}
+	
+	// recovered registrations are leased afresh as they are stored, giving 
+	// their clients a lease to renew them
+	private void recover() throws IOException {
+		var count = store.recover();
+		LOGGER.log(INFO, "Recovered {0} registrations", count);
+		snapshots = executor.scheduleWithFixedDelay(this::snapshot, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	private void snapshot() {
+		try{
+			store.snapshot();
+		} catch(IOException e) {
+			LOGGER.log(SEVERE, e.toString(), e);
+		}
+	}
+	
+	// evicted, only here
+	private void remove(Address address) {
+		var key = address.bytes();
+		synchronized (lock(key)) {
+			delete(key);
+		}
+	}
+	
+	// removes a registration unless renewed since its lease passed
+	private boolean expire(byte[] key) {
+		synchronized (lock(key)) {
+			if (store == null) return cache.expire(key, 0, null, 0);
+			try{
+				return store.expire(key, 0, null, 0);
+			} catch(IOException e) {
+				// only thrown journaling the removal
+				LOGGER.log(SEVERE, e.toString(), e);
+				return true;
+			}
+		}
+	}
+	
+	// registrations are served from memory if they cannot be journaled
+	private void write(byte[] key, byte[] value) {
+		if (store == null) {
+			cache.put(key, 0, value, 0);
+			return;
+		}
+		try{
+			store.put(key, 0, value, 0);
+		} catch(IOException e) {
+			LOGGER.log(SEVERE, e.toString(), e);
+		}
+	}
+	
+	private void delete(byte[] key) {
+		if (store == null) {
+			cache.remove(key, 0);
+			return;
+		}
+		try{
+			store.remove(key, 0);
+		} catch(IOException e) {
+			LOGGER.log(SEVERE, e.toString(), e);
+		}
+	}
+	
+	private static void response(VarOutputStream out, InetSocketAddress socketAddress) throws IOException {
 		if (socketAddress == null) {
 			out.write(UNKNOWN);
 		} else {
 			out.write(ACK);
 			out.writeAddress(socketAddress);
 		}
-		return new EncodableBytes(out.toByteArray());
+	}
+	
+	private static void close(Endpoint endpoint) {
+		try{
+			endpoint.close();
+		} catch(IOException e) {
+			// ignore
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,232 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.lookup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import rs.igram.kiribi.io.EncodableBytes;
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.io.VarOutputStream;
+import rs.igram.kiribi.net.Endpoint;
+import rs.igram.kiribi.net.TCPEndpointFactory;
+
+import static java.util.logging.Level.*;
+
+import static rs.igram.kiribi.net.stack.lookup.LookupProtocol.*;
+
+/**
+ * Sends the updates of a lookup server to one of its replicas.
+ *
+ * <p>Updates are queued and sent in batches over a secure connection, each 
+ * batch acknowledged before the next is sent. A batch which could not be 
+ * sent is retried once the replica is reachable again. If the queue is full 
+ * updates are dropped, the replica converges once the clients renew their 
+ * registrations.</p>
+ *
+ * <p>Each batch names the sending server and ends with an HMAC of the batch 
+ * keyed with the cluster key, which the replica checks before applying it.</p>
+ *
+ * <p>The batches are sent from a dedicated thread which {@link #stop} 
+ * interrupts and waits for, so a restarted replicator never has two senders 
+ * sharing the queue and the connection.</p>
+ *
+ * @author Michael Sargent
+ */
+final class Replicator {
+	private static final Logger LOGGER = Logger.getLogger(Replicator.class.getName());
+	
+	// updates held while the replica is slow or unreachable
+	static final int QUEUE_SIZE = 1 << 16;
+	// delay before reconnecting to an unreachable replica in milliseconds
+	static final long RETRY_DELAY = 1000;
+	private static final String MAC = "HmacSHA256";
+	private static final int MAC_LENGTH = 32;
+	
+	private final InetSocketAddress replica;
+	private final InetSocketAddress self;
+	private final byte[] key;
+	private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	// queued or in flight until the replica acknowledges them
+	private final AtomicInteger unsent = new AtomicInteger();
+	private volatile boolean running;
+	private Thread sender;
+	private volatile Endpoint endpoint;
+	
+	Replicator(InetSocketAddress replica, InetSocketAddress self, byte[] key) {
+		this.replica = replica;
+		this.self = self;
+		this.key = key;
+	}
+	
+	synchronized void start() {
+		if (running) return;
+		running = true;
+		sender = new Thread(this::send, "replicator-" + replica);
+		sender.setDaemon(true);
+		sender.start();
+	}
+	
+	synchronized void stop() {
+		if (!running) return;
+		running = false;
+		sender.interrupt();
+		// unblock a sender waiting on the replica
+		var current = endpoint;
+		if (current != null) {
+			try{
+				current.close();
+			} catch(IOException e) {
+				// ignore
+			}
+		}
+		var interrupted = false;
+		while (sender.isAlive()) {
+			try{
+				sender.join();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		sender = null;
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+	
+	// an encoded update
+	void offer(byte[] update) {
+		if (queue.offer(update)) {
+			unsent.incrementAndGet();
+		} else {
+			dropped.increment();
+		}
+	}
+	
+	long sent() {
+		return sent.sum();
+	}
+	
+	long dropped() {
+		return dropped.sum();
+	}
+	
+	int pending() {
+		return unsent.get();
+	}
+	
+	private void send() {
+		var batch = new ArrayList<byte[]>();
+		try{
+			while (running) {
+				if (batch.isEmpty()) {
+					batch.add(queue.take());
+					queue.drainTo(batch, MAX_BATCH - 1);
+				}
+				try{
+					write(batch);
+					sent.add(batch.size());
+					unsent.addAndGet(-batch.size());
+					batch.clear();
+				} catch(IOException e) {
+					if (!running) break;
+					LOGGER.log(FINE, "Replica {0} unreachable: {1}", new Object[]{replica, e});
+					close();
+					TimeUnit.MILLISECONDS.sleep(RETRY_DELAY);
+				}
+			}
+		} catch(InterruptedException e) {
+			// stopped
+		} finally {
+			close();
+		}
+	}
+	
+	private void write(List<byte[]> batch) throws IOException, InterruptedException {
+		if (endpoint == null) {
+			try{
+				endpoint = TCPEndpointFactory.open(replica);
+			} catch(ExecutionException e) {
+				throw new IOException(e);
+			}
+			// stop() closes the endpoint only if it saw it
+			if (!running) throw new IOException("Stopped");
+		}
+		var out = new VarOutputStream();
+		out.write(REPLICATE);
+		out.writeAddress(self);
+		out.writeInt(batch.size());
+		for (var update : batch) out.write(update);
+		var request = out.toByteArray();
+		out.write(mac(key, request, request.length));
+		endpoint.write(new EncodableBytes(out.toByteArray()));
+		
+		var in = new VarInputStream(endpoint.read(EncodableBytes::new).bytes());
+		if (in.readByte() != ACK) throw new IOException(in.readUTF());
+	}
+	
+	// true if the request ends with its HMAC keyed with the cluster key
+	static boolean verify(byte[] key, byte[] request) throws IOException {
+		if (key == null || request.length < MAC_LENGTH) return false;
+		var length = request.length - MAC_LENGTH;
+		var mac = Arrays.copyOfRange(request, length, request.length);
+		return MessageDigest.isEqual(mac, mac(key, request, length));
+	}
+	
+	static byte[] mac(byte[] key, byte[] b, int length) throws IOException {
+		try{
+			var mac = Mac.getInstance(MAC);
+			mac.init(new SecretKeySpec(key, MAC));
+			mac.update(b, 0, length);
+			return mac.doFinal();
+		} catch(GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private void close() {
+		if (endpoint == null) return;
+		try{
+			endpoint.close();
+		} catch(IOException e) {
+			// ignore
+		}
+		endpoint = null;
+	}
+}
@@ -64,6 +64,7 @@ abstract class NATT {
 	static final byte ADR = 4; // register response - remote socket address
 	static final byte ADC = 5; // connection response - remote socket address
 	static final byte ERR = 7;
+	static final byte RDR = 8; // redirect response - owning server socket address after the kiribi address
 	
 	static final byte SYN = 1;
 	static final byte ACK = 2;
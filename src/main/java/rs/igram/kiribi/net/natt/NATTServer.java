@@ -24,13 +24,28 @@
  
 package rs.igram.kiribi.net.natt;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import rs.igram.kiribi.net.Address;
+import rs.igram.kiribi.net.NetworkExecutor;
+import rs.igram.kiribi.net.stack.Leases;
+import rs.igram.kiribi.net.stack.Registry;
+import rs.igram.kiribi.net.stack.NetworkMux;
+import rs.igram.kiribi.net.stack.RegistryStore;
+import rs.igram.kiribi.net.ShardRing;
+
+import static java.util.logging.Level.*;
+
+import static rs.igram.kiribi.net.stack.Registry.*;
 
 /**
  * Simple NATT server.
@@ -38,12 +53,96 @@ import rs.igram.kiribi.net.Address;
  * @author Michael Sargent
  */
 public final class NATTServer extends NATT {
-	final Map<Address, SocketAddress> map = Collections.synchronizedMap(new HashMap<>());
+	private static final Logger LOGGER = Logger.getLogger(NATTServer.class.getName());
+	
+	/** Default registration lease in milliseconds: three keep alive intervals. */
+	public static final long DEFAULT_TTL = 3 * KA_INTERVAL;
+	/** Interval between snapshots of a persistent server in milliseconds: 1 minute. */
+	public static final long SNAPSHOT_INTERVAL = 60 * 1000;
+	
+	// encoded socket address by raw address held off heap with its lease
+	final Registry map;
+	// registered raw address by encoded socket address, keep alives carry no address
+	final Registry registered = new Registry(SOCKET_ADDRESS_LENGTH, ADDRESS_LENGTH, DEFAULT_CAPACITY);
+	// scratch buffers of the reader thread so lookups do not allocate
+	private final byte[] inet = new byte[SOCKET_ADDRESS_LENGTH];
+	private final byte[] previous = new byte[SOCKET_ADDRESS_LENGTH];
+	private final byte[] raw = new byte[ADDRESS_LENGTH];
+	// registrations expire unless renewed by a registration or keep alive
+	private final Leases leases;
+	private final NetworkExecutor executor = new NetworkExecutor();
+	// journals registrations if persistent, otherwise null
+	private final RegistryStore store;
+	private volatile ScheduledFuture<?> snapshots;
+	// the cluster this server is one shard of, null if not clustered
+	private volatile ShardRing ring;
+	private volatile InetSocketAddress self;
+		
+	/**
+	 * Instantiates a new <code>NATTServer</code> instance.
+	 */
+	public NATTServer() {
+		this(DEFAULT_TTL);
+	}
 		
 	/**
 	 * Instantiates a new <code>NATTServer</code> instance.
+	 *
+	 * @param ttl The registration lease in milliseconds.
+	 */
+	public NATTServer(long ttl) {
+		this(ttl, null);
+	}
+		
+	/**
+	 * Instantiates a new <code>NATTServer</code> instance which persists its 
+	 * registrations in the given directory and recovers them when started.
+	 *
+	 * @param ttl The registration lease in milliseconds.
+	 * @param dir The directory to persist registrations in or <code>null</code> to not persist them.
+	 */
+	public NATTServer(long ttl, Path dir) {
+		map = new Registry(ADDRESS_LENGTH, SOCKET_ADDRESS_LENGTH, DEFAULT_CAPACITY, ttl);
+		leases = new Leases(executor, map, this::expire);
+		store = dir == null ? null : new RegistryStore(dir, map);
+	}
+	
+	@Override
+	public synchronized void start(InetSocketAddress addr) throws SocketException {
+		if(store != null) recover();
+		super.start(addr);
+		leases.start();
+	}
+	
+	@Override
+	public synchronized void shutdown() {
+		super.shutdown();
+		if(store != null && snapshots != null) {
+			snapshots.cancel(false);
+			snapshots = null;
+			snapshot();
+			try{
+				store.close();
+			}catch(IOException e){
+				LOGGER.log(SEVERE, e.toString(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Makes this <code>NATTServer</code> instance one shard of a cluster. Registrations 
+	 * and connects for addresses owned by another server are redirected to it, as 
+	 * clients must reach the owner from their own sockets to be tunnelled through 
+	 * their NATs.
+	 *
+	 * @param ring The servers of the cluster.
+	 * @param self The socket address of this server in the ring.
 	 */
-	public NATTServer() {}
+	public void cluster(ShardRing ring, InetSocketAddress self) {
+		if(!ring.contains(self)) throw new IllegalArgumentException("Not in the ring: " + self);
+		this.self = self;
+		this.ring = ring;
+	}
 	
 	/**
 	 * Evicts an address from this <code>NATTServer</code> instance.
@@ -51,7 +150,110 @@ public final class NATTServer extends NATT {
 	 * @param address The address to evict.
 	 */
 	public void evict(Address address) {
-		map.remove(address);
+		remove(address);
+	}
+	
+	/**
+	 * Returns the number of registered addresses.
+	 *
+	 * @return The number of registered addresses.
+	 */
+	public int registrations() {
+		return map.size();
+	}
+	
+	/**
+	 * Returns the number of registrations which expired without being renewed.
+	 *
+	 * @return The number of expired registrations.
+	 */
+	public long expired() {
+		return leases.expired();
+	}
+	
+	// names the owner after the address if another server owns it
+	private boolean redirect(byte[] buf, SocketAddress remote) {
+		var ring = this.ring;
+		if(ring == null) return false;
+		var owner = ring.owner(buf, OFF_DATA);
+		if(owner.equals(self)) return false;
+		cmd(buf, RDR);
+		NetworkMux.inet(buf, owner, OFF_DATA + 20);
+		write(buf, remote);
+		return true;
+	}
+	
+	// evicted, does not share the scratch buffers of the reader thread
+	private void remove(Address address) {
+		var key = address.bytes();
+		var value = new byte[SOCKET_ADDRESS_LENGTH];
+		if(map.get(key, 0, value, 0) && remove(key, value)) registered.remove(value, 0, key, 0);
+	}
+	
+	// called from the lease thread, removes a registration unless renewed 
+	// since its lease passed
+	private boolean expire(byte[] key) {
+		var value = new byte[SOCKET_ADDRESS_LENGTH];
+		if(!expire(key, value)) return false;
+		registered.remove(value, 0, key, 0);
+		return true;
+	}
+	
+	// the server starts empty rather than not at all if recovery fails, 
+	// clients register again within a lease
+	private void recover() {
+		try{
+			var count = store.recover();
+			// recovered registrations are leased afresh as they are stored
+			map.forEach((key, value) -> registered.put(value, 0, key, 0));
+			LOGGER.log(INFO, "Recovered {0} registrations", count);
+			snapshots = executor.scheduleWithFixedDelay(this::snapshot, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+		}catch(IOException e){
+			LOGGER.log(SEVERE, e.toString(), e);
+		}
+	}
+	
+	private void snapshot() {
+		try{
+			store.snapshot();
+		}catch(IOException e){
+			LOGGER.log(SEVERE, e.toString(), e);
+		}
+	}
+	
+	// registrations are served from memory if they cannot be journaled
+	private void put(byte[] key, int off, byte[] value) {
+		if(store == null || snapshots == null) {
+			map.put(key, off, value, 0);
+			return;
+		}
+		try{
+			store.put(key, off, value, 0);
+		}catch(IOException e){
+			LOGGER.log(SEVERE, e.toString(), e);
+		}
+	}
+	
+	private boolean remove(byte[] key, byte[] value) {
+		if(store == null || snapshots == null) return map.remove(key, 0, value, 0);
+		try{
+			return store.remove(key, 0, value, 0);
+		}catch(IOException e){
+			// only thrown journaling a removal
+			LOGGER.log(SEVERE, e.toString(), e);
+			return true;
+		}
+	}
+	
+	private boolean expire(byte[] key, byte[] value) {
+		if(store == null || snapshots == null) return map.expire(key, 0, value, 0);
+		try{
+			return store.expire(key, 0, value, 0);
+		}catch(IOException e){
+			// only thrown journaling a removal
+			LOGGER.log(SEVERE, e.toString(), e);
+			return true;
+		}
 	}
 	
 	@Override
@@ -60,6 +262,8 @@ public final class NATTServer extends NATT {
 		var protocol = protocol(buf); 
 		// keepalive
 		if(p.getLength() == 2 && protocol == KAP_PROTOCOL){
+			encode((InetSocketAddress)p.getSocketAddress(), inet, 0);
+			if(registered.get(inet, 0, raw, 0)) leases.touch(raw, 0);
 			write(p);
 			return;
 		}
@@ -69,22 +273,28 @@ public final class NATTServer extends NATT {
 		
 		int c = buf[OFF_CMD]; // offset long session id + long natt id
 	
-		var address = address(buf); //reg address or tunnel address
-			
+		// reg address or tunnel address, raw at OFF_DATA
+		if((c == REG || c == CON) && redirect(buf, remote)) return;
 		switch(c){
 		case REG: // registration request from remote peer
-			map.put(address, remote);
+			// storing the registration renews its lease
+			encode((InetSocketAddress)remote, inet, 0);
+			if(map.get(buf, OFF_DATA, previous, 0) && !Arrays.equals(previous, inet)) {
+				registered.remove(previous, 0, buf, OFF_DATA);
+			}
+			put(buf, OFF_DATA, inet);
+			registered.put(inet, 0, buf, OFF_DATA);
 			cmd(buf, ADR);
 			inet(buf, remote);
 			write(buf, remote);
 			break;
 		case CON: // tunnel request from remote peer
-			SocketAddress dst = map.get(address);
-			if(dst == null){
+			if(!map.get(buf, OFF_DATA, inet, 0)){
 				// tunnel address not registered
 				cmd(buf, ERR);
 				write(buf, remote);
 			}else{
+				SocketAddress dst = decode(inet, 0);
 				// notify dest of tunnel request
 				cmd(buf, TUN);
 				inet(buf, remote);
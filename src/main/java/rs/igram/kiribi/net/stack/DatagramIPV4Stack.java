@@ -38,7 +38,9 @@ import java.util.function.BiConsumer;
 
 import rs.igram.kiribi.net.Address;
 import rs.igram.kiribi.net.NetworkExecutor;
+import rs.igram.kiribi.net.ShardRing;
 import rs.igram.kiribi.net.stack.kap.KAPProcessor;
+import rs.igram.kiribi.net.stack.lookup.NLPProcessor;
 import rs.igram.kiribi.net.stack.natt.NATTProcessor;
 import rs.igram.kiribi.net.stack.natt.NATTProtocol;
 import rs.igram.kiribi.net.stack.rmp.RMPProcessor;
@@ -56,11 +58,25 @@ public final class DatagramIPV4Stack extends DatagramStack {
 	Consumer<Set<SocketAddress>> onExpired;
 	Consumer<NATTProcessor.SessionEvent> listener;
 	NATTProcessor natt;
+	ShardRing lookups;
 	 
 	public DatagramIPV4Stack(NetworkExecutor executor, Address address, SocketAddress serverAddress, 
 		InetSocketAddress socketAddress, BiConsumer<SocketAddress,byte[]> consumer, 
 		Consumer<SocketAddress> onIncoming, Consumer<Set<SocketAddress>> onExpired) {
-		super(executor, address, serverAddress, StandardProtocolFamily.INET, socketAddress, consumer);
+		this(executor, address, ShardRing.of((InetSocketAddress)serverAddress), socketAddress, consumer, onIncoming, onExpired);
+	}
+	
+	public DatagramIPV4Stack(NetworkExecutor executor, Address address, ShardRing servers, 
+		InetSocketAddress socketAddress, BiConsumer<SocketAddress,byte[]> consumer, 
+		Consumer<SocketAddress> onIncoming, Consumer<Set<SocketAddress>> onExpired) {
+		this(executor, address, servers, null, socketAddress, consumer, onIncoming, onExpired);
+	}
+	
+	public DatagramIPV4Stack(NetworkExecutor executor, Address address, ShardRing servers, ShardRing lookups, 
+		InetSocketAddress socketAddress, BiConsumer<SocketAddress,byte[]> consumer, 
+		Consumer<SocketAddress> onIncoming, Consumer<Set<SocketAddress>> onExpired) {
+		super(executor, address, servers, StandardProtocolFamily.INET, socketAddress, consumer);
+		this.lookups = lookups;
 	}
 
 	@Override
@@ -77,11 +93,16 @@ public final class DatagramIPV4Stack extends DatagramStack {
 			}
 		};
 		
-		natt = new NATTProcessor(serverAddress, listener);
+		natt = new NATTProcessor(servers, listener);
 		
 		
 		kap = new KAPProcessor(onIncoming, onExpired);
 		mux.register(natt, rmp, kap);	
+		
+		if(lookups != null){
+			nlp = new NLPProcessor(lookups);
+			mux.register(nlp);
+		}
 	}
 	
 	@Override
@@ -31,12 +31,15 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.StandardProtocolFamily;
 import java.net.UnknownHostException;
+import java.security.KeyPair;
 import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 
 import rs.igram.kiribi.net.Address;
 import rs.igram.kiribi.net.NetworkExecutor;
+import rs.igram.kiribi.net.ShardRing;
 import rs.igram.kiribi.net.stack.kap.KAPProcessor;
+import rs.igram.kiribi.net.stack.lookup.NLPProcessor;
 import rs.igram.kiribi.net.stack.rmp.RMPProcessor;
 
 /**
@@ -51,17 +54,19 @@ public abstract class DatagramStack {
 	protected final StandardProtocolFamily protocol;
 	protected final NetworkMux mux;
 	protected final Address address;
-	protected final SocketAddress serverAddress;
+	protected final ShardRing servers;
 	protected final InetSocketAddress socketAddress;
 	protected final BiConsumer<SocketAddress,byte[]> consumer;
 	protected KAPProcessor kap;
 	protected RMPProcessor rmp;
+	// datagram lookups, if the stack has lookup servers
+	protected NLPProcessor nlp;
 		
-	protected DatagramStack(NetworkExecutor executor, Address address, SocketAddress serverAddress, 
+	protected DatagramStack(NetworkExecutor executor, Address address, ShardRing servers, 
 		StandardProtocolFamily protocol, InetSocketAddress socketAddress, BiConsumer<SocketAddress,byte[]> consumer) {	
 
 		this.address = address;
-		this.serverAddress = serverAddress;
+		this.servers = servers;
 		this.protocol = protocol;
 		this.socketAddress = socketAddress;
 		this.consumer = consumer;
@@ -107,5 +112,15 @@ public abstract class DatagramStack {
 
 	public abstract SocketAddress connect(Address address) throws IOException;
 	
+	public InetSocketAddress lookup(Address address) throws IOException, InterruptedException {
+		if (nlp == null) throw new IOException("No lookup servers");
+		return nlp.lookup(address);
+	}
+	
+	public long register(InetSocketAddress inet, KeyPair keys) throws IOException, InterruptedException {
+		if (nlp == null) throw new IOException("No lookup servers");
+		return nlp.register(address, inet, keys);
+	}
+	
 	protected abstract void register(Address address, InetSocketAddress inet) throws IOException;
 }
\ No newline at end of file
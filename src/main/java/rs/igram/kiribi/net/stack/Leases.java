@@ -0,0 +1,130 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.stack;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import rs.igram.kiribi.net.NetworkExecutor;
+
+/**
+ * Registration leases held in the slots of a leased <code>Registry</code>.
+ *
+ * <p>A lease lasts for the time to live from the last time its entry was 
+ * stored or touched. Each tick of the registry's deadline index the keys 
+ * filed for that tick are checked, so the cost of expiry follows the leases 
+ * coming due rather than the size of the registry. The key of each entry 
+ * whose lease has passed is passed to the expiry predicate, which 
+ * removes it with {@link Registry#expire(byte[], int, byte[], int)} or 
+ * {@link RegistryStore#expire(byte[], int, byte[], int)}. The removal only 
+ * succeeds if the lease is still passed, so a registration renewed while 
+ * expiring is never removed.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class Leases {
+	private final LongAdder expired = new LongAdder();
+	private final NetworkExecutor executor;
+	private final Registry registry;
+	private final Predicate<byte[]> onExpired;
+	private final long tick;
+	private Future<?> timer;
+	
+	/**
+	 * Instantiates a new <code>Leases</code> instance.
+	 *
+	 * @param executor The executor which drives the expiry of leases.
+	 * @param registry The leased registry holding the leases.
+	 * @param onExpired Predicate removing the key of an expired lease, returning <code>true</code> if it was removed.
+	 */
+	public Leases(NetworkExecutor executor, Registry registry, Predicate<byte[]> onExpired) {
+		if(registry.ttl() < 1) throw new IllegalArgumentException("Registry is not leased");
+		this.executor = executor;
+		this.registry = registry;
+		this.onExpired = onExpired;
+		tick = registry.tick();
+	}
+	
+	/**
+	 * Starts expiring leases.
+	 */
+	public synchronized void start() {
+		if(timer != null) return;
+		timer = executor.scheduleWithFixedDelay(this::advance, tick, tick, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops expiring leases.
+	 */
+	public synchronized void stop() {
+		if(timer != null) timer.cancel(false);
+		timer = null;
+	}
+	
+	/**
+	 * Renews the lease of the provided key if it holds one.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @return Returns <code>true</code> if the key holds a lease.
+	 */
+	public boolean touch(byte[] key, int keyOffset) {
+		return registry.touch(key, keyOffset);
+	}
+	
+	/**
+	 * Returns the time to live of a lease in milliseconds.
+	 *
+	 * @return Returns the time to live of a lease.
+	 */
+	public long ttl() {
+		return registry.ttl();
+	}
+	
+	/**
+	 * Returns the number of live leases.
+	 *
+	 * @return Returns the number of live leases.
+	 */
+	public int live() {
+		return registry.size();
+	}
+	
+	/**
+	 * Returns the number of leases which have expired.
+	 *
+	 * @return Returns the number of leases which have expired.
+	 */
+	public long expired() {
+		return expired.sum();
+	}
+	
+	void advance() {
+		registry.expired(key -> {
+			if(onExpired.test(key)) expired.increment();
+		});
+	}
+}
@@ -0,0 +1,687 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.stack;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import rs.igram.kiribi.net.Address;
+
+/**
+ * Open addressing hash table of fixed length keys and values held off heap.
+ *
+ * <p>Each entry takes a slot of one state byte followed by the key and the 
+ * value in a direct buffer, so millions of registrations add almost nothing 
+ * to the heap. The table is split into segments, each with its own lock: 
+ * writers lock one segment and readers probe optimistically without locking, 
+ * retrying under the read lock only if a writer intervened. The raw accessors 
+ * copy into caller supplied arrays and do not allocate.</p>
+ *
+ * <p>Registries of addresses use 20 byte keys and 18 byte socket address 
+ * values: the 16 byte address encoded as in <code>NetworkMux.inet</code> 
+ * followed by a two byte port.</p>
+ *
+ * <p>A leased registry appends the deadline of each entry's lease to its 
+ * slot. Storing an entry or touching it renews the lease in place, so leases 
+ * cost slot bytes off heap rather than objects on the heap. Each key is also 
+ * filed in a deadline index of one bucket per tick, holding the raw keys 
+ * whose leases pass in that tick. A renewed key is only moved when its 
+ * bucket comes due and its slot shows a later deadline, so finding expired 
+ * entries visits the keys filed for the ticks elapsed rather than every 
+ * slot.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class Registry {
+	/** The length of an encoded address. */
+	public static final int ADDRESS_LENGTH = 20;
+	/** The length of an encoded socket address. */
+	public static final int SOCKET_ADDRESS_LENGTH = 18;
+	/** The default initial capacity. */
+	public static final int DEFAULT_CAPACITY = 1024;
+	
+	private static final int SEGMENTS = 16;
+	// slot states
+	private static final byte EMPTY = 0;
+	private static final byte FULL = 1;
+	private static final byte DELETED = 2;
+	// longest tick of the deadline index in millis
+	private static final long MAX_TICK = 1000;
+	
+	private final int keyLength;
+	private final int valueLength;
+	private final int slotLength;
+	// offset of the lease deadline in a slot
+	private final int deadlineOffset;
+	// offset of the bucket a leased key is filed in
+	private final int bucketOffset;
+	private final long ttl;
+	// null if not leased
+	private final Deadlines deadlines;
+	private final Segment[] segments = new Segment[SEGMENTS];
+	
+	/**
+	 * Instantiates a new <code>Registry</code> of addresses to socket addresses.
+	 */
+	public Registry() {
+		this(ADDRESS_LENGTH, SOCKET_ADDRESS_LENGTH, DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Instantiates a new <code>Registry</code> instance.
+	 *
+	 * @param keyLength The length of a key in bytes.
+	 * @param valueLength The length of a value in bytes.
+	 * @param capacity The initial number of entries held without resizing.
+	 */
+	public Registry(int keyLength, int valueLength, int capacity) {
+		this(keyLength, valueLength, capacity, 0);
+	}
+	
+	/**
+	 * Instantiates a new <code>Registry</code> instance whose entries are leased 
+	 * if the time to live is positive.
+	 *
+	 * @param keyLength The length of a key in bytes.
+	 * @param valueLength The length of a value in bytes.
+	 * @param capacity The initial number of entries held without resizing.
+	 * @param ttl The time to live of a lease in milliseconds or 0 if entries are not leased.
+	 */
+	public Registry(int keyLength, int valueLength, int capacity, long ttl) {
+		if(keyLength < 1 || valueLength < 0) throw new IllegalArgumentException("Invalid entry length");
+		if(ttl < 0) throw new IllegalArgumentException("TTL must not be negative: "+ttl);
+		this.keyLength = keyLength;
+		this.valueLength = valueLength;
+		this.ttl = ttl;
+		deadlineOffset = 1 + keyLength + valueLength;
+		bucketOffset = deadlineOffset + 8;
+		slotLength = deadlineOffset + (ttl > 0 ? 12 : 0);
+		deadlines = ttl > 0 ? new Deadlines(ttl) : null;
+		var slots = Integer.highestOneBit(Math.max(8, 2 * capacity / SEGMENTS - 1)) << 1;
+		for(int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(slots);
+	}
+	
+	/**
+	 * Copies the value associated with the key into <code>value</code>.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @param value The array receiving the value.
+	 * @param valueOffset The offset to copy the value to.
+	 * @return Returns <code>true</code> if the key was found.
+	 */
+	public boolean get(byte[] key, int keyOffset, byte[] value, int valueOffset) {
+		var h = hash(key, keyOffset);
+		return segment(h).get(h, key, keyOffset, value, valueOffset);
+	}
+	
+	/**
+	 * Associates the value with the key, renewing its lease if leased.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @param value The array holding the value.
+	 * @param valueOffset The offset of the value.
+	 * @return Returns <code>true</code> if the key was not present.
+	 */
+	public boolean put(byte[] key, int keyOffset, byte[] value, int valueOffset) {
+		var h = hash(key, keyOffset);
+		return segment(h).put(h, key, keyOffset, value, valueOffset);
+	}
+	
+	/**
+	 * Removes the key.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @return Returns <code>true</code> if the key was present.
+	 */
+	public boolean remove(byte[] key, int keyOffset) {
+		var h = hash(key, keyOffset);
+		return segment(h).remove(h, key, keyOffset, null, 0);
+	}
+	
+	/**
+	 * Removes the key if it is associated with the value.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @param value The array holding the value.
+	 * @param valueOffset The offset of the value.
+	 * @return Returns <code>true</code> if the key was removed.
+	 */
+	public boolean remove(byte[] key, int keyOffset, byte[] value, int valueOffset) {
+		var h = hash(key, keyOffset);
+		return segment(h).remove(h, key, keyOffset, value, valueOffset);
+	}
+	
+	/**
+	 * Renews the lease of the key if it is present.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @return Returns <code>true</code> if the key was present.
+	 */
+	public boolean touch(byte[] key, int keyOffset) {
+		var h = hash(key, keyOffset);
+		return segment(h).touch(h, key, keyOffset);
+	}
+	
+	/**
+	 * Removes the key if its lease has passed, copying its value into 
+	 * <code>value</code> unless <code>null</code>. Entries of a registry which 
+	 * is not leased never expire.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @param value The array receiving the value or <code>null</code>.
+	 * @param valueOffset The offset to copy the value to.
+	 * @return Returns <code>true</code> if the key was removed.
+	 */
+	public boolean expire(byte[] key, int keyOffset, byte[] value, int valueOffset) {
+		if(ttl == 0) return false;
+		var h = hash(key, keyOffset);
+		return segment(h).expire(h, key, keyOffset, value, valueOffset, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Passes the key of each entry whose lease has passed to the action. Only 
+	 * the keys filed in the buckets of the ticks elapsed since the last call 
+	 * are visited, and renewed keys are filed again for their new deadline. 
+	 * The keys are passed after releasing the segment locks, so the action 
+	 * may expire them. A key passed but not removed is passed again on the 
+	 * next tick unless renewed.
+	 *
+	 * @param action The action receiving a copy of each expired key.
+	 */
+	public void expired(Consumer<byte[]> action) {
+		if(ttl == 0) return;
+		var now = System.currentTimeMillis();
+		var expired = new ArrayList<byte[]>();
+		for(var due = deadlines.next(now); due != null; due = deadlines.next(now)) {
+			for(int i = 0; i < due.count; i++) {
+				var off = i * keyLength;
+				var h = hash(due.keys, off);
+				if(segment(h).due(h, due.keys, off, due.bucket, now)) {
+					expired.add(Arrays.copyOfRange(due.keys, off, off + keyLength));
+				}
+			}
+		}
+		expired.forEach(action);
+	}
+	
+	/**
+	 * Returns the socket address registered for the address.
+	 *
+	 * @param address The address to look up.
+	 * @return Returns the socket address or <code>null</code> if not registered.
+	 */
+	public InetSocketAddress get(Address address) {
+		var value = new byte[valueLength];
+		return get(address.bytes(), 0, value, 0) ? decode(value, 0) : null;
+	}
+	
+	/**
+	 * Registers the socket address for the address.
+	 *
+	 * @param address The address to register.
+	 * @param socketAddress The socket address to register.
+	 */
+	public void put(Address address, InetSocketAddress socketAddress) {
+		var value = new byte[valueLength];
+		encode(socketAddress, value, 0);
+		put(address.bytes(), 0, value, 0);
+	}
+	
+	/**
+	 * Removes the registration of the address.
+	 *
+	 * @param address The address to remove.
+	 * @return Returns <code>true</code> if the address was registered.
+	 */
+	public boolean remove(Address address) {
+		return remove(address.bytes(), 0);
+	}
+	
+	/**
+	 * Returns the number of entries.
+	 *
+	 * @return Returns the number of entries.
+	 */
+	public int size() {
+		var size = 0;
+		for(var s : segments) size += s.size();
+		return size;
+	}
+	
+	/**
+	 * Performs the action for each entry, one segment at a time under the 
+	 * segment's read lock. The arrays passed to the action are reused between 
+	 * entries and must be copied if retained.
+	 *
+	 * @param action The action receiving the key and value of each entry.
+	 */
+	public void forEach(BiConsumer<byte[], byte[]> action) {
+		var key = new byte[keyLength];
+		var value = new byte[valueLength];
+		for(var s : segments) s.forEach(action, key, value);
+	}
+	
+	/**
+	 * Returns the length of a key in bytes.
+	 *
+	 * @return Returns the length of a key in bytes.
+	 */
+	public int keyLength() {
+		return keyLength;
+	}
+	
+	/**
+	 * Returns the length of a value in bytes.
+	 *
+	 * @return Returns the length of a value in bytes.
+	 */
+	public int valueLength() {
+		return valueLength;
+	}
+	
+	/**
+	 * Returns the time to live of a lease in milliseconds.
+	 *
+	 * @return Returns the time to live of a lease or 0 if entries are not leased.
+	 */
+	public long ttl() {
+		return ttl;
+	}
+	
+	/**
+	 * Returns the tick of the deadline index in milliseconds, the interval at 
+	 * which expired entries should be looked for.
+	 *
+	 * @return Returns the tick of the deadline index or 0 if entries are not leased.
+	 */
+	public long tick() {
+		return ttl == 0 ? 0 : deadlines.tick;
+	}
+	
+	/**
+	 * Returns the off heap memory held by this registry in bytes.
+	 *
+	 * @return Returns the off heap memory held by this registry.
+	 */
+	public long memory() {
+		long memory = 0;
+		for(var s : segments) memory += s.memory();
+		return memory;
+	}
+	
+	/**
+	 * Encodes a socket address into 18 bytes.
+	 *
+	 * @param socketAddress The socket address to encode.
+	 * @param b The array receiving the encoding.
+	 * @param off The offset to encode at.
+	 */
+	public static void encode(InetSocketAddress socketAddress, byte[] b, int off) {
+		var inet = socketAddress.getAddress();
+		if(inet instanceof Inet6Address){
+			System.arraycopy(inet.getAddress(), 0, b, off, 16);
+		}else{
+			b[off] = (byte)0xff;
+			b[off + 1] = (byte)0xff;
+			System.arraycopy(inet.getAddress(), 0, b, off + 2, 4);
+			for(int i = off + 6; i < off + 16; i++) b[i] = 0;
+		}
+		var port = socketAddress.getPort();
+		b[off + 16] = (byte)(port >>> 8);
+		b[off + 17] = (byte)port;
+	}
+	
+	/**
+	 * Decodes a socket address encoded by {@link #encode(InetSocketAddress, byte[], int)}.
+	 *
+	 * @param b The array holding the encoding.
+	 * @param off The offset of the encoding.
+	 * @return Returns the decoded socket address.
+	 */
+	public static InetSocketAddress decode(byte[] b, int off) {
+		try{
+			var ipv4 = b[off] == (byte)0xff && b[off + 1] == (byte)0xff;
+			var inet = new byte[ipv4 ? 4 : 16];
+			System.arraycopy(b, ipv4 ? off + 2 : off, inet, 0, inet.length);
+			var port = (b[off + 16] & 0xff) << 8 | b[off + 17] & 0xff;
+			return new InetSocketAddress(InetAddress.getByAddress(inet), port);
+		}catch(UnknownHostException e){
+			// not thrown for addresses of valid length
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	// FNV-1a - keys need not be uniformly distributed
+	private int hash(byte[] key, int off) {
+		var h = 0x811c9dc5;
+		for(int i = off; i < off + keyLength; i++) h = (h ^ (key[i] & 0xff)) * 0x01000193;
+		return h ^ (h >>> 16);
+	}
+	
+	private Segment segment(int h) {
+		return segments[h >>> 28];
+	}
+	
+	// raw keys filed by the tick their lease passes in - locked after the 
+	// segment lock when filing
+	private final class Deadlines {
+		final long tick;
+		final int mask;
+		final byte[][] keys;
+		final int[] counts;
+		// last tick whose bucket was taken
+		long current;
+		
+		Deadlines(long ttl) {
+			tick = Math.max(1, Math.min(MAX_TICK, ttl / 8));
+			// a lease never passes more than one revolution ahead
+			var n = Integer.highestOneBit((int)Math.min(1 << 20, ttl / tick + 2)) << 1;
+			mask = n - 1;
+			keys = new byte[n][];
+			counts = new int[n];
+			current = System.currentTimeMillis() / tick;
+		}
+		
+		// files the key in the first bucket due at or after the deadline,
+		// returning the bucket
+		synchronized int file(byte[] key, int keyOffset, long deadline) {
+			var b = (int)(Math.max(current + 1, (deadline + tick - 1) / tick) & mask);
+			var count = counts[b];
+			if(keys[b] == null) {
+				keys[b] = new byte[16 * keyLength];
+			}else if((count + 1) * keyLength > keys[b].length) {
+				keys[b] = Arrays.copyOf(keys[b], 2 * keys[b].length);
+			}
+			System.arraycopy(key, keyOffset, keys[b], count * keyLength, keyLength);
+			counts[b] = count + 1;
+			return b;
+		}
+		
+		// takes the keys of the next bucket due by now, or null if none is
+		synchronized Due next(long now) {
+			var last = now / tick;
+			if(current >= last) return null;
+			// every bucket is visited once after a long pause
+			current = Math.max(current, last - mask - 1) + 1;
+			var b = (int)(current & mask);
+			var due = new Due(b, keys[b], counts[b]);
+			keys[b] = null;
+			counts[b] = 0;
+			return due;
+		}
+	}
+	
+	private static final class Due {
+		final int bucket;
+		final byte[] keys;
+		final int count;
+		
+		Due(int bucket, byte[] keys, int count) {
+			this.bucket = bucket;
+			this.keys = keys;
+			this.count = count;
+		}
+	}
+	
+	// a table is replaced as a whole when resized so optimistic readers 
+	// always see a consistent buffer and mask
+	private static final class Table {
+		final ByteBuffer buffer;
+		final int mask;
+		
+		Table(int slots, int slotLength) {
+			buffer = ByteBuffer.allocateDirect(slots * slotLength);
+			mask = slots - 1;
+		}
+		
+		int slots() {return mask + 1;}
+	}
+	
+	private final class Segment {
+		final StampedLock lock = new StampedLock();
+		volatile Table table;
+		int size;
+		// full and deleted slots
+		int used;
+		
+		Segment(int slots) {
+			table = new Table(slots, slotLength);
+		}
+		
+		boolean get(int h, byte[] key, int keyOffset, byte[] value, int valueOffset) {
+			var stamp = lock.tryOptimisticRead();
+			if(stamp != 0) {
+				var found = read(table, h, key, keyOffset, value, valueOffset);
+				if(lock.validate(stamp)) return found;
+			}
+			stamp = lock.readLock();
+			try{
+				return read(table, h, key, keyOffset, value, valueOffset);
+			}finally{
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		private boolean read(Table t, int h, byte[] key, int keyOffset, byte[] value, int valueOffset) {
+			var slot = find(t, h, key, keyOffset);
+			if(slot < 0) return false;
+			var p = slot * slotLength + 1 + keyLength;
+			for(int i = 0; i < valueLength; i++) value[valueOffset + i] = t.buffer.get(p + i);
+			return true;
+		}
+		
+		boolean put(int h, byte[] key, int keyOffset, byte[] value, int valueOffset) {
+			var stamp = lock.writeLock();
+			try{
+				var t = table;
+				var slot = find(t, h, key, keyOffset);
+				var added = slot < 0;
+				if(added) {
+					if(used + 1 > t.slots() * 3 / 4) {
+						t = resize();
+					}
+					slot = free(t, h);
+					if(t.buffer.get(slot * slotLength) == EMPTY) used++;
+					size++;
+					var p = slot * slotLength;
+					t.buffer.put(p, FULL);
+					for(int i = 0; i < keyLength; i++) t.buffer.put(p + 1 + i, key[keyOffset + i]);
+				}
+				var p = slot * slotLength + 1 + keyLength;
+				for(int i = 0; i < valueLength; i++) t.buffer.put(p + i, value[valueOffset + i]);
+				if(ttl > 0) {
+					var deadline = System.currentTimeMillis() + ttl;
+					t.buffer.putLong(slot * slotLength + deadlineOffset, deadline);
+					// renewed keys are moved when their bucket comes due
+					if(added) t.buffer.putInt(slot * slotLength + bucketOffset, deadlines.file(key, keyOffset, deadline));
+				}
+				return added;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		boolean remove(int h, byte[] key, int keyOffset, byte[] value, int valueOffset) {
+			var stamp = lock.writeLock();
+			try{
+				var t = table;
+				var slot = find(t, h, key, keyOffset);
+				if(slot < 0) return false;
+				if(value != null) {
+					var p = slot * slotLength + 1 + keyLength;
+					for(int i = 0; i < valueLength; i++) {
+						if(t.buffer.get(p + i) != value[valueOffset + i]) return false;
+					}
+				}
+				t.buffer.put(slot * slotLength, DELETED);
+				size--;
+				return true;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		boolean touch(int h, byte[] key, int keyOffset) {
+			var stamp = lock.writeLock();
+			try{
+				var t = table;
+				var slot = find(t, h, key, keyOffset);
+				if(slot < 0) return false;
+				if(ttl > 0) t.buffer.putLong(slot * slotLength + deadlineOffset, System.currentTimeMillis() + ttl);
+				return true;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		boolean expire(int h, byte[] key, int keyOffset, byte[] value, int valueOffset, long now) {
+			var stamp = lock.writeLock();
+			try{
+				var t = table;
+				var slot = find(t, h, key, keyOffset);
+				if(slot < 0 || t.buffer.getLong(slot * slotLength + deadlineOffset) > now) return false;
+				if(value != null) {
+					var p = slot * slotLength + 1 + keyLength;
+					for(int i = 0; i < valueLength; i++) value[valueOffset + i] = t.buffer.get(p + i);
+				}
+				t.buffer.put(slot * slotLength, DELETED);
+				size--;
+				return true;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		// checks a key taken from a due bucket, filing it again unless it was
+		// removed or filed elsewhere since - a passed lease is filed for the 
+		// next tick in case the owner keeps it
+		boolean due(int h, byte[] key, int keyOffset, int bucket, long now) {
+			var stamp = lock.writeLock();
+			try{
+				var t = table;
+				var slot = find(t, h, key, keyOffset);
+				if(slot < 0) return false;
+				var p = slot * slotLength;
+				if(t.buffer.getInt(p + bucketOffset) != bucket) return false;
+				var deadline = t.buffer.getLong(p + deadlineOffset);
+				var passed = deadline <= now;
+				// past the ticks being taken now, so it is not met twice
+				t.buffer.putInt(p + bucketOffset, deadlines.file(key, keyOffset, passed ? now + deadlines.tick : deadline));
+				return passed;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		int size() {
+			var stamp = lock.readLock();
+			try{
+				return size;
+			}finally{
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		void forEach(BiConsumer<byte[], byte[]> action, byte[] key, byte[] value) {
+			var stamp = lock.readLock();
+			try{
+				var t = table;
+				for(int i = 0; i < t.slots(); i++) {
+					var p = i * slotLength;
+					if(t.buffer.get(p) != FULL) continue;
+					for(int k = 0; k < keyLength; k++) key[k] = t.buffer.get(p + 1 + k);
+					for(int k = 0; k < valueLength; k++) value[k] = t.buffer.get(p + 1 + keyLength + k);
+					action.accept(key, value);
+				}
+			}finally{
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		long memory() {
+			return (long)table.slots() * slotLength;
+		}
+		
+		// slot holding the key or -1, probing at most one revolution as an
+		// optimistic reader may see a table being written
+		private int find(Table t, int h, byte[] key, int keyOffset) {
+			var b = t.buffer;
+			for(int n = 0, i = h & t.mask; n <= t.mask; n++, i = (i + 1) & t.mask) {
+				var p = i * slotLength;
+				var state = b.get(p);
+				if(state == EMPTY) return -1;
+				if(state == FULL && matches(b, p + 1, key, keyOffset)) return i;
+			}
+			return -1;
+		}
+		
+		// first empty or deleted slot - called holding the write lock
+		private int free(Table t, int h) {
+			var i = h & t.mask;
+			while(t.buffer.get(i * slotLength) == FULL) i = (i + 1) & t.mask;
+			return i;
+		}
+		
+		private boolean matches(ByteBuffer b, int p, byte[] key, int keyOffset) {
+			for(int i = 0; i < keyLength; i++) {
+				if(b.get(p + i) != key[keyOffset + i]) return false;
+			}
+			return true;
+		}
+		
+		// doubles the table if more than half full, otherwise only drops the 
+		// deleted slots - called holding the write lock
+		private Table resize() {
+			var old = table;
+			var slots = size + 1 > old.slots() / 2 ? old.slots() * 2 : old.slots();
+			var t = new Table(slots, slotLength);
+			var key = new byte[keyLength];
+			for(int i = 0; i < old.slots(); i++) {
+				var p = i * slotLength;
+				if(old.buffer.get(p) != FULL) continue;
+				for(int k = 0; k < keyLength; k++) key[k] = old.buffer.get(p + 1 + k);
+				var slot = free(t, hash(key, 0));
+				var q = slot * slotLength;
+				for(int k = 0; k < slotLength; k++) t.buffer.put(q + k, old.buffer.get(p + k));
+			}
+			used = size;
+			table = t;
+			return t;
+		}
+	}
+}
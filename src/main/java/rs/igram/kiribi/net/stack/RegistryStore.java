@@ -0,0 +1,390 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.stack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import static java.nio.channels.FileChannel.MapMode.*;
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Persists a {@link Registry} through an append only journal and periodic 
+ * memory mapped snapshots.
+ *
+ * <p>Every change made through the store is appended to the current journal 
+ * before the call returns. Writes go to the operating system without forcing 
+ * them to the device, so a registry survives the server process failing but 
+ * the last changes may be lost if the host fails. Writes which do not change 
+ * the registry, such as renewals of a registration, are not journaled.</p>
+ *
+ * <p>A snapshot starts a new journal, writes every entry to a memory mapped 
+ * file and then deletes the journals preceding it. Changes made while the 
+ * snapshot is written go to the new journal, so recovery loads the snapshot 
+ * and replays the journals still present in order.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class RegistryStore implements Closeable {
+	// "KREG"
+	private static final int MAGIC = 0x4b524547;
+	// magic, key length, value length, entry count
+	private static final int HEADER = 20;
+	// snapshots are mapped a region at a time
+	private static final long REGION = 1 << 26;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final String SNAPSHOT = "snapshot";
+	private static final String JOURNAL = "journal-";
+	// journal records
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	
+	private final Path dir;
+	private final Registry registry;
+	private final int keyLength;
+	private final int valueLength;
+	private final ByteBuffer record;
+	private final byte[] current;
+	// serializes snapshots, lock ordering is snapshot then this
+	private final Object snapshotLock = new Object();
+	private FileChannel journal;
+	private long sequence;
+	private long records;
+	
+	/**
+	 * Instantiates a new <code>RegistryStore</code> instance.
+	 *
+	 * @param dir The directory holding the snapshot and journals.
+	 * @param registry The registry to persist.
+	 */
+	public RegistryStore(Path dir, Registry registry) {
+		this.dir = dir;
+		this.registry = registry;
+		keyLength = registry.keyLength();
+		valueLength = registry.valueLength();
+		record = ByteBuffer.allocate(1 + keyLength + valueLength);
+		current = new byte[valueLength];
+	}
+	
+	/**
+	 * Loads the last snapshot and replays the journals into the registry and 
+	 * opens a new journal.
+	 *
+	 * @return Returns the number of entries in the registry.
+	 * @throws IOException if there was a problem reading the store.
+	 */
+	public int recover() throws IOException {
+		synchronized(snapshotLock) {
+			synchronized(this) {
+				if(journal != null) throw new IllegalStateException("Already open");
+				Files.createDirectories(dir);
+				Files.deleteIfExists(dir.resolve(SNAPSHOT + ".tmp"));
+				var snapshot = dir.resolve(SNAPSHOT);
+				if(Files.exists(snapshot)) load(snapshot);
+				var journals = journals();
+				for(var seq : journals) replay(journal(seq));
+				sequence = journals.isEmpty() ? 0 : journals.get(journals.size() - 1);
+				open(sequence + 1);
+				return registry.size();
+			}
+		}
+	}
+	
+	/**
+	 * Associates the value with the key and journals the change. Storing the 
+	 * value already held renews its lease without journaling.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @param value The array holding the value.
+	 * @param valueOffset The offset of the value.
+	 * @return Returns <code>true</code> if the key was not present.
+	 * @throws IOException if there was a problem writing the journal.
+	 */
+	public synchronized boolean put(byte[] key, int keyOffset, byte[] value, int valueOffset) throws IOException {
+		if(registry.get(key, keyOffset, current, 0) 
+			&& Arrays.equals(current, 0, valueLength, value, valueOffset, valueOffset + valueLength)) {
+			registry.touch(key, keyOffset);
+			return false;
+		}
+		var added = registry.put(key, keyOffset, value, valueOffset);
+		record.clear();
+		record.put(PUT).put(key, keyOffset, keyLength).put(value, valueOffset, valueLength);
+		append();
+		return added;
+	}
+	
+	/**
+	 * Removes the key and journals the change.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @return Returns <code>true</code> if the key was present.
+	 * @throws IOException if there was a problem writing the journal.
+	 */
+	public synchronized boolean remove(byte[] key, int keyOffset) throws IOException {
+		return removed(registry.remove(key, keyOffset), key, keyOffset);
+	}
+	
+	/**
+	 * Removes the key if it is associated with the value and journals the change.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @param value The array holding the value.
+	 * @param valueOffset The offset of the value.
+	 * @return Returns <code>true</code> if the key was removed.
+	 * @throws IOException if there was a problem writing the journal.
+	 */
+	public synchronized boolean remove(byte[] key, int keyOffset, byte[] value, int valueOffset) throws IOException {
+		return removed(registry.remove(key, keyOffset, value, valueOffset), key, keyOffset);
+	}
+	
+	/**
+	 * Removes the key if its lease has passed and journals the change.
+	 *
+	 * @param key The array holding the key.
+	 * @param keyOffset The offset of the key.
+	 * @param value The array receiving the value or <code>null</code>.
+	 * @param valueOffset The offset to copy the value to.
+	 * @return Returns <code>true</code> if the key was removed.
+	 * @throws IOException if there was a problem writing the journal.
+	 * @see Registry#expire(byte[], int, byte[], int)
+	 */
+	public synchronized boolean expire(byte[] key, int keyOffset, byte[] value, int valueOffset) throws IOException {
+		return removed(registry.expire(key, keyOffset, value, valueOffset), key, keyOffset);
+	}
+	
+	/**
+	 * Writes a snapshot of the registry and deletes the journals it replaces.
+	 *
+	 * @throws IOException if there was a problem writing the snapshot.
+	 */
+	public void snapshot() throws IOException {
+		synchronized(snapshotLock) {
+			long seq;
+			synchronized(this) {
+				if(journal == null) throw new IllegalStateException("Not open");
+				journal.force(false);
+				journal.close();
+				open(sequence + 1);
+				seq = sequence;
+			}
+			var tmp = dir.resolve(SNAPSHOT + ".tmp");
+			write(tmp);
+			Files.move(tmp, dir.resolve(SNAPSHOT), REPLACE_EXISTING, ATOMIC_MOVE);
+			for(var s : journals()) {
+				if(s < seq) Files.deleteIfExists(journal(s));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of records in the current journal.
+	 *
+	 * @return Returns the number of records in the current journal.
+	 */
+	public synchronized long records() {
+		return records;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		synchronized(snapshotLock) {
+			synchronized(this) {
+				if(journal == null) return;
+				journal.force(false);
+				journal.close();
+				journal = null;
+			}
+		}
+	}
+	
+	private boolean removed(boolean removed, byte[] key, int keyOffset) throws IOException {
+		if(removed) {
+			record.clear();
+			record.put(REMOVE).put(key, keyOffset, keyLength);
+			append();
+		}
+		return removed;
+	}
+	
+	private void append() throws IOException {
+		if(journal == null) throw new IllegalStateException("Not open");
+		record.flip();
+		while(record.hasRemaining()) journal.write(record);
+		records++;
+	}
+	
+	private void open(long seq) throws IOException {
+		journal = FileChannel.open(journal(seq), CREATE, WRITE, APPEND);
+		sequence = seq;
+		records = 0;
+	}
+	
+	private Path journal(long seq) {
+		return dir.resolve(JOURNAL + seq);
+	}
+	
+	// sequence numbers of the journals present in ascending order
+	private List<Long> journals() throws IOException {
+		var journals = new ArrayList<Long>();
+		try(var stream = Files.newDirectoryStream(dir, JOURNAL + "*")){
+			for(var p : stream) {
+				try{
+					journals.add(Long.parseLong(p.getFileName().toString().substring(JOURNAL.length())));
+				}catch(NumberFormatException e){
+					// not a journal
+				}
+			}
+		}
+		journals.sort(null);
+		return journals;
+	}
+	
+	// replays whole records, a record torn by a failure ends the journal
+	private void replay(Path path) throws IOException {
+		var key = new byte[keyLength];
+		var value = new byte[valueLength];
+		var buf = ByteBuffer.allocate(BUFFER_SIZE);
+		try(var channel = FileChannel.open(path, READ)){
+			while(true) {
+				var n = channel.read(buf);
+				buf.flip();
+				while(buf.hasRemaining()) {
+					var op = buf.get(buf.position());
+					if(op != PUT && op != REMOVE) throw new IOException("Corrupt journal: " + path);
+					var length = op == PUT ? 1 + keyLength + valueLength : 1 + keyLength;
+					if(buf.remaining() < length) break;
+					buf.get();
+					buf.get(key);
+					if(op == PUT) {
+						buf.get(value);
+						registry.put(key, 0, value, 0);
+					}else{
+						registry.remove(key, 0);
+					}
+				}
+				buf.compact();
+				if(n < 0) break;
+			}
+		}
+	}
+	
+	private void load(Path path) throws IOException {
+		try(var channel = FileChannel.open(path, READ)){
+			var header = ByteBuffer.allocate(HEADER);
+			while(header.hasRemaining() && channel.read(header) > 0);
+			header.flip();
+			if(header.remaining() < HEADER || header.getInt() != MAGIC) throw new IOException("Corrupt snapshot: " + path);
+			if(header.getInt() != keyLength || header.getInt() != valueLength) throw new IOException("Snapshot entry length mismatch: " + path);
+			var count = header.getLong();
+			var entry = keyLength + valueLength;
+			if(channel.size() < HEADER + count * entry) throw new IOException("Truncated snapshot: " + path);
+			var key = new byte[keyLength];
+			var value = new byte[valueLength];
+			long position = HEADER;
+			var remaining = count;
+			while(remaining > 0) {
+				var n = Math.min(remaining, REGION / entry);
+				MappedByteBuffer buf = channel.map(READ_ONLY, position, n * entry);
+				for(long i = 0; i < n; i++) {
+					buf.get(key);
+					buf.get(value);
+					registry.put(key, 0, value, 0);
+				}
+				position += n * entry;
+				remaining -= n;
+			}
+		}
+	}
+	
+	private void write(Path path) throws IOException {
+		try(var channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, READ, WRITE)){
+			var writer = new SnapshotWriter(channel);
+			try{
+				registry.forEach(writer);
+			}catch(UncheckedIOException e){
+				throw e.getCause();
+			}
+			writer.flush();
+			var header = ByteBuffer.allocate(HEADER)
+				.putInt(MAGIC).putInt(keyLength).putInt(valueLength).putLong(writer.count)
+				.flip();
+			while(header.hasRemaining()) channel.write(header, HEADER - header.remaining());
+			// drop the unused part of the last region
+			channel.truncate(writer.position);
+			channel.force(true);
+		}
+	}
+	
+	// writes entries a mapped region at a time following the header
+	private final class SnapshotWriter implements BiConsumer<byte[], byte[]> {
+		final FileChannel channel;
+		final int entry = keyLength + valueLength;
+		final long perRegion = REGION / entry;
+		long position = HEADER;
+		long count;
+		long written;
+		MappedByteBuffer buf;
+		
+		SnapshotWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+		
+		@Override
+		public void accept(byte[] key, byte[] value) {
+			try{
+				if(buf == null || written == perRegion) {
+					flush();
+					buf = channel.map(READ_WRITE, position, perRegion * entry);
+					written = 0;
+				}
+				buf.put(key).put(value);
+				written++;
+				count++;
+			}catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		void flush() {
+			if(buf == null) return;
+			buf.force();
+			position += written * entry;
+			buf = null;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.net.stack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import rs.igram.kiribi.net.NetworkExecutor;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Hashed timing wheel for tracking large numbers of idle deadlines.
+ *
+ * <p>Each tick only the entries in the current bucket are visited. Deadlines 
+ * are extended lazily: touching a timeout with a later deadline only records 
+ * the new deadline and the entry is re-bucketed when its old bucket comes due, 
+ * so the cost of a tick is proportional to the number of entries expiring or 
+ * due to be moved rather than the number of entries in the wheel. A timeout 
+ * touched with an earlier deadline is queued again in the earlier bucket and 
+ * the stale entry is dropped when its bucket comes due.</p>
+ *
+ * <p>A timeout touched concurrently with its expiry may still be reported as 
+ * expired so consumers should re-check their own idle state.</p>
+ *
+ * @param <K> The type of key associated with each timeout.
+ * @author Michael Sargent
+ */
+public final class TimingWheel<K> {
+	private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getName());
+	
+	private final Deque<Timeout>[] buckets;
+	private final int mask;
+	private final long tick;
+	private final long origin = System.currentTimeMillis();
+	private final Consumer<K> onExpired;
+	private final NetworkExecutor executor;
+	// index of the next tick to process
+	private long ticks;
+	private int size;
+	private ScheduledFuture<?> timer;
+	
+	/**
+	 * Instantiates a new <code>TimingWheel</code> instance.
+	 *
+	 * @param executor The executor which drives this wheel.
+	 * @param tick The tick duration in milliseconds.
+	 * @param wheelSize The number of buckets - rounded up to a power of two.
+	 * @param onExpired Consumer of the keys of expired timeouts.
+	 */
+	public TimingWheel(NetworkExecutor executor, long tick, int wheelSize, Consumer<K> onExpired) {
+		if(tick < 1) throw new IllegalArgumentException("Tick must be positive: "+tick);
+		var n = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		// generic arrays can't be created - the cast is safe as the array
+		// never escapes and only holds the deques created below
+		@SuppressWarnings("unchecked")
+		var b = (Deque<Timeout>[])new Deque<?>[n];
+		buckets = b;
+		for(int i = 0; i < n; i++) buckets[i] = new ArrayDeque<>();
+		mask = n - 1;
+		this.tick = tick;
+		this.executor = executor;
+		this.onExpired = onExpired;
+	}
+	
+	/**
+	 * Starts this wheel.
+	 */
+	public synchronized void start() {
+		if(timer != null) return;
+		ticks = (System.currentTimeMillis() - origin) / tick;
+		timer = executor.scheduleAtFixedRate(this::advance, tick, tick, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops this wheel - pending timeouts will not expire.
+	 */
+	public synchronized void stop() {
+		if(timer != null) timer.cancel(false);
+		timer = null;
+	}
+	
+	/**
+	 * Schedules a timeout.
+	 *
+	 * @param key The key to pass to the expiry consumer.
+	 * @param delay The delay in milliseconds from now until the timeout expires.
+	 * @return Returns the scheduled timeout.
+	 */
+	public Timeout schedule(K key, long delay) {
+		var timeout = new Timeout(key);
+		timeout.touch(delay);
+		return timeout;
+	}
+	
+	/**
+	 * Returns the number of scheduled timeouts.
+	 *
+	 * @return Returns the number of scheduled timeouts.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	// tick at or after the provided time
+	private long tickOf(long time) {
+		return (time - origin + tick - 1) / tick;
+	}
+	
+	// called holding the wheel lock
+	private void insert(Timeout t, long earliest) {
+		var target = Math.max(earliest, tickOf(t.deadline));
+		buckets[(int)(target & mask)].add(t);
+		t.target = target;
+	}
+	
+	// process the buckets which have come due since the last tick
+	void advance() {
+		List<Timeout> expired = new ArrayList<>();
+		var now = System.currentTimeMillis();
+		synchronized(this) {
+			var current = (now - origin) / tick;
+			for(; ticks <= current; ticks++) {
+				var bucket = buckets[(int)(ticks & mask)];
+				for(int i = bucket.size(); i > 0; i--) {
+					var t = bucket.poll();
+					if(t.target != ticks) {
+						// due in a later revolution - otherwise a stale entry
+						if(t.target > ticks && (t.target & mask) == (ticks & mask)) bucket.add(t);
+					} else if(t.cancelled) {
+						done(t);
+					} else if(t.deadline > now) {
+						// touched since queued
+						insert(t, ticks + 1);
+					} else {
+						done(t);
+						expired.add(t);
+					}
+				}
+			}
+		}
+		
+		for(var t : expired) {
+			try {
+				onExpired.accept(t.key);
+			} catch(Throwable e) {
+				LOGGER.log(SEVERE, e.toString(), e);
+			}
+		}
+	}
+	
+	// called holding the wheel lock
+	private void done(Timeout t) {
+		t.target = -1;
+		t.scheduled = false;
+		size--;
+	}
+	
+	/**
+	 * A timeout scheduled on a <code>TimingWheel</code>.
+	 */
+	public final class Timeout {
+		/** The key associated with this timeout. */
+		public final K key;
+		private volatile long deadline;
+		private volatile boolean cancelled;
+		// written while holding the wheel lock
+		private volatile boolean scheduled;
+		private volatile long target = -1;
+		
+		private Timeout(K key) {
+			this.key = key;
+		}
+		
+		/**
+		 * Moves the deadline of this timeout to the provided delay from now. 
+		 * An expired or cancelled timeout is rescheduled.
+		 *
+		 * @param delay The delay in milliseconds from now until this timeout expires.
+		 */
+		public void touch(long delay) {
+			var d = System.currentTimeMillis() + delay;
+			deadline = d;
+			cancelled = false;
+			// extending a queued deadline is deferred to the queued bucket
+			if(scheduled && tickOf(d) >= target) return;
+			synchronized(TimingWheel.this) {
+				if(!scheduled) {
+					scheduled = true;
+					size++;
+					insert(this, ticks);
+				} else if(tickOf(deadline) < target) {
+					insert(this, ticks);
+				}
+			}
+		}
+		
+		/**
+		 * Cancels this timeout.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+		
+		/**
+		 * Returns the deadline of this timeout in milliseconds since the epoch.
+		 *
+		 * @return Returns the deadline of this timeout.
+		 */
+		public long deadline() {
+			return deadline;
+		}
+	}
+}
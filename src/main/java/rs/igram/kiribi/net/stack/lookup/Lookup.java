@@ -26,33 +26,79 @@ package rs.igram.kiribi.net.stack.lookup;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import rs.igram.kiribi.io.EncodableBytes;
 import rs.igram.kiribi.io.VarInputStream;
 import rs.igram.kiribi.io.VarOutputStream;
 import rs.igram.kiribi.net.Address;
 import rs.igram.kiribi.net.Endpoint;
+import rs.igram.kiribi.net.NetworkExecutor;
 import rs.igram.kiribi.net.TCPEndpointFactory;
+import rs.igram.kiribi.net.ShardRing;
 
 import static rs.igram.kiribi.net.stack.lookup.LookupProtocol.*;
 
 /**
- * 
+ * Lookup server client.
+ *
+ * <p>Requests are pipelined over a single secure connection to the lookup 
+ * server which is opened on first use and reopened once it fails. A 
+ * connection is opened outside the client's lock, so a server which is slow 
+ * to answer holds up only the requests sent to it.</p>
+ *
+ * <p>With a cluster of lookup servers each request goes to the server owning 
+ * its address, over a connection per server. A server whose ring differs from 
+ * this client's redirects the request to the owner, which is followed once. 
+ * If the ring holds each address on several servers, registrations fail over 
+ * from the owner to the other replicas in ring order and lookups go to a 
+ * random replica, failing over to the others.</p>
  *
  * @author Michael Sargent
  */
 public final class Lookup {
+	// longest a request to a server waits, connecting and retrying included, in seconds
+	static final long TIMEOUT = 30;
+	
 	private final Address address;
 	private final InetSocketAddress socketAddress;
-	private final InetSocketAddress lookupServerAddress;
+	private final ShardRing servers;
+	private final AtomicLong ids = new AtomicLong();
+	// completed once the connection is open
+	private final Map<InetSocketAddress,CompletableFuture<Connection>> connections = new HashMap<>();
+	// re-registers before the server's lease ends
+	private ScheduledFuture<?> renewal;
+	private long lease;
 	
 	public Lookup(Address address, InetSocketAddress socketAddress, InetSocketAddress lookupServerAddress) {
+		this(address, socketAddress, ShardRing.of(lookupServerAddress));
+	}
+	
+	/**
+	 * Instantiates a new <code>Lookup</code> instance for a cluster of lookup servers.
+	 *
+	 * @param address The address to register.
+	 * @param socketAddress The socket address to register.
+	 * @param servers The lookup servers.
+	 */
+	public Lookup(Address address, InetSocketAddress socketAddress, ShardRing servers) {
 		this.address = address;
 		this.socketAddress = socketAddress;
-		this.lookupServerAddress = lookupServerAddress;
+		this.servers = servers;
 	}
 	
 	public void register() throws IOException, InterruptedException {
@@ -60,64 +106,318 @@ public final class Lookup {
 		out.write(REGISTER);
 		out.write(address);
 		out.writeAddress(socketAddress);
-		var bytes = new EncodableBytes(out.toByteArray());
-		var endpoint = open();
-		endpoint.write(bytes);
 		
-		var response = endpoint.read(EncodableBytes::new);
-		endpoint.close();
-		
-		var in = new VarInputStream(response.bytes());
-		var b = in.readByte();
-		if (b != ACK) {
+		var response = request(servers.replicas(address), out.toByteArray());
+		var in = response.in;
+		if (response.status != ACK) {
 			throw new IOException(in.readUTF());
 		}		
+		// servers without leases send no lease
+		if (in.available() >= 8) renew(in.readLong());
 	}
 	
 	public void unregister() throws IOException, InterruptedException {
+		cancelRenewal();
 		var out = new VarOutputStream();
 		out.write(UNREGISTER);
 		out.write(address);
-		var bytes = new EncodableBytes(out.toByteArray());
-		var endpoint = open();
-		endpoint.write(bytes);
-		var response = endpoint.read(EncodableBytes::new);
-		endpoint.close();
 		
-		var in = new VarInputStream(response.bytes());
-		var b = in.readByte();
-		if (b != ACK) {
-			throw new IOException(in.readUTF());
+		var response = request(servers.replicas(address), out.toByteArray());
+		if (response.status != ACK) {
+			throw new IOException(response.in.readUTF());
 		}
 	}
 	
 	public InetSocketAddress lookup(Address address) throws IOException, InterruptedException {
+		var replicas = servers.replicas(address);
+		if (replicas.size() > 1) {
+			replicas = new ArrayList<>(replicas);
+			Collections.rotate(replicas, ThreadLocalRandom.current().nextInt(replicas.size()));
+		}
+		return lookup(request(replicas, lookupRequest(address)));
+	}
+	
+	private static byte[] lookupRequest(Address address) throws IOException {
 		var out = new VarOutputStream();
 		out.write(LOOKUP);
 		out.write(address);
-		var bytes = new EncodableBytes(out.toByteArray());
-		var endpoint = open();
-		endpoint.write(bytes);
-		var response = endpoint.read(EncodableBytes::new);
-		endpoint.close();
-		
-		var in = new VarInputStream(response.bytes());
-		var b = in.readByte();
-		
-		switch(b){
+		return out.toByteArray();
+	}
+	
+	private static InetSocketAddress lookup(Response response) throws IOException {
+		var in = response.in;
+		switch(response.status){
 		case ACK: return in.readAddress();
 		case UNKNOWN: return null;
 		case ERROR: throw new IOException(in.readUTF());
+		case REDIRECT: throw new IOException("Redirected twice");
 		}
 		// make compiler happy
 		return null;
 	}
+	
+	/**
+	 * Resolves the given addresses, one request per {@link LookupProtocol#MAX_BATCH} addresses 
+	 * owned by the same server.
+	 *
+	 * @param addresses The addresses to resolve.
+	 * @return The socket address of each address in iteration order, <code>null</code> if unknown.
+	 * @throws IOException if there was a problem resolving the addresses.
+	 * @throws InterruptedException if this method was interrupted.
+	 */
+	public Map<Address,InetSocketAddress> lookupAll(Collection<Address> addresses) throws IOException, InterruptedException {
+		var result = new LinkedHashMap<Address,InetSocketAddress>();
+		var batches = new HashMap<InetSocketAddress,List<Address>>();
+		// spreads the batches across the replicas
+		var replica = ThreadLocalRandom.current().nextInt(servers.replicas());
+		for (var address : addresses) {
+			// fixes the iteration order of the result
+			result.put(address, null);
+			var replicas = servers.replicas(address);
+			var server = replicas.get(replica % replicas.size());
+			var batch = batches.computeIfAbsent(server, k -> new ArrayList<>());
+			batch.add(address);
+			if (batch.size() == MAX_BATCH) {
+				lookupAll(server, batch, result);
+				batch.clear();
+			}
+		}
+		for (var e : batches.entrySet()) {
+			if (!e.getValue().isEmpty()) lookupAll(e.getKey(), e.getValue(), result);
+		}
+		
+		return result;
+	}
+	
+	// a batch the server failed to resolve fails over address by address
+	private void lookupAll(InetSocketAddress server, List<Address> batch, Map<Address,InetSocketAddress> result) throws IOException, InterruptedException {
+		var out = new VarOutputStream();
+		out.write(LOOKUP_MANY);
+		out.writeInt(batch.size());
+		for (var address : batch) out.write(address);
 		
-	private Endpoint open() throws IOException, InterruptedException {
+		VarInputStream in;
 		try{
-			return TCPEndpointFactory.open(lookupServerAddress);
-		} catch(ExecutionException e) {
-			throw new IOException(e);
+			in = request(server, out.toByteArray());
+		}catch(IOException e){
+			if (servers.replicas() == 1) throw e;
+			for (var address : batch) result.put(address, lookup(address));
+			return;
+		}
+		var b = in.readByte();
+		if (b != ACK) {
+			throw new IOException(in.readUTF());
 		}
-	}	
-}
\ No newline at end of file
+		var count = in.readInt();
+		if (count != batch.size()) throw new IOException("Expected " + batch.size() + " results, received " + count);
+		for (var address : batch) {
+			b = in.readByte();
+			if (b == REDIRECT) {
+				var owner = in.readAddress();
+				result.put(address, lookup(response(request(owner, lookupRequest(address)))));
+			} else {
+				result.put(address, b == ACK ? in.readAddress() : null);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the connections to the lookup servers, a later request opens a new one.
+	 */
+	public void close() {
+		cancelRenewal();
+		List<CompletableFuture<Connection>> open;
+		synchronized(this) {
+			open = new ArrayList<>(connections.values());
+		}
+		for (var f : open) {
+			var c = f.getNow(null);
+			if (c != null) c.fail(new IOException("Lookup closed"));
+		}
+	}
+	
+	// renews at half the lease, retrying at a quarter if renewing failed
+	private synchronized void renew(long lease) {
+		this.lease = lease;
+		schedule(lease / 2);
+	}
+	
+	private synchronized void schedule(long delay) {
+		if (renewal != null) renewal.cancel(false);
+		var executor = Renewals.executor;
+		// the scheduler only times the renewal, registering blocks
+		renewal = executor.schedule(() -> executor.submit(this::reregister), delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private void reregister() {
+		try{
+			register();
+		}catch(Exception e){
+			synchronized(this) {
+				if (renewal != null && !renewal.isCancelled()) schedule(lease / 4);
+			}
+		}
+	}
+	
+	private synchronized void cancelRenewal() {
+		if (renewal != null) renewal.cancel(false);
+		renewal = null;
+	}
+	
+	// sends the request to the first of the servers to answer following a redirect once
+	private Response request(List<InetSocketAddress> candidates, byte[] request) throws IOException, InterruptedException {
+		IOException failure = null;
+		for (var server : candidates) {
+			try{
+				var response = response(request(server, request));
+				if (response.status == REDIRECT) {
+					response = response(request(response.in.readAddress(), request));
+				}
+				return response;
+			}catch(IOException e){
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+	
+	private static Response response(VarInputStream in) throws IOException {
+		return new Response(in.readByte(), in);
+	}
+	
+	// requests are idempotent so one which failed with its connection is 
+	// sent again over a new connection while time remains
+	private VarInputStream request(InetSocketAddress server, byte[] request) throws IOException, InterruptedException {
+		var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+		try{
+			return connection(server, deadline).request(request, deadline);
+		}catch(IOException e){
+			if (deadline - System.nanoTime() <= 0) throw e;
+			return connection(server, deadline).request(request, deadline);
+		}
+	}
+	
+	// the first caller opens the connection, the others wait for it
+	private Connection connection(InetSocketAddress server, long deadline) throws IOException, InterruptedException {
+		CompletableFuture<Connection> connection;
+		var opening = false;
+		synchronized(this) {
+			connection = connections.get(server);
+			if (connection == null) {
+				connection = new CompletableFuture<>();
+				connections.put(server, connection);
+				opening = true;
+			}
+		}
+		if (opening) open(server, connection);
+		try{
+			return connection.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}catch(ExecutionException e){
+			throw (IOException)e.getCause();
+		}catch(TimeoutException e){
+			throw new IOException("Connecting to " + server + " timed out");
+		}
+	}
+	
+	private void open(InetSocketAddress server, CompletableFuture<Connection> connection) throws InterruptedException {
+		try{
+			connection.complete(new Connection(server, TCPEndpointFactory.open(server), connection));
+		}catch(IOException | ExecutionException | InterruptedException e){
+			synchronized(this) {
+				connections.remove(server, connection);
+			}
+			connection.completeExceptionally(e instanceof IOException ? e : new IOException(e));
+			if (e instanceof InterruptedException) throw (InterruptedException)e;
+		}
+	}
+	
+	// runs the renewals of all clients, created once one registers
+	private static final class Renewals {
+		static final NetworkExecutor executor = new NetworkExecutor();
+	}
+	
+	// the status of a response and the stream positioned after it
+	private static final class Response {
+		final byte status;
+		final VarInputStream in;
+		
+		Response(byte status, VarInputStream in) {
+			this.status = status;
+			this.in = in;
+		}
+	}
+	
+	// responses are matched to requests by id
+	private final class Connection {
+		final InetSocketAddress server;
+		final Endpoint endpoint;
+		// this connection's entry in the connections
+		final CompletableFuture<Connection> handle;
+		final Map<Long,CompletableFuture<VarInputStream>> pending = new ConcurrentHashMap<>();
+		volatile IOException failure;
+		
+		Connection(InetSocketAddress server, Endpoint endpoint, CompletableFuture<Connection> handle) {
+			this.server = server;
+			this.endpoint = endpoint;
+			this.handle = handle;
+			
+			var reader = new Thread(this::read, "lookup-" + server);
+			reader.setDaemon(true);
+			reader.start();
+		}
+		
+		VarInputStream request(byte[] request, long deadline) throws IOException, InterruptedException {
+			var id = ids.incrementAndGet();
+			var future = new CompletableFuture<VarInputStream>();
+			pending.put(id, future);
+			try{
+				if (failure != null) throw failure;
+				var out = new VarOutputStream();
+				out.write(PIPELINED);
+				out.writeLong(id);
+				out.write(request);
+				endpoint.write(new EncodableBytes(out.toByteArray()));
+				
+				return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}catch(IOException e){
+				fail(e);
+				throw e;
+			}catch(TimeoutException e){
+				var failure = new IOException("Lookup timed out");
+				fail(failure);
+				throw failure;
+			}catch(ExecutionException e){
+				throw (IOException)e.getCause();
+			}finally{
+				pending.remove(id);
+			}
+		}
+		
+		void read() {
+			try{
+				while (true) {
+					var response = endpoint.read(EncodableBytes::new);
+					var in = new VarInputStream(response.bytes());
+					var future = pending.get(in.readLong());
+					if (future != null) future.complete(in);
+				}
+			}catch(IOException e){
+				fail(e);
+			}
+		}
+		
+		void fail(IOException e) {
+			synchronized(Lookup.this) {
+				if (failure != null) return;
+				failure = e;
+				connections.remove(server, handle);
+			}
+			try{
+				endpoint.close();
+			}catch(IOException x){
+				// ignore
+			}
+			pending.values().forEach(f -> f.completeExceptionally(e));
+		}
+	}
+}
@@ -37,6 +37,29 @@ public final class LookupProtocol {
 	public static final byte REGISTER 		= 3;
 	public static final byte UNREGISTER	= 4;
 	public static final byte LOOKUP			= 5;
+	// prefixes a request with an id the response echoes
+	public static final byte PIPELINED		= 6;
+	public static final byte LOOKUP_MANY	= 7;
+	// response naming the server owning the address in a cluster
+	public static final byte REDIRECT		= 8;
+	// registrations and unregistrations passed between replicas
+	public static final byte REPLICATE		= 9;
+	
+	// most addresses resolved by one LOOKUP_MANY request
+	public static final int MAX_BATCH = 1024;
+	
+	// datagram offsets - NLP_PROTOCOL, request id, op code, address and an 
+	// op code specific socket address, followed by the signed part of a 
+	// registration or the lease of its response
+	public static final int OFF_CMD		= 9;
+	public static final int OFF_DATA	= 10;
+	public static final int OFF_INET	= 30;
+	public static final int OFF_TIME	= 50;
+	public static final int OFF_KEY		= 58;
+	// length of every datagram response
+	public static final int RESPONSE_LENGTH	= 58;
+	// most a signed datagram registration's clock may differ from the server's
+	public static final long MAX_SKEW = 30 * 1000;
 	
 	private LookupProtocol() {}
 }
\ No newline at end of file
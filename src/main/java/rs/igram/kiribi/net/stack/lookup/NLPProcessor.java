@@ -0,0 +1,310 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.net.stack.lookup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import rs.igram.kiribi.net.Address;
+import rs.igram.kiribi.net.ShardRing;
+import rs.igram.kiribi.net.stack.NetworkMux;
+import rs.igram.kiribi.net.stack.NetworkProtocol;
+import rs.igram.kiribi.net.stack.Processor;
+
+import static rs.igram.kiribi.net.stack.NetworkProtocol.OFF_ID;
+import static rs.igram.kiribi.net.stack.lookup.LookupProtocol.*;
+import static rs.igram.kiribi.io.ByteUtils.*;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Lookup server client over the datagram stack.
+ *
+ * <p>Each lookup or registration is a single datagram answered by a single 
+ * datagram, matched by a random request id and the server it was sent to. 
+ * Unanswered requests are resent with a doubling timeout and then fail over 
+ * to the next replica of the address, and a redirect is followed once.</p>
+ *
+ * <p>Registrations are signed with the key pair of the address and carry 
+ * its public key, so a server accepts them only from the holder of the 
+ * address. The signature covers a timestamp the server checks against its 
+ * clock, limiting a replayed registration to {@link LookupProtocol#MAX_SKEW}.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class NLPProcessor extends Processor {
+	private static final Logger LOGGER = Logger.getLogger(NLPProcessor.class.getName());
+	
+	// sends of a request to one server
+	static final int TRIES = 3;
+	// first wait for a response in milliseconds, doubled on each resend
+	static final long TIMEOUT = 250;
+	
+	private static final SecureRandom random = new SecureRandom();
+	
+	private final ShardRing servers;
+	// pending requests keyed by request id
+	private final Map<Long,Request> requests = new ConcurrentHashMap<>();
+	
+	public NLPProcessor(SocketAddress server) {
+		this(ShardRing.of((InetSocketAddress)server));
+	}
+	
+	/**
+	 * Instantiates a new <code>NLPProcessor</code> instance for a cluster of lookup servers.
+	 *
+	 * @param servers The lookup servers.
+	 */
+	public NLPProcessor(ShardRing servers) {
+		super(NetworkProtocol.NLP_PROTOCOL);
+		
+		this.servers = servers;
+	}
+	
+	@Override
+	public void process(DatagramPacket p) {
+		if (p.getLength() < RESPONSE_LENGTH) return;
+		var buf = p.getData();
+		var request = requests.get(getLong(buf, OFF_ID));
+		// responses are only taken from the server the request was sent to
+		if (request != null && request.server.equals(p.getSocketAddress())) {
+			request.response.complete(extract(buf, 0, RESPONSE_LENGTH));
+		}
+	}
+	
+	/**
+	 * Registers an address with the lookup servers holding it.
+	 *
+	 * @param address The address to register.
+	 * @param socketAddress The socket address to register.
+	 * @param keys The key pair of the address.
+	 * @return The lease of the registration in milliseconds.
+	 * @throws IOException if the registration was rejected or no server responded.
+	 * @throws InterruptedException if interrupted while waiting for a response.
+	 */
+	public long register(Address address, InetSocketAddress socketAddress, KeyPair keys) throws IOException, InterruptedException {
+		var response = request(servers.replicas(address), registration(address, socketAddress, System.currentTimeMillis(), keys));
+		if (response[OFF_CMD] != ACK) throw new IOException("Registration rejected: " + address);
+		return getLong(response, OFF_TIME);
+	}
+	
+	/**
+	 * Looks up the socket address registered for an address.
+	 *
+	 * @param address The address to look up.
+	 * @return The registered socket address or <code>null</code> if the address is not registered.
+	 * @throws IOException if the lookup failed or no server responded.
+	 * @throws InterruptedException if interrupted while waiting for a response.
+	 */
+	public InetSocketAddress lookup(Address address) throws IOException, InterruptedException {
+		var replicas = servers.replicas(address);
+		if (replicas.size() > 1) {
+			replicas = new ArrayList<>(replicas);
+			Collections.rotate(replicas, ThreadLocalRandom.current().nextInt(replicas.size()));
+		}
+		var request = new byte[OFF_INET];
+		header(request, LOOKUP, address);
+		var response = request(replicas, request);
+		switch(response[OFF_CMD]) {
+		case ACK:
+			return (InetSocketAddress)NetworkMux.inet(response, OFF_INET);
+		case UNKNOWN:
+			return null;
+		default:
+			throw new IOException("Lookup failed: " + address);
+		}
+	}
+	
+	@Override
+	public void shutdown() {
+		requests.values().forEach(r -> r.response.cancel(false));
+	}
+	
+	// tries the candidates in order, following a redirect once
+	private byte[] request(List<InetSocketAddress> candidates, byte[] request) throws IOException, InterruptedException {
+		for (var server : candidates) {
+			var response = send(server, request);
+			if (response == null) continue;
+			if (response[OFF_CMD] != REDIRECT) return response;
+			var owner = NetworkMux.inet(response, OFF_INET);
+			LOGGER.log(FINER, "Redirected from {0} to {1}", new Object[]{server, owner});
+			response = send(owner, request);
+			if (response != null && response[OFF_CMD] != REDIRECT) return response;
+		}
+		throw new IOException("No lookup server responded: " + candidates);
+	}
+	
+	// resends until answered, null if the server did not respond
+	private byte[] send(SocketAddress server, byte[] request) throws IOException, InterruptedException {
+		var pending = new Request(server);
+		long id;
+		do {
+			id = random.nextLong();
+		} while (requests.putIfAbsent(id, pending) != null);
+		try{
+			var buf = request.clone();
+			put(buf, OFF_ID, id);
+			var timeout = TIMEOUT;
+			for (int i = 0; i < TRIES; i++, timeout *= 2) {
+				mux.write(new DatagramPacket(buf, buf.length, server));
+				try{
+					return pending.response.get(timeout, TimeUnit.MILLISECONDS);
+				} catch(TimeoutException e) {
+					// resend
+				} catch(ExecutionException e) {
+					throw new IOException(e.getCause());
+				}
+			}
+			LOGGER.log(FINE, "No response from {0}", server);
+			return null;
+		} finally {
+			requests.remove(id);
+		}
+	}
+	
+	private static void header(byte[] b, byte cmd, Address address) {
+		b[0] = NetworkProtocol.NLP_PROTOCOL;
+		b[OFF_CMD] = cmd;
+		NetworkMux.address(b, address, OFF_DATA);
+	}
+	
+	/**
+	 * Returns a signed registration datagram, without its request id.
+	 *
+	 * @param address The address to register.
+	 * @param socketAddress The socket address to register.
+	 * @param timestamp The time of the registration in milliseconds.
+	 * @param keys The key pair of the address.
+	 * @return The registration datagram.
+	 * @throws IOException if the registration could not be signed.
+	 */
+	public static byte[] registration(Address address, InetSocketAddress socketAddress, long timestamp, KeyPair keys) throws IOException {
+		var algorithm = keys.getPublic().getAlgorithm().getBytes(StandardCharsets.US_ASCII);
+		var key = keys.getPublic().getEncoded();
+		var off = OFF_KEY + 1 + algorithm.length + 2 + key.length;
+		var b = new byte[off + 2 + 512];
+		header(b, REGISTER, address);
+		NetworkMux.inet(b, socketAddress, OFF_INET);
+		put(b, OFF_TIME, timestamp);
+		b[OFF_KEY] = (byte)algorithm.length;
+		System.arraycopy(algorithm, 0, b, OFF_KEY + 1, algorithm.length);
+		putShort(b, OFF_KEY + 1 + algorithm.length, key.length);
+		System.arraycopy(key, 0, b, off - key.length, key.length);
+		try{
+			var signer = Signature.getInstance(signature(keys.getPublic().getAlgorithm()));
+			signer.initSign(keys.getPrivate());
+			signer.update(b, OFF_CMD, off - OFF_CMD);
+			var signature = signer.sign();
+			putShort(b, off, signature.length);
+			System.arraycopy(signature, 0, b, off + 2, signature.length);
+			return Arrays.copyOf(b, off + 2 + signature.length);
+		} catch(GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Verifies a registration datagram, true if it is signed by the key of 
+	 * its address and its timestamp is within {@link LookupProtocol#MAX_SKEW} 
+	 * of the given time.
+	 *
+	 * @param b The datagram.
+	 * @param length The length of the datagram.
+	 * @param now The current time in milliseconds.
+	 * @return <code>true</code> if the registration is valid.
+	 */
+	public static boolean verify(byte[] b, int length, long now) {
+		try{
+			if (length <= OFF_KEY || Math.abs(getLong(b, OFF_TIME) - now) > MAX_SKEW) return false;
+			var a = b[OFF_KEY] & 0xff;
+			if (OFF_KEY + 1 + a + 2 > length) return false;
+			var algorithm = new String(b, OFF_KEY + 1, a, StandardCharsets.US_ASCII);
+			var k = getShort(b, OFF_KEY + 1 + a);
+			var off = OFF_KEY + 1 + a + 2 + k;
+			if (off + 2 > length) return false;
+			var s = getShort(b, off);
+			if (off + 2 + s > length) return false;
+			
+			var key = KeyFactory.getInstance(algorithm)
+				.generatePublic(new X509EncodedKeySpec(Arrays.copyOfRange(b, off - k, off)));
+			if (!new Address(key).equals(NetworkMux.address(b, OFF_DATA))) return false;
+			var verifier = Signature.getInstance(signature(algorithm));
+			verifier.initVerify(key);
+			verifier.update(b, OFF_CMD, off - OFF_CMD);
+			return verifier.verify(b, off + 2, s);
+		} catch(GeneralSecurityException | RuntimeException e) {
+			return false;
+		}
+	}
+	
+	// signature algorithm for a key algorithm, edwards curve keys name their own
+	private static String signature(String algorithm) {
+		switch(algorithm) {
+		case "EC":	return "SHA256withECDSA";
+		case "RSA":	return "SHA256withRSA";
+		case "DSA":	return "SHA256withDSA";
+		default:	return algorithm;
+		}
+	}
+	
+	private static void putShort(byte[] b, int off, int value) {
+		b[off] = (byte)(value >>> 8);
+		b[off + 1] = (byte)value;
+	}
+	
+	private static int getShort(byte[] b, int off) {
+		return (b[off] & 0xff) << 8 | b[off + 1] & 0xff;
+	}
+	
+	private static final class Request {
+		final SocketAddress server;
+		final CompletableFuture<byte[]> response = new CompletableFuture<>();
+		
+		Request(SocketAddress server) {
+			this.server = server;
+		}
+	}
+}
@@ -43,8 +43,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+import rs.igram.kiribi.net.stack.NetworkMux;
 import rs.igram.kiribi.net.stack.Processor;
 import rs.igram.kiribi.net.stack.NetworkProtocol;
+import rs.igram.kiribi.net.ShardRing;
 import rs.igram.kiribi.net.Address;
 
 import static rs.igram.kiribi.net.stack.NetworkProtocol.*;
@@ -77,21 +79,25 @@ public final class NATTProcessor extends Processor {
 	final Map<Key,Session> sessions = Collections.synchronizedMap(new HashMap<>());
 	// address map
 	final Map<Key,Address> addresses = Collections.synchronizedMap(new HashMap<>());
-	final Object obj = new Object(){};
-	protected final SocketAddress server;
-	CompletableFuture<SocketAddress> future;
+	// pending connect requests keyed by request id
+	final Map<Long,CompletableFuture<SocketAddress>> requests = Collections.synchronizedMap(new HashMap<>());
+	// registrations and connects go to the server owning the address
+	protected final ShardRing servers;
 	SocketAddress external;
 	Consumer<DatagramPacket> consumer;
 	Consumer<SessionEvent> listener;
 	
-	long start;
 	int port;
 	
 //	public NATTProcessor(SocketAddress server, int port, Consumer<SessionEvent> listener) {
 	public NATTProcessor(SocketAddress server, Consumer<SessionEvent> listener) {
+		this(ShardRing.of((InetSocketAddress)server), listener);
+	}
+	
+	public NATTProcessor(ShardRing servers, Consumer<SessionEvent> listener) {
 		super(NetworkProtocol.NATT_PROTOCOL);
 		
-		this.server = server;
+		this.servers = servers;
 		this.listener = listener;
 //		this.port = port;
 		
@@ -127,8 +133,8 @@ public final class NATTProcessor extends Processor {
 			var address = p.getSocketAddress();
 			var buf = p.getData();
 			var l = p.getLength();
-			if (address.equals(server)) {
-				processServerResponse(buf);
+			if (servers.contains(address)) {
+				processServerResponse(address, buf);
 				// natt response - process	
 			} else if (l == 9) {
 				processNATTResponse(p);
@@ -139,7 +145,7 @@ public final class NATTProcessor extends Processor {
 	}
 	
 	// --- server stuff ---
-	private void processServerResponse(byte[] buf) throws IOException {
+	private void processServerResponse(SocketAddress server, byte[] buf) throws IOException {
 		// offset long session id + long natt id
 		int c = buf[OFF_CMD]; 
 		switch(c){
@@ -159,6 +165,10 @@ public final class NATTProcessor extends Processor {
 		case ERR: 
 			err(buf);
 			break;
+		// another server owns the address - response from register or connect request
+		case RDR:
+			rdr(server, buf);
+			break;
 		default: LOGGER.log(FINER, "UNKOWN: {0}...", c);
 		}
 	}
@@ -195,7 +205,8 @@ public final class NATTProcessor extends Processor {
 	private void adc(byte[] buf) throws IOException {
 		try{
 			var dst = inet(buf);
-			future.complete(dst);
+			var future = requests.get(id(buf));
+			if(future != null) future.complete(dst);
 		}catch(UnknownHostException e){
 			throw new IOException(e);
 		}
@@ -203,47 +214,61 @@ public final class NATTProcessor extends Processor {
 
 	//  returned from server after connect if the dst is not registered
 	private void err(byte[] buf) {
+		var future = requests.get(id(buf));
 		if(future != null) future.completeExceptionally(new AddressNotRegisteredException());//("Address not registered"));
 	}
 	
+	// a redirect is followed only from the server this client's ring names as 
+	// the owner so servers whose rings differ cannot redirect it in a cycle
+	private void rdr(SocketAddress server, byte[] buf) throws IOException {
+		if (!server.equals(servers.owner(buf, OFF_DATA))) return;
+		var owner = NetworkMux.inet(buf, OFF_DATA + 20);
+		var request = extract(buf, 0, 512);
+		// pending connects carry their id, registrations do not
+		cmd(request, requests.containsKey(id(buf)) ? CON : REG);
+		LOGGER.log(FINER, "Redirected from {0} to {1}", new Object[]{server, owner});
+		mux.write(new DatagramPacket(request, request.length, owner));
+	}
+	
 	public void register(Address address) throws IOException {
 		var buf = new byte[512];
 		protocol(buf, NetworkProtocol.NATT_PROTOCOL);
 		cmd(buf, REG);
 		address(buf, address);
 		
-		mux.write(new DatagramPacket(buf, buf.length, server));
+		mux.write(new DatagramPacket(buf, buf.length, servers.owner(address)));
 	}
 	
 	public Key connect(Address address) throws IOException {
-		synchronized(obj){
-			future = new CompletableFuture<SocketAddress>();
-			try{
-				var id = random.nextLong();
-				start = System.currentTimeMillis();
-				var buf = new byte[512];
-				protocol(buf, NetworkProtocol.NATT_PROTOCOL);
-				id(buf, id);
-				cmd(buf, CON);
-				address(buf, address);
-				submit(() -> {
-					// todo
-					try{
-						mux.write(new DatagramPacket(buf, buf.length, server));
-					}catch(IOException e){
-						LOGGER.log(SEVERE, e.toString(), e);
-					}
-				});
-				
-				var dst = future.get(500, TimeUnit.MILLISECONDS);
-				var natted = natt(dst, id).get(5000, TimeUnit.MILLISECONDS);
-				LOGGER.log(FINER, "NATT connect: {0} {1} {2}", new Object[]{natted, (System.currentTimeMillis() - start)});
-				return natted ? new Key(dst, id) : null;
-			}catch(Throwable e){
-				throw new IOException(e);
-			}finally{
-				future = null;
-			}
+		// requests are matched to server responses by id so several
+		// connects can be in flight at the same time
+		var id = random.nextLong();
+		var future = new CompletableFuture<SocketAddress>();
+		requests.put(id, future);
+		try{
+			var start = System.currentTimeMillis();
+			var buf = new byte[512];
+			protocol(buf, NetworkProtocol.NATT_PROTOCOL);
+			id(buf, id);
+			cmd(buf, CON);
+			address(buf, address);
+			submit(() -> {
+				// todo
+				try{
+					mux.write(new DatagramPacket(buf, buf.length, servers.owner(address)));
+				}catch(IOException e){
+					LOGGER.log(SEVERE, e.toString(), e);
+				}
+			});
+			
+			var dst = future.get(500, TimeUnit.MILLISECONDS);
+			var natted = natt(dst, id).get(5000, TimeUnit.MILLISECONDS);
+			LOGGER.log(FINER, "NATT connect: {0} {1} {2}", new Object[]{natted, (System.currentTimeMillis() - start)});
+			return natted ? new Key(dst, id) : null;
+		}catch(Throwable e){
+			throw new IOException(e);
+		}finally{
+			requests.remove(id);
 		}
 	}
 	
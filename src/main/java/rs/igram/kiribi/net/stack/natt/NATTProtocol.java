@@ -39,6 +39,7 @@ public final class NATTProtocol {
 	public static final byte ADR = 4; // register response - remote socket address
 	public static final byte ADC = 5; // connection response - remote socket address
 	public static final byte ERR = 7;
+	public static final byte RDR = 8; // redirect response - owning server socket address after the kiribi address
 	
 	public static final byte SYN = 1;
 	public static final byte ACK = 2;
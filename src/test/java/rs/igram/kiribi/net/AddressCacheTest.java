@@ -0,0 +1,150 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.net.lookup.LookupServer;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class AddressCacheTest {
+	
+	@Test
+	public void testExpiry() throws Exception {
+		var cache = new AddressCache(200, 50, 16);
+		var a = address();
+		var b = address();
+		var socketAddress = local(6764);
+		cache.put(a, socketAddress);
+		cache.put(b, null);
+		
+		assertEquals(socketAddress, cache.get(a).socketAddress);
+		// negative results are cached too
+		assertNotNull(cache.get(b));
+		assertNull(cache.get(b).socketAddress);
+		
+		TimeUnit.MILLISECONDS.sleep(100);
+		assertNull(cache.get(b));
+		assertNotNull(cache.get(a));
+		TimeUnit.MILLISECONDS.sleep(150);
+		assertNull(cache.get(a));
+		
+		assertEquals(4, cache.hits());
+		assertEquals(2, cache.misses());
+		assertTrue(cache.staleness() > 0);
+	}
+	
+	@Test
+	public void testCapacity() throws Exception {
+		var cache = new AddressCache(60_000, 60_000, 2);
+		var a = address();
+		var b = address();
+		var c = address();
+		cache.put(a, local(6764));
+		cache.put(b, local(6765));
+		// touch a so b is the least recently used
+		cache.get(a);
+		cache.put(c, local(6766));
+		
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(a));
+		assertNull(cache.get(b));
+		assertNotNull(cache.get(c));
+	}
+	
+	@Test
+	public void testMapper() throws Exception {
+		var lookupAddress = local(6767);
+		var server = new LookupServer();
+		server.start(lookupAddress);
+		
+		var address = address();
+		var socketAddress = local(6768);
+		var mapper = AddressMapper.lookup(address, socketAddress, lookupAddress);
+		mapper.register();
+		assertEquals(socketAddress, mapper.lookup(address));
+		
+		// answered from the cache although the server forgot the address
+		server.evict(address);
+		assertEquals(socketAddress, mapper.lookup(address));
+		assertEquals(1, mapper.cache().hits());
+		assertEquals(0.5, mapper.cache().hitRate(), 0.001);
+		
+		// a failed connect discards the stale resolution
+		mapper.invalidate(address);
+		assertNull(mapper.lookup(address));
+		assertEquals(1, mapper.cache().invalidations());
+		
+		mapper.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testLookupAll() throws Exception {
+		var lookupAddress = local(6774);
+		var server = new LookupServer();
+		server.start(lookupAddress);
+		
+		var address = address();
+		var socketAddress = local(6775);
+		var mapper = AddressMapper.lookup(address, socketAddress, lookupAddress);
+		mapper.register();
+		var unknown = address();
+		
+		var result = mapper.lookupAll(List.of(address, unknown));
+		assertEquals(socketAddress, result.get(address));
+		assertTrue(result.containsKey(unknown));
+		assertNull(result.get(unknown));
+		
+		// both results are cached
+		server.evict(address);
+		assertEquals(socketAddress, mapper.lookup(address));
+		assertNull(mapper.lookup(unknown));
+		assertEquals(2, mapper.cache().hits());
+		
+		mapper.close();
+		server.stop();
+	}
+	
+	private static Address address() throws Exception {
+		return new Address(KeyPairGenerator.generateKeyPair().getPublic());
+	}
+	
+	private static InetSocketAddress local(int port) throws IOException {
+		return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+	}
+}
@@ -0,0 +1,126 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class EndpointPoolTest {
+	
+	@Test
+	public void testReuse() throws IOException, InterruptedException, Exception {
+		var opened = new AtomicInteger();
+		var last = new AtomicReference<TestEndpoint>();
+		var pool = new EndpointPool<String>(Endpoint::isOpen, 2, 200, 300);
+		EndpointPool.Opener opener = () -> {
+			opened.incrementAndGet();
+			last.set(new TestEndpoint());
+			return last.get();
+		};
+		
+		// returned endpoints are reused
+		var e1 = pool.borrow("a", opener);
+		e1.close();
+		assertFalse(e1.isOpen());
+		assertThrows(IOException.class, () -> e1.write(null));
+		var e2 = pool.borrow("a", opener);
+		assertEquals(1, opened.get());
+		
+		// hosts are pooled separately
+		var e3 = pool.borrow("b", opener);
+		assertEquals(2, opened.get());
+		e3.close();
+		
+		// unhealthy endpoints are dropped on return
+		var e4 = pool.borrow("a", opener);
+		assertEquals(3, opened.get());
+		assertEquals(2, pool.active("a"));
+		last.get().open = false;
+		e4.close();
+		assertEquals(1, pool.active("a"));
+		assertEquals(0, pool.idle("a"));
+		
+		// borrowers wait at the per host limit
+		var e5 = pool.borrow("a", opener);
+		var waiting = CompletableFuture.supplyAsync(() -> {
+			try {
+				return pool.borrow("a", opener);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		TimeUnit.MILLISECONDS.sleep(100);
+		assertFalse(waiting.isDone());
+		e5.close();
+		var e6 = waiting.get(1, TimeUnit.SECONDS);
+		assertEquals(4, opened.get());
+		
+		// and give up after the borrow timeout
+		assertThrows(IOException.class, () -> pool.borrow("a", opener));
+		
+		// idle endpoints are evicted
+		e2.close();
+		e6.close();
+		assertEquals(2, pool.idle("a"));
+		TimeUnit.MILLISECONDS.sleep(250);
+		pool.evict();
+		assertEquals(0, pool.idle("a"));
+		assertEquals(0, pool.active("a"));
+		assertEquals(0, pool.idle("b"));
+		
+		pool.close();
+		assertThrows(IOException.class, () -> pool.borrow("a", opener));
+	}
+	
+	static class TestEndpoint implements Endpoint {
+		volatile boolean open = true;
+		
+		@Override
+		public void write(Encodable data) throws IOException {}
+
+		@Override
+		public <T> T read(Decoder<T> decoder) throws IOException {return null;}
+
+		@Override
+		public boolean isOpen() {return open;}
+
+		@Override
+		public void close() throws IOException {open = false;}
+	}
+}
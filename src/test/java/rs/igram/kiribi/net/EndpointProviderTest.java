@@ -32,7 +32,9 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -147,6 +149,98 @@ public class EndpointProviderTest {
 		assertTrue(test.writeSuccess);
 	}
 	
+	@Test
+	public void testTCPOpenAll() throws IOException, InterruptedException, Exception {
+		var lookupAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6740);
+		var socketAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6741);
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var mapper = AddressMapper.lookup(address, socketAddress, lookupAddress);
+		var provider = EndpointProvider.tcp(mapper);
+		
+		var server = new LookupServer();
+   	   	server.start(lookupAddress);
+   	   	try {
+   	   		provider.server().accept(e -> {});
+   	   		
+   	   		var addresses = new ArrayList<ConnectionAddress>();
+   	   		for(int i = 0; i < 10; i++) addresses.add(new ConnectionAddress(address, i));
+   	   		
+   	   		var futures = provider.openAll(addresses, 4);
+   	   		assertEquals(addresses.size(), futures.size());
+   	   		for(var a : addresses) {
+   	   			var endpoint = futures.get(a).get(10, TimeUnit.SECONDS);
+   	   			assertNotNull(endpoint);
+   	   			assertTrue(endpoint.isOpen());
+   	   		}
+   	   	} finally {
+   	   		provider.shutdown();
+   	   		server.stop();
+   	   	}
+	}
+	
+	@Test
+	public void testTCPPooling() throws IOException, InterruptedException, Exception {
+		var lookupAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6752);
+		var socketAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6753);
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var mapper = AddressMapper.lookup(address, socketAddress, lookupAddress);
+		var provider = (TCPEndpointProvider)EndpointProvider.tcp(mapper);
+		
+		var server = new LookupServer();
+   	   	server.start(lookupAddress);
+   	   	provider.server().accept(UDPEndpointProviderTest::echo);
+   	   	
+   	   	var connectionAddress = new ConnectionAddress(address);
+   	   	for(int i = 0; i < 5; i++) {
+   	   		var endpoint = provider.open(connectionAddress);
+   	   		var msg = new Message("m" + i);
+   	   		endpoint.write(msg);
+   	   		assertEquals(msg, endpoint.read(Message::new));
+   	   		endpoint.close();
+   	   	}
+   	   	// one connection served every request
+   	   	assertEquals(1, provider.pool.active(connectionAddress));
+   	   	assertEquals(1, provider.pool.idle(connectionAddress));
+   	   	
+   	   	// an equal address shares it, another id to the same peer does not
+   	   	var endpoint = provider.open(new ConnectionAddress(address, connectionAddress.id));
+   	   	assertEquals(0, provider.pool.idle(connectionAddress));
+   	   	var other = new ConnectionAddress(address, connectionAddress.id + 1);
+   	   	var second = provider.open(other);
+   	   	assertEquals(1, provider.pool.active(other));
+   	   	assertEquals(1, provider.pool.active(connectionAddress));
+   	   	second.close();
+   	   	endpoint.close();
+   	   	assertEquals(1, provider.pool.idle(connectionAddress));
+   	   	
+   	   	provider.shutdown();
+	}
+	
+	@Test
+	public void testTCPMultiplexing() throws IOException, InterruptedException, Exception {
+		var lookupAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6754);
+		var socketAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6755);
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var mapper = AddressMapper.lookup(address, socketAddress, lookupAddress);
+		var provider = (TCPEndpointProvider)EndpointProvider.tcp(mapper, true);
+		
+		var server = new LookupServer();
+   	   	server.start(lookupAddress);
+   	   	provider.server().accept(UDPEndpointProviderTest::echo);
+   	   	
+   	   	var endpoints = new ArrayList<Endpoint>();
+   	   	for(int i = 0; i < 5; i++) endpoints.add(provider.open(new ConnectionAddress(address, i)));
+   	   	for(int i = 0; i < 5; i++) {
+   	   		var msg = new Message("m" + i);
+   	   		endpoints.get(i).write(msg);
+   	   		assertEquals(msg, endpoints.get(i).read(Message::new));
+   	   	}
+   	   	// all services share one connection
+   	   	assertEquals(1, provider.accepted());
+   	   	
+   	   	provider.shutdown();
+	}
+	
 	@Test
 	public void testUDPSameAddress() throws IOException, InterruptedException, Exception {
 		var port = 6733;
@@ -203,6 +297,56 @@ public class EndpointProviderTest {
 		server.shutdown();
 	}
 	
+	@Test
+	public void testUDPConcurrentOpen() throws IOException, InterruptedException, Exception {
+		var serverPort = NATTServer.SERVER_PORT + 2;
+		var port1 = 4735;
+		var port2 = 4736;
+		var address1 = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var address2 = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		
+		var serverAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), serverPort);
+		var socketAddress1 = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port1);
+		var socketAddress2 = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port2);
+		var provider1 = (UDPEndpointProvider)EndpointProvider.udp(socketAddress1, address1, serverAddress);
+		var provider2 = (UDPEndpointProvider)EndpointProvider.udp(socketAddress2, address2, serverAddress);
+		
+		var server = new NATTServer();
+   	   	server.start(serverAddress);
+   	   	
+   	   	provider1.server().accept(e -> {});
+   	   	provider2.server();
+   	   	
+   	   	var callers = 50;
+   	   	var start = new CountDownLatch(1);
+   	   	var done = new CountDownLatch(callers);
+   	   	var endpoints = Collections.synchronizedList(new ArrayList<Endpoint>());
+   	   	var failures = Collections.synchronizedList(new ArrayList<Exception>());
+   	   	for(int i = 0; i < callers; i++) {
+   	   		var connectionAddress = new ConnectionAddress(address1, i);
+   	   		new Thread(() -> {
+   	   			try {
+   	   				start.await();
+   	   				endpoints.add(provider2.open(connectionAddress));
+   	   			} catch(Exception e) {
+   	   				failures.add(e);
+   	   			} finally {
+   	   				done.countDown();
+   	   			}
+   	   		}).start();
+   	   	}
+   	   	start.countDown();
+   	   	assertTrue(done.await(10, TimeUnit.SECONDS));
+   	   	
+   	   	if(!failures.isEmpty()) fail("Open failed", failures.get(0));
+   	   	assertEquals(callers, endpoints.size());
+   	   	assertEquals(1, provider2.connects());
+   	   	assertEquals(1, provider2.handshakePool().completed());
+   	   	assertEquals(1, provider2.muxes.size());
+		
+		server.shutdown();
+	}
+	
 	@Test
 	public void testLAN() throws IOException, InterruptedException, Exception {
 		var port = 6733;
@@ -0,0 +1,108 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class HandshakePoolTest {
+	
+	@Test
+	public void testAdmission() throws IOException, InterruptedException, Exception {
+		var pool = new HandshakePool(1, 2, 200);
+		var gate = new CountDownLatch(1);
+		
+		// one running, two queued, the rest rejected at once
+		var futures = new ArrayList<CompletableFuture<Integer>>();
+		for(int i = 0; i < 5; i++) {
+			var n = i;
+			futures.add(pool.submit(() -> {
+				gate.await();
+				return n;
+			}));
+		}
+		assertEquals(2, pool.rejected());
+		assertTrue(futures.get(3).isCompletedExceptionally());
+		assertTrue(futures.get(4).isCompletedExceptionally());
+		assertEquals(3, pool.pending());
+		
+		// queued past the timeout - dropped without running
+		TimeUnit.MILLISECONDS.sleep(250);
+		gate.countDown();
+		assertEquals(0, (int)futures.get(0).get(1, TimeUnit.SECONDS));
+		var e = assertThrows(ExecutionException.class, () -> futures.get(1).get(1, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof IOException);
+		assertThrows(ExecutionException.class, () -> futures.get(2).get(1, TimeUnit.SECONDS));
+		
+		assertEquals(1, pool.completed());
+		assertEquals(2, pool.failed());
+		assertTrue(pool.queueTime() >= 150);
+		
+		// recovered
+		assertEquals(7, (int)pool.submit(() -> 7).get(1, TimeUnit.SECONDS));
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testAbandon() throws IOException, InterruptedException, Exception {
+		var pool = new HandshakePool(1, 2, 1000);
+		var interrupted = new CountDownLatch(1);
+		
+		// a handshake waiting on a silent peer
+		var f = pool.submit(() -> {
+			try {
+				new CountDownLatch(1).await();
+			} catch(InterruptedException e) {
+				interrupted.countDown();
+			}
+			return 0;
+		});
+		assertThrows(TimeoutException.class, () -> f.get(100, TimeUnit.MILLISECONDS));
+		f.cancel(true);
+		assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+		
+		// the thread is free and carries no interrupt into the next handshake
+		assertEquals(7, (int)pool.submit(() -> {
+			TimeUnit.MILLISECONDS.sleep(10);
+			return 7;
+		}).get(1, TimeUnit.SECONDS));
+		assertEquals(1, pool.completed());
+		assertEquals(1, pool.failed());
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,195 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.io.VarOutputStream;
+
+import static rs.igram.kiribi.net.EndpointProviderTest.Message;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class LoopbackConnectionTest {
+	static final int ROUNDS = 20_000;
+	// piped streams poll once a second when a reader outruns the writer
+	static final int PIPED_ROUNDS = 5;
+	
+	@Test
+	public void testLoopback() throws IOException, InterruptedException, Exception {
+		var closed = new AtomicBoolean();
+		var connection = new LoopbackConnection(() -> closed.set(true));
+		var proxy = connection.proxy;
+		var service = connection.service;
+		
+		var msg1 = new Message("a");
+		var msg2 = new Message("b");
+		proxy.write(msg1);
+		proxy.write(msg2);
+		assertEquals(msg1, service.read(Message::new));
+		assertEquals(msg2, service.read(Message::new));
+		
+		service.write(msg1);
+		assertEquals(msg1, proxy.read(Message::new));
+		
+		// closing either side wakes a blocked reader on the other
+		var reader = CompletableFuture.runAsync(() -> {
+			try {
+				proxy.read(Message::new);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		service.close();
+		var e = assertThrows(Exception.class, () -> reader.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause().getCause() instanceof EOFException);
+		assertTrue(closed.get());
+		assertFalse(proxy.isOpen());
+		assertThrows(IOException.class, () -> proxy.write(msg1));
+		assertThrows(EOFException.class, () -> service.read(Message::new));
+	}
+	
+	@Test
+	public void testClose() throws IOException, InterruptedException, Exception {
+		var closes = new AtomicInteger();
+		var connection = new LoopbackConnection(closes::incrementAndGet);
+		var start = new CountDownLatch(1);
+		var closers = new CompletableFuture<?>[8];
+		for(int i = 0; i < closers.length; i++) {
+			var endpoint = i % 2 == 0 ? connection.proxy : connection.service;
+			closers[i] = CompletableFuture.runAsync(() -> {
+				try {
+					start.await();
+					endpoint.close();
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+		}
+		start.countDown();
+		CompletableFuture.allOf(closers).get(5, TimeUnit.SECONDS);
+		
+		// racing closes run the close callback once
+		assertEquals(1, closes.get());
+		assertFalse(connection.proxy.isOpen());
+		assertFalse(connection.service.isOpen());
+	}
+	
+	@Test
+	public void testPingPong() throws IOException, InterruptedException, Exception {
+		var connection = new LoopbackConnection();
+		pingPong(connection.proxy, connection.service, 100);
+		connection.proxy.close();
+	}
+	
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testLoopbackBenchmark() throws IOException, InterruptedException, Exception {
+		var connection = new LoopbackConnection();
+		var loopback = pingPong(connection.proxy, connection.service, ROUNDS);
+		connection.proxy.close();
+		
+		var piped = new PipedConnection();
+		var legacy = pingPong(piped.proxy, piped.service, PIPED_ROUNDS);
+		
+		System.out.println("Round trip: loopback " + loopback + " us, piped " + legacy + " us");
+	}
+	
+	// returns the mean round trip in micros
+	private static long pingPong(Endpoint proxy, Endpoint service, int rounds) throws Exception {
+		var echo = CompletableFuture.runAsync(() -> {
+			try {
+				for(int i = 0; i < rounds; i++) service.write(service.read(Message::new));
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		var msg = new Message("ping");
+		var start = System.nanoTime();
+		for(int i = 0; i < rounds; i++) {
+			proxy.write(msg);
+			assertEquals(msg, proxy.read(Message::new));
+		}
+		var elapsed = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+		echo.get(5, TimeUnit.SECONDS);
+		
+		return elapsed / rounds;
+	}
+	
+	// the piped stream connection used for self connections previously
+	private static class PipedConnection {
+		final Endpoint proxy;
+		final Endpoint service;
+		
+		PipedConnection() throws IOException {
+			var proxyIn = new PipedInputStream();
+			var serviceOut = new PipedOutputStream(proxyIn);
+			
+			var serviceIn = new PipedInputStream();
+			var proxyOut = new PipedOutputStream(serviceIn);
+			
+			proxy = endpoint(new VarInputStream(proxyIn), new VarOutputStream(proxyOut));
+			service = endpoint(new VarInputStream(serviceIn), new VarOutputStream(serviceOut));
+		}
+		
+		private static Endpoint endpoint(VarInputStream in, VarOutputStream out) {
+			return new Endpoint() {
+				@Override
+				public void write(Encodable data) throws IOException {
+					out.write(data);
+				}
+
+				@Override
+				public <T> T read(Decoder<T> decoder) throws IOException {
+					return in.read(decoder);
+				}
+
+				@Override
+				public boolean isOpen() {return true;}
+
+				@Override
+				public void close() throws IOException {}
+			};
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import static rs.igram.kiribi.net.SecureEndpointTest.Blob;
+import static rs.igram.kiribi.net.SecureEndpointTest.PipeEndpoint;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class MUXTest {
+	private final NetworkExecutor executor = new NetworkExecutor();
+	
+	@Test
+	public void testFragments() throws Exception {
+		var pair = SecureEndpointTest.pair(new Sessions(), new Sessions());
+		var accepted = new LinkedBlockingQueue<Endpoint>();
+		var proxy = new MUX<>(pair[0], e -> {}, executor);
+		var service = new MUX<>(pair[1], accepted::add, executor);
+		
+		var blob = blob(5 * MUX.FRAGMENT_SIZE + 1);
+		var writes = pair[0].writes.get();
+		proxy.open(1).write(blob);
+		assertEquals(blob, accepted.poll(5, TimeUnit.SECONDS).read(Blob::new));
+		assertTrue(pair[0].writes.get() - writes >= 6);
+		
+		// small transfers are not split
+		var small = blob(MUX.FRAGMENT_SIZE / 2);
+		writes = pair[0].writes.get();
+		proxy.open(2).write(small);
+		assertEquals(small, accepted.poll(5, TimeUnit.SECONDS).read(Blob::new));
+		assertEquals(1, pair[0].writes.get() - writes);
+	}
+	
+	@Test
+	public void testInterleaving() throws Exception {
+		var pair = SecureEndpointTest.pair(new Sessions(), new Sessions());
+		var accepted = new LinkedBlockingQueue<Endpoint>();
+		var proxy = new MUX<>(pair[0], e -> {}, executor);
+		var service = new MUX<>(pair[1], accepted::add, executor);
+		
+		var large = proxy.open(1);
+		var small = proxy.open(2);
+		var writes = pair[0].writes.get();
+		var transfer = CompletableFuture.runAsync(() -> {
+			try {
+				large.write(blob(512 * MUX.FRAGMENT_SIZE));
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		while(pair[0].writes.get() - writes < 8) TimeUnit.MILLISECONDS.sleep(1);
+		small.write(blob(16));
+		
+		// the small transfer arrives before the large one completes
+		var first = accepted.poll(5, TimeUnit.SECONDS);
+		assertEquals(16, first.read(Blob::new).data.length);
+		transfer.get(30, TimeUnit.SECONDS);
+		var second = accepted.poll(30, TimeUnit.SECONDS);
+		assertEquals(512 * MUX.FRAGMENT_SIZE, second.read(Blob::new).data.length);
+	}
+	
+	@Test
+	public void testTransferLimit() throws Exception {
+		var pair = SecureEndpointTest.pair(new Sessions(), new Sessions());
+		var accepted = new LinkedBlockingQueue<Endpoint>();
+		var proxy = new MUX<>(pair[0], e -> {}, executor);
+		var service = new MUX<>(pair[1], accepted::add, executor, 4 * MUX.FRAGMENT_SIZE, 6 * MUX.FRAGMENT_SIZE, MUX.PARTIAL_TIMEOUT);
+		
+		// an oversized transfer is dropped and its service closed
+		var large = proxy.open(1);
+		try {
+			large.write(blob(5 * MUX.FRAGMENT_SIZE + 1));
+		} catch(IOException e) {
+			// closed by the service mid transfer
+		}
+		for(int i = 0; i < 500 && large.isOpen(); i++) TimeUnit.MILLISECONDS.sleep(10);
+		assertFalse(large.isOpen());
+		
+		// other services are unaffected
+		var blob = blob(3 * MUX.FRAGMENT_SIZE + 1);
+		proxy.open(2).write(blob);
+		var ep = accepted.poll(5, TimeUnit.SECONDS);
+		assertEquals(2, ((MUX.ServiceEndpoint)ep).id);
+		assertEquals(blob, ep.read(Blob::new));
+		assertTrue(accepted.isEmpty());
+		
+		// the sender refuses transfers the peer would drop
+		assertThrows(IOException.class, () -> proxy.open(3).write(blob(MUX.MAX_TRANSFER_SIZE)));
+	}
+	
+	@Test
+	public void testPartialLimit() throws Exception {
+		var pair = SecureEndpointTest.pair(new Sessions(), new Sessions());
+		var accepted = new LinkedBlockingQueue<Endpoint>();
+		var failed = new CompletableFuture<IOException>();
+		var proxy = new MUX<>(pair[0], e -> {}, executor);
+		var service = new MUX<>(pair[1], accepted::add, executor, 4 * MUX.FRAGMENT_SIZE, 6 * MUX.FRAGMENT_SIZE, TimeUnit.MILLISECONDS.toNanos(200)) {
+			@Override
+			protected void onFailed(IOException e) {
+				failed.complete(e);
+			}
+		};
+		
+		// an abandoned transfer expires once the limit is reached
+		fragments(proxy, 1, 4);
+		TimeUnit.MILLISECONDS.sleep(400);
+		var blob = blob(3 * MUX.FRAGMENT_SIZE + 1);
+		proxy.open(2).write(blob);
+		assertEquals(blob, accepted.poll(5, TimeUnit.SECONDS).read(Blob::new));
+		
+		// unfinished transfers over the limit drop the least recently active
+		fragments(proxy, 3, 4);
+		var last = blob(4 * MUX.FRAGMENT_SIZE - 16);
+		var b = last.encode();
+		for(int off = 0; off < b.length; off += MUX.FRAGMENT_SIZE) {
+			var end = Math.min(off + MUX.FRAGMENT_SIZE, b.length);
+			var action = end == b.length ? MUX.TRANSFER_SERVICE : MUX.TRANSFER_FRAGMENT;
+			proxy.root().write(proxy.new Packet(action, 4, Arrays.copyOfRange(b, off, end)));
+		}
+		proxy.root().write(proxy.new Packet(MUX.TRANSFER_SERVICE, 3, new byte[MUX.FRAGMENT_SIZE]));
+		proxy.root().flush();
+		var ep = accepted.poll(5, TimeUnit.SECONDS);
+		assertEquals(4, ((MUX.ServiceEndpoint)ep).id);
+		assertEquals(last, ep.read(Blob::new));
+		
+		// the mux keeps serving
+		proxy.open(5).write(blob);
+		ep = accepted.poll(5, TimeUnit.SECONDS);
+		assertEquals(5, ((MUX.ServiceEndpoint)ep).id);
+		assertEquals(blob, ep.read(Blob::new));
+		assertTrue(accepted.isEmpty());
+		assertFalse(failed.isDone());
+	}
+	
+	// write fragments of a transfer that never completes
+	private static void fragments(MUX<PipeEndpoint> mux, long id, int count) throws IOException {
+		for(int i = 0; i < count; i++) {
+			mux.root().write(mux.new Packet(MUX.TRANSFER_FRAGMENT, id, new byte[MUX.FRAGMENT_SIZE]));
+		}
+		mux.root().flush();
+	}
+	
+	private static Blob blob(int size) {
+		var b = new byte[size];
+		new SecureRandom().nextBytes(b);
+		return new Blob(b);
+	}
+}
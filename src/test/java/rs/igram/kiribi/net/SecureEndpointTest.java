@@ -0,0 +1,570 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import rs.igram.kiribi.crypto.KeyExchange;
+import rs.igram.kiribi.io.ByteStream;
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInput;
+import rs.igram.kiribi.io.VarOutput;
+
+import static rs.igram.kiribi.net.EndpointProviderTest.Message;
+import static rs.igram.kiribi.io.ByteUtils.extract;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class SecureEndpointTest {
+	
+	@Test
+	public void testHandshake() throws IOException, InterruptedException, Exception {
+		var a = new LinkedBlockingQueue<byte[]>();
+		var b = new LinkedBlockingQueue<byte[]>();
+		var proxy = new PipeEndpoint(a, b);
+		var service = new PipeEndpoint(b, a);
+		
+		var server = CompletableFuture.supplyAsync(() -> connect(service, false));
+		proxy.connect(true);
+		server.get(5, TimeUnit.SECONDS);
+		
+		// one flight each way: the ticket follows the reply
+		assertEquals(1, proxy.frames.get());
+		assertEquals(2, service.frames.get());
+		assertEquals(NetVersion.current().protocolVersion, proxy.protocolVersion);
+		assertEquals(NetVersion.current().protocolVersion, service.protocolVersion);
+		
+		echo(proxy, service);
+	}
+	
+	@Test
+	public void testLegacyService() throws IOException, InterruptedException, Exception {
+		var a = new LinkedBlockingQueue<byte[]>();
+		var b = new LinkedBlockingQueue<byte[]>();
+		var proxy = new PipeEndpoint(a, b);
+		
+		// the previous service handshake: echo the init frame then exchange
+		var server = CompletableFuture.supplyAsync(() -> {
+			try {
+				var buf = b.take();
+				assertEquals(SecureEndpoint.INIT, buf[0]);
+				assertTrue(Magic.verifyMagic(buf, 2));
+				buf[1] = 1;
+				a.add(buf);
+				var exchanger = new KeyExchange(false, stream(b, a));
+				exchanger.exchange();
+				return exchanger;
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		proxy.connect(true);
+		var exchanger = server.get(5, TimeUnit.SECONDS);
+		
+		assertEquals(1, proxy.protocolVersion);
+		var msg = new Message("a");
+		proxy.write(msg);
+		assertEquals(msg, exchanger.read(Message::new));
+	}
+	
+	@Test
+	public void testLegacyProxy() throws IOException, InterruptedException, Exception {
+		var a = new LinkedBlockingQueue<byte[]>();
+		var b = new LinkedBlockingQueue<byte[]>();
+		var service = new PipeEndpoint(b, a);
+		var server = CompletableFuture.supplyAsync(() -> connect(service, false));
+		
+		// the previous proxy handshake: init frame, wait for the echo, then exchange
+		var buf = new byte[SecureEndpoint.HEADER_LENGTH];
+		buf[0] = SecureEndpoint.INIT;
+		buf[1] = 1;
+		Magic.magic(buf, 2);
+		b.add(buf);
+		var echo = a.take();
+		assertEquals(SecureEndpoint.HEADER_LENGTH, echo.length);
+		assertEquals(1, echo[1]);
+		var exchanger = new KeyExchange(true, stream(a, b));
+		exchanger.exchange();
+		server.get(5, TimeUnit.SECONDS);
+		
+		assertEquals(1, service.protocolVersion);
+		var msg = new Message("a");
+		exchanger.write(msg);
+		assertEquals(msg, service.read(Message::new));
+	}
+	
+	@Test
+	public void testResumption() throws IOException, InterruptedException, Exception {
+		var proxySessions = new Sessions();
+		var serviceSessions = new Sessions();
+		
+		var full = pair(proxySessions, serviceSessions);
+		assertFalse(full[0].resumed);
+		echo(full[0], full[1]);
+		
+		// a session running on another connection is not resumed
+		var concurrent = pair(proxySessions, serviceSessions);
+		assertFalse(concurrent[0].resumed);
+		assertTrue(full[0].isOpen());
+		concurrent[0].close();
+		
+		// the proxy dropped the connection, the service still holds it open
+		var used = proxySessions.ticket("peer");
+		var resumed = pair(proxySessions, serviceSessions);
+		assertTrue(resumed[0].resumed);
+		assertTrue(resumed[1].resumed);
+		// the resume request and key confirmation, and the reply
+		assertEquals(2, resumed[0].frames.get());
+		assertEquals(1, resumed[1].frames.get());
+		echo(resumed[0], resumed[1]);
+		// the service closed its end of the session resumed
+		assertFalse(concurrent[1].isOpen());
+		assertTrue(full[1].isOpen());
+		assertTrue(resumed[0].isOpen());
+		assertTrue(resumed[1].isOpen());
+		
+		// a peer which saw the ticket id but lacks its secret neither uses
+		// the ticket up nor takes over the session
+		var forged = forge(proxySessions.ticket("peer").id, serviceSessions);
+		assertThrows(ExecutionException.class, () -> forged.get(5, TimeUnit.SECONDS));
+		assertTrue(resumed[1].isOpen());
+		
+		// tickets are single use, the replacement resumes the next session
+		var replayed = new Sessions();
+		replayed.put("peer", used);
+		assertFalse(pair(replayed, serviceSessions)[0].resumed);
+		resumed[0].close();
+		resumed = pair(proxySessions, serviceSessions);
+		assertTrue(resumed[0].resumed);
+		echo(resumed[0], resumed[1]);
+		
+		// a service which lost the ticket falls back to the key exchange
+		resumed[0].close();
+		var rejected = pair(proxySessions, new Sessions());
+		assertFalse(rejected[0].resumed);
+		echo(rejected[0], rejected[1]);
+	}
+	
+	@Test
+	public void testReplay() throws IOException, InterruptedException, Exception {
+		var pair = pair(new Sessions(), new Sessions());
+		var proxy = pair[0];
+		var service = pair[1];
+		
+		// a captured frame delivered twice
+		var msg = new Message("a");
+		proxy.write(msg);
+		var frame = proxy.out.take();
+		proxy.out.add(frame);
+		proxy.out.add(frame.clone());
+		assertEquals(msg, service.read(Message::new));
+		assertThrows(IOException.class, () -> service.read(Message::new));
+		
+		// frames delivered out of order
+		pair = pair(new Sessions(), new Sessions());
+		proxy = pair[0];
+		proxy.write(new Message("a"));
+		proxy.write(new Message("b"));
+		var first = proxy.out.take();
+		proxy.out.add(first);
+		var reordered = pair[1];
+		assertThrows(IOException.class, () -> reordered.read(Message::new));
+	}
+	
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testResumptionBenchmark() throws IOException, InterruptedException, Exception {
+		var rounds = 2000;
+		var serviceSessions = new Sessions();
+		
+		var start = System.nanoTime();
+		for(int i = 0; i < rounds; i++) pair(new Sessions(), serviceSessions);
+		var full = rounds * 1_000_000_000L / (System.nanoTime() - start);
+		
+		// each session is dropped before the next resumes it
+		var proxySessions = new Sessions();
+		var pair = pair(proxySessions, serviceSessions);
+		start = System.nanoTime();
+		for(int i = 0; i < rounds; i++) {
+			pair[0].close();
+			pair = pair(proxySessions, serviceSessions);
+			assertTrue(pair[0].resumed);
+		}
+		var resumed = rounds * 1_000_000_000L / (System.nanoTime() - start);
+		
+		System.out.println("handshakes/s full: " + full + " resumed: " + resumed);
+	}
+	
+	@Test
+	public void testBulk() throws IOException, InterruptedException, Exception {
+		var pair = pair(new Sessions(), new Sessions());
+		var proxy = pair[0];
+		var service = pair[1];
+		
+		var data = new byte[1024 * 1024 + 17];
+		new Random(7).nextBytes(data);
+		var blob = new Blob(data);
+		
+		var frames = proxy.out.size();
+		proxy.write(blob);
+		// chunked by CHUNK_SIZE
+		assertEquals(33, proxy.out.size() - frames);
+		// small messages on either side of a bulk one stay in order
+		proxy.write(new Message("a"));
+		assertEquals(blob, service.read(Blob::new));
+		assertEquals(new Message("a"), service.read(Message::new));
+		
+		service.write(blob);
+		assertEquals(blob, proxy.read(Blob::new));
+	}
+	
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testBulkBenchmark() throws IOException, InterruptedException, Exception {
+		var pair = pair(new Sessions(), new Sessions());
+		var proxy = pair[0];
+		var service = pair[1];
+		
+		var data = new byte[1024 * 1024 + 17];
+		new Random(7).nextBytes(data);
+		var blob = new Blob(data);
+		
+		var rounds = 20;
+		var start = System.nanoTime();
+		for(int i = 0; i < rounds; i++) {
+			proxy.write(blob);
+			assertEquals(blob, service.read(Blob::new));
+		}
+		var mbs = rounds * data.length * 1000L / (System.nanoTime() - start);
+		System.out.println("bulk MB/s: " + mbs);
+	}
+	
+	@Test
+	public void testCoalescing() throws IOException, InterruptedException, Exception {
+		var pair = pair(new Sessions(), new Sessions());
+		var proxy = pair[0];
+		var service = pair[1];
+		var timer = new NetworkExecutor();
+		proxy.coalesce(200, 1400, timer);
+		
+		// held until flushed
+		var frames = proxy.writes.get();
+		for(int i = 0; i < 10; i++) proxy.write(new Message("m" + i));
+		assertEquals(frames, proxy.writes.get());
+		proxy.flush();
+		assertEquals(frames + 1, proxy.writes.get());
+		for(int i = 0; i < 10; i++) assertEquals(new Message("m" + i), service.read(Message::new));
+		
+		// sent once the threshold is reached
+		var big = new Message("x".repeat(600));
+		proxy.write(big);
+		proxy.write(big);
+		assertEquals(frames + 1, proxy.writes.get());
+		proxy.write(big);
+		assertEquals(frames + 2, proxy.writes.get());
+		for(int i = 0; i < 3; i++) assertEquals(big, service.read(Message::new));
+		
+		// sent once the window passes
+		proxy.write(new Message("a"));
+		assertEquals(new Message("a"), service.read(Message::new));
+		assertEquals(frames + 3, proxy.writes.get());
+		
+		// large writes bypass the buffer but stay in order
+		proxy.write(new Message("b"));
+		proxy.write(new Message("y".repeat(2000)));
+		assertEquals(frames + 5, proxy.writes.get());
+		assertEquals(new Message("b"), service.read(Message::new));
+		assertEquals(new Message("y".repeat(2000)), service.read(Message::new));
+		timer.shutdown();
+	}
+	
+	@Test
+	public void testCompression() throws IOException, InterruptedException, Exception {
+		var pair = pair(new Sessions(), new Sessions());
+		var proxy = pair[0];
+		var service = pair[1];
+		
+		var records = records();
+		var noise = new byte[records.data.length];
+		new Random(11).nextBytes(noise);
+		var incompressible = new Blob(noise);
+		
+		var bytes = proxy.bytes.get();
+		proxy.write(records);
+		var deflated = proxy.bytes.get() - bytes;
+		assertEquals(records, service.read(Blob::new));
+		assertTrue(deflated < records.data.length / 3);
+		
+		bytes = proxy.bytes.get();
+		proxy.write(incompressible);
+		var raw = proxy.bytes.get() - bytes;
+		assertEquals(incompressible, service.read(Blob::new));
+		assertTrue(raw > noise.length);
+	}
+	
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testCompressionBenchmark() throws IOException, InterruptedException, Exception {
+		var pair = pair(new Sessions(), new Sessions());
+		var proxy = pair[0];
+		var service = pair[1];
+		
+		var records = records();
+		var bytes = proxy.bytes.get();
+		proxy.write(records);
+		var deflated = proxy.bytes.get() - bytes;
+		assertEquals(records, service.read(Blob::new));
+		
+		var rounds = 500;
+		var start = System.nanoTime();
+		for(int i = 0; i < rounds; i++) {
+			proxy.write(records);
+			service.read(Blob::new);
+		}
+		var mbs = rounds * records.data.length * 1000L / (System.nanoTime() - start);
+		System.out.println(String.format("compression ratio: %.1f MB/s: %d", (double)records.data.length / deflated, mbs));
+	}
+	
+	// records with repeated keys and text
+	private static Blob records() throws IOException {
+		var text = new StringBuilder();
+		var random = new Random(11);
+		for(int i = 0; i < 200; i++) {
+			text.append("{\"id\":").append(random.nextInt(100_000))
+				.append(",\"name\":\"service-").append(i % 17)
+				.append("\",\"state\":\"").append(i % 3 == 0 ? "CONNECTED" : "DISCONNECTED")
+				.append("\",\"address\":\"127.0.0.").append(i % 255).append("\"}\n");
+		}
+		return new Blob(text.toString().getBytes("UTF-8"));
+	}
+	
+	@Test
+	public void testBulkBounds() throws IOException, InterruptedException, Exception {
+		// more chunks than the largest message needs
+		var pair = pair(new Sessions(), new Sessions());
+		var service = pair[1];
+		for(int i = 0; i <= SecureEndpoint.MAX_CHUNKS; i++) {
+			pair[0].out.add(new byte[]{SecureEndpoint.DATA | SecureEndpoint.BULK, 0});
+		}
+		assertThrows(IOException.class, () -> service.read(Blob::new));
+		assertFalse(service.isOpen());
+		
+		// and chunks larger than the largest message
+		pair = pair(new Sessions(), new Sessions());
+		var other = pair[1];
+		var chunk = new byte[SecureEndpoint.MAX_MESSAGE_SIZE / 2 + 1];
+		chunk[0] = SecureEndpoint.DATA | SecureEndpoint.BULK;
+		for(int i = 0; i < 4; i++) pair[0].out.add(chunk);
+		assertThrows(IOException.class, () -> other.read(Blob::new));
+		assertFalse(other.isOpen());
+		// only the frames up to the limit were taken
+		assertEquals(1, pair[0].out.size());
+	}
+	
+	@Test
+	public void testInflateBounds() throws IOException, InterruptedException, Exception {
+		var b = new byte[8 * 1024];
+		Arrays.fill(b, (byte)'a');
+		var d = SecureEndpoint.deflate(b);
+		assertArrayEquals(b, SecureEndpoint.inflate(d));
+		
+		// lengths beyond the largest message are rejected before allocating
+		var forged = d.clone();
+		ByteBuffer.wrap(forged).putInt(Integer.MAX_VALUE);
+		assertThrows(IOException.class, () -> SecureEndpoint.inflate(forged));
+		ByteBuffer.wrap(forged).putInt(-1);
+		assertThrows(IOException.class, () -> SecureEndpoint.inflate(forged));
+		
+		// and the payload must inflate to exactly the length it claims
+		ByteBuffer.wrap(forged).putInt(b.length + 1);
+		assertThrows(IOException.class, () -> SecureEndpoint.inflate(forged));
+		ByteBuffer.wrap(forged).putInt(b.length - 1);
+		assertThrows(IOException.class, () -> SecureEndpoint.inflate(forged));
+		assertThrows(IOException.class, () -> SecureEndpoint.inflate(new byte[2]));
+	}
+	
+	// presents a ticket id with a guessed key confirmation
+	private static CompletableFuture<Endpoint> forge(byte[] id, Sessions serviceSessions) throws Exception {
+		var a = new LinkedBlockingQueue<byte[]>();
+		var b = new LinkedBlockingQueue<byte[]>();
+		var service = new PipeEndpoint(b, a);
+		service.sessions = serviceSessions;
+		var server = CompletableFuture.supplyAsync(() -> connect(service, false));
+		
+		var header = new byte[SecureEndpoint.HEADER_LENGTH];
+		header[0] = SecureEndpoint.INIT;
+		header[1] = (byte)NetVersion.current().protocolVersion;
+		Magic.magic(header, 2);
+		b.add(ByteBuffer.allocate(header.length + 1 + id.length + Sessions.NONCE_LENGTH)
+			.put(header)
+			.put(SecureEndpoint.RESUME)
+			.put(id)
+			.put(Sessions.random(Sessions.NONCE_LENGTH))
+			.array());
+		assertEquals(SecureEndpoint.RESUME, a.poll(5, TimeUnit.SECONDS)[SecureEndpoint.HEADER_LENGTH]);
+		b.add(Sessions.random(SessionCipher.KEY_LENGTH));
+		
+		return server;
+	}
+	
+	static PipeEndpoint[] pair(Sessions proxySessions, Sessions serviceSessions) throws Exception {
+		var a = new LinkedBlockingQueue<byte[]>();
+		var b = new LinkedBlockingQueue<byte[]>();
+		var proxy = new PipeEndpoint(a, b);
+		var service = new PipeEndpoint(b, a);
+		proxy.sessions = proxySessions;
+		service.sessions = serviceSessions;
+		
+		var server = CompletableFuture.supplyAsync(() -> connect(service, false));
+		proxy.connect(true);
+		server.get(5, TimeUnit.SECONDS);
+		
+		return new PipeEndpoint[]{proxy, service};
+	}
+	
+	private static void echo(Endpoint proxy, Endpoint service) throws IOException {
+		var msg = new Message("a");
+		proxy.write(msg);
+		assertEquals(msg, service.read(Message::new));
+		service.write(msg);
+		assertEquals(msg, proxy.read(Message::new));
+	}
+	
+	private static Endpoint connect(SecureEndpoint endpoint, boolean isProxy) {
+		try {
+			return endpoint.connect(isProxy);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// flag prefixed frames as written by the previous handshake
+	private static ByteStream stream(BlockingQueue<byte[]> in, BlockingQueue<byte[]> out) {
+		return new ByteStream() {
+			@Override
+			public void write(byte[] b) throws IOException {
+				var d = new byte[b.length + 1];
+				d[0] = SecureEndpoint.INIT;
+				System.arraycopy(b, 0, d, 1, b.length);
+				out.add(d);
+			}
+			@Override
+			public byte[] read() throws IOException {
+				try {
+					var b = in.take();
+					return extract(b, 1, b.length - 1);
+				} catch(InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+	}
+	
+	static class Blob implements Encodable {
+		final byte[] data;
+		
+		Blob(byte[] data) {
+			this.data = data;
+		}
+		
+		Blob(VarInput in) throws IOException {
+			data = in.readBytes();
+		}
+		
+		@Override
+		public void write(VarOutput out) throws IOException {
+			out.writeBytes(data);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Blob && Arrays.equals(data, ((Blob)o).data);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(data);
+		}
+	}
+	
+	static class PipeEndpoint extends SecureEndpoint {
+		final AtomicInteger frames = new AtomicInteger();
+		final AtomicInteger writes = new AtomicInteger();
+		final AtomicLong bytes = new AtomicLong();
+		final BlockingQueue<byte[]> in;
+		final BlockingQueue<byte[]> out;
+		volatile boolean closed;
+		
+		PipeEndpoint(BlockingQueue<byte[]> in, BlockingQueue<byte[]> out) {
+			this.in = in;
+			this.out = out;
+		}
+		
+		@Override
+		protected Object sessionKey() {
+			return "peer";
+		}
+		
+		@Override
+		protected void writeRaw(byte[] b) throws IOException {
+			if(flag == INIT) frames.incrementAndGet();
+			writes.incrementAndGet();
+			bytes.addAndGet(b.length);
+			out.add(b);
+		}
+		
+		@Override
+		protected byte[] readRaw() throws IOException {
+			try {
+				return in.take();
+			} catch(InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {return !closed;}
+
+		@Override
+		public void close() throws IOException {closed = true;}
+	}
+}
@@ -0,0 +1,125 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class ShardRingTest {
+	
+	@Test
+	public void testBalance() throws Exception {
+		var servers = servers(4);
+		var ring = new ShardRing(servers);
+		var addresses = addresses(40000);
+		var counts = new HashMap<InetSocketAddress, Integer>();
+		for(var address : addresses) counts.merge(ring.owner(address), 1, Integer::sum);
+		
+		// every server owns its share to within a quarter
+		assertEquals(4, counts.size());
+		for(var count : counts.values()) assertTrue(Math.abs(count - 10000) < 2500, "Unbalanced: " + counts);
+	}
+	
+	@Test
+	public void testRebalance() throws Exception {
+		var servers = servers(5);
+		var ring = new ShardRing(servers.subList(0, 4));
+		var grown = new ShardRing(servers);
+		var addresses = addresses(40000);
+		
+		// only addresses taken over by the new server move
+		var moved = 0;
+		for(var address : addresses) {
+			var owner = grown.owner(address);
+			if(!owner.equals(ring.owner(address))) {
+				assertEquals(servers.get(4), owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > 40000 / 5 * 3 / 4 && moved < 40000 / 5 * 5 / 4, "Moved: " + moved);
+	}
+	
+	@Test
+	public void testAgreement() throws Exception {
+		var servers = servers(3);
+		var ring = new ShardRing(servers);
+		var reversed = new ArrayList<>(servers);
+		Collections.reverse(reversed);
+		var other = new ShardRing(reversed);
+		for(var address : addresses(1000)) {
+			assertEquals(ring.owner(address), other.owner(address));
+			assertEquals(ring.owner(address), ring.owner(address.bytes(), 0));
+		}
+		assertTrue(ring.contains(servers.get(1)));
+		assertFalse(ring.contains(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 1)));
+		
+		var single = ShardRing.of(servers.get(0));
+		for(var address : addresses(10)) assertEquals(servers.get(0), single.owner(address));
+	}
+	
+	@Test
+	public void testReplicas() throws Exception {
+		var servers = servers(4);
+		var ring = new ShardRing(servers, ShardRing.DEFAULT_POINTS, 3);
+		for(var address : addresses(1000)) {
+			var replicas = ring.replicas(address);
+			assertEquals(3, replicas.size());
+			assertEquals(3, new HashSet<>(replicas).size());
+			assertEquals(ring.owner(address), replicas.get(0));
+		}
+		assertEquals(2, new ShardRing(servers.subList(0, 2), ShardRing.DEFAULT_POINTS, 3).replicas());
+	}
+	
+	static List<InetSocketAddress> servers(int n) throws Exception {
+		var servers = new ArrayList<InetSocketAddress>();
+		for(int i = 0; i < n; i++) servers.add(new InetSocketAddress(InetAddress.getByName("10.0.0." + (i + 1)), 7732));
+		return servers;
+	}
+	
+	static List<Address> addresses(int n) {
+		var random = new Random(11);
+		var addresses = new ArrayList<Address>();
+		for(int i = 0; i < n; i++) {
+			var b = new byte[20];
+			random.nextBytes(b);
+			addresses.add(new Address(b));
+		}
+		return addresses;
+	}
+}
@@ -0,0 +1,198 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static rs.igram.kiribi.net.EndpointProviderTest.Message;
+import static rs.igram.kiribi.net.SecureEndpointTest.Blob;
+import static rs.igram.kiribi.net.UDPEndpointProviderTest.local;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class TCPEndpointFactoryTest {
+	
+	@Test
+	public void testTransfer() throws IOException, InterruptedException, Exception {
+		var address = local(6750);
+		var accepted = new LinkedBlockingQueue<Endpoint>();
+		var server = TCPEndpointFactory.server(address);
+		server.accept(accepted::add);
+		
+		var proxy = TCPEndpointFactory.open(address);
+		var service = accepted.poll(5, TimeUnit.SECONDS);
+		
+		var msg = new Message("a");
+		proxy.write(msg);
+		assertEquals(msg, service.read(Message::new));
+		service.write(msg);
+		assertEquals(msg, proxy.read(Message::new));
+		
+		// more than the queue bounds and socket buffers before the service reads
+		var data = new byte[256 * 1024];
+		new Random(3).nextBytes(data);
+		var blob = new Blob(data);
+		var count = 16 * TCPEndpointFactory.ChannelEndpoint.MAX_QUEUED / data.length;
+		var writer = CompletableFuture.runAsync(() -> {
+			try {
+				for(int i = 0; i < count; i++) proxy.write(blob);
+				proxy.write(msg);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		TimeUnit.MILLISECONDS.sleep(500);
+		assertFalse(writer.isDone());
+		for(int i = 0; i < count; i++) assertEquals(blob, service.read(Blob::new));
+		assertEquals(msg, service.read(Message::new));
+		writer.get(5, TimeUnit.SECONDS);
+		
+		// end of stream once the peer closes
+		proxy.close();
+		assertThrows(IOException.class, () -> service.read(Message::new));
+		server.close();
+	}
+	
+	@Test
+	public void testIdleFootprint() throws IOException, InterruptedException, Exception {
+		var address = local(6751);
+		var accepted = new LinkedBlockingQueue<Endpoint>();
+		var server = TCPEndpointFactory.server(address);
+		server.accept(accepted::add);
+		
+		// warm up
+		var endpoint = TCPEndpointFactory.open(address);
+		accepted.poll(5, TimeUnit.SECONDS);
+		
+		var count = 500;
+		var threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		var endpoints = new ArrayList<Endpoint>();
+		for(int i = 0; i < count; i++) {
+			endpoints.add(TCPEndpointFactory.open(address));
+			endpoints.add(accepted.poll(5, TimeUnit.SECONDS));
+		}
+		// idle connections park no threads of their own
+		var added = ManagementFactory.getThreadMXBean().getThreadCount() - threads;
+		assertTrue(added < 20);
+		
+		for(var e : endpoints) e.close();
+		server.close();
+	}
+	
+	@Test
+	public void testProfiles() throws IOException, InterruptedException, Exception {
+		var profiles = new TCPOptions[]{TCPOptions.PLATFORM, TCPOptions.LOW_LATENCY, TCPOptions.THROUGHPUT};
+		for(int i = 0; i < profiles.length; i++) profile(profiles[i], 6756 + i);
+	}
+	
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testProfilesBenchmark() throws IOException, InterruptedException, Exception {
+		var profiles = new TCPOptions[]{TCPOptions.PLATFORM, TCPOptions.LOW_LATENCY, TCPOptions.THROUGHPUT};
+		var names = new String[]{"platform", "low latency", "throughput"};
+		for(int i = 0; i < profiles.length; i++) {
+			var result = profile(profiles[i], 6800 + i);
+			System.out.println(names[i] + ": round trip " + result[0] + "us, " + result[1] + " MB/s");
+		}
+	}
+	
+	// small message round trip in micros and bulk rate in MB/s over a profile
+	private static long[] profile(TCPOptions profile, int port) throws Exception {
+		var data = new byte[64 * 1024];
+		new Random(5).nextBytes(data);
+		var blob = new Blob(data);
+		var address = local(port);
+		var accepted = new LinkedBlockingQueue<Endpoint>();
+		var server = TCPEndpointFactory.server(address, profile);
+		server.accept(accepted::add);
+		var proxy = TCPEndpointFactory.open(address, 0, 0, profile);
+		var service = accepted.poll(5, TimeUnit.SECONDS);
+		
+		// small message round trips
+		var msg = new Message("a");
+		var rounds = 500;
+		var start = System.nanoTime();
+		for(int j = 0; j < rounds; j++) {
+			proxy.write(msg);
+			service.write(service.read(Message::new));
+			assertEquals(msg, proxy.read(Message::new));
+		}
+		var latency = (System.nanoTime() - start) / rounds / 1000;
+		
+		// one way bulk transfer
+		var count = 512;
+		var reader = CompletableFuture.runAsync(() -> {
+			try {
+				for(int j = 0; j < count; j++) assertEquals(data.length, service.read(Blob::new).data.length);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		start = System.nanoTime();
+		for(int j = 0; j < count; j++) proxy.write(blob);
+		reader.get(60, TimeUnit.SECONDS);
+		var rate = (long)count * data.length * 1_000 / (System.nanoTime() - start);
+		
+		proxy.close();
+		server.close();
+		return new long[]{latency, rate};
+	}
+	
+	@Test
+	public void testConfigure() throws IOException, InterruptedException, Exception {
+		assertThrows(IllegalArgumentException.class, () -> TCPEndpointFactory.configure(TCPOptions.LOW_LATENCY, 0));
+		try {
+			TCPEndpointFactory.configure(TCPOptions.THROUGHPUT, 2);
+			assertEquals(TCPOptions.THROUGHPUT, TCPEndpointFactory.options());
+			
+			var address = local(6759);
+			var accepted = new LinkedBlockingQueue<Endpoint>();
+			var server = TCPEndpointFactory.server(address);
+			server.accept(accepted::add);
+			var proxy = TCPEndpointFactory.open(address);
+			var service = accepted.poll(5, TimeUnit.SECONDS);
+			var msg = new Message("a");
+			proxy.write(msg);
+			assertEquals(msg, service.read(Message::new));
+			proxy.close();
+			server.close();
+		} finally {
+			TCPEndpointFactory.configure(TCPOptions.LOW_LATENCY, TCPEndpointFactory.DEFAULT_THREADS);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.net;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.net.natt.NATTServer;
+
+import static rs.igram.kiribi.net.EndpointProviderTest.Message;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class UDPEndpointProviderTest {
+	static final long HIBERNATE_TIMEOUT = 500;
+	
+	@Test
+	public void testHibernation() throws IOException, InterruptedException, Exception {
+		var serverAddress = local(NATTServer.SERVER_PORT + 3);
+		var server = new NATTServer();
+   	   	server.start(serverAddress);
+   	   	
+		var provider1 = provider(4737, serverAddress);
+		var provider2 = provider(4738, serverAddress);
+		provider1.hibernateTimeout = HIBERNATE_TIMEOUT;
+		provider2.hibernateTimeout = HIBERNATE_TIMEOUT;
+		provider1.server().accept(UDPEndpointProviderTest::echo);
+		provider2.server();
+		
+		var endpoint = provider2.open(new ConnectionAddress(provider1.address));
+		var msg1 = new Message("a");
+		endpoint.write(msg1);
+		assertEquals(msg1, endpoint.read(Message::new));
+		
+		// both sides hibernate once idle
+		assertTrue(await(() -> provider1.hibernating() == 1 && provider2.hibernating() == 1));
+		
+		// next packet wakes without a new handshake
+		var msg2 = new Message("b");
+		endpoint.write(msg2);
+		assertEquals(msg2, endpoint.read(Message::new));
+		assertEquals(0, provider1.hibernating());
+		assertEquals(0, provider2.hibernating());
+		assertEquals(1, provider2.handshakePool().completed());
+		
+		server.shutdown();
+	}
+	
+	// reader threads released per connection when a gateway hibernates idle 
+	// muxes - note the peers run in the same vm so only deltas are meaningful
+	@Test
+	public void testHibernationFootprint() throws IOException, InterruptedException, Exception {
+		var peers = 20;
+		var readers = hibernate(peers, NATTServer.SERVER_PORT + 4, 4740, UDPEndpointProviderTest::readers);
+		
+		assertEquals(peers, readers[0] - readers[1]);
+	}
+	
+	// heap released per connection when a gateway hibernates idle muxes
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testHibernationHeap() throws IOException, InterruptedException, Exception {
+		var peers = 20;
+		var heap = hibernate(peers, NATTServer.SERVER_PORT + 5, 4770, UDPEndpointProviderTest::heap);
+		
+		System.out.println("Hibernation released per connection: " + (heap[0] - heap[1]) / peers + " bytes heap");
+	}
+	
+	// samples a gateway serving the peers while active and once hibernating
+	private static long[] hibernate(int peers, int serverPort, int port, Sample sample) throws Exception {
+		var serverAddress = local(serverPort);
+		var server = new NATTServer();
+   	   	server.start(serverAddress);
+   	   	
+		var gateway = provider(port, serverAddress);
+		gateway.server().accept(UDPEndpointProviderTest::echo);
+		
+		List<Endpoint> endpoints = new ArrayList<>();
+		for(int i = 0; i < peers; i++) {
+			var provider = provider(port + 1 + i, serverAddress);
+			provider.server();
+			var endpoint = provider.open(new ConnectionAddress(gateway.address));
+			endpoint.write(new Message("a"));
+			endpoint.read(Message::new);
+			endpoints.add(endpoint);
+		}
+		var active = sample.get();
+		
+		// touch each connection so its idle deadline picks up the short timeout
+		gateway.hibernateTimeout = HIBERNATE_TIMEOUT;
+		for(var endpoint : endpoints) {
+			endpoint.write(new Message("b"));
+			endpoint.read(Message::new);
+		}
+		assertTrue(await(() -> gateway.hibernating() == peers));
+		var hibernating = sample.get();
+		
+		server.shutdown();
+		return new long[]{active, hibernating};
+	}
+	
+	static UDPEndpointProvider provider(int port, InetSocketAddress serverAddress) throws Exception {
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		return (UDPEndpointProvider)EndpointProvider.udp(local(port), address, serverAddress);
+	}
+	
+	static InetSocketAddress local(int port) throws IOException {
+		return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+	}
+	
+	// echo messages until the endpoint is closed
+	static void echo(Endpoint endpoint) {
+		new Thread(() -> {
+			try {
+				while(endpoint.isOpen()) endpoint.write(endpoint.read(Message::new));
+			} catch(IOException e) {
+				// closed
+			}
+		}).start();
+	}
+	
+	interface Sample {
+		long get() throws Exception;
+	}
+	
+	// threads parked in a mux reader
+	static long readers() {
+		var count = 0;
+		for(var info : ManagementFactory.getThreadMXBean().dumpAllThreads(false, false)) {
+			for(var frame : info.getStackTrace()) {
+				if(frame.getClassName().endsWith(".MUX") && frame.getMethodName().equals("read")) {
+					count++;
+					break;
+				}
+			}
+		}
+		return count;
+	}
+	
+	// poll until the condition holds or 5 seconds have elapsed
+	static boolean await(BooleanSupplier condition) throws InterruptedException {
+		var end = System.currentTimeMillis() + 5_000;
+		while(System.currentTimeMillis() < end) {
+			if(condition.getAsBoolean()) return true;
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+		return condition.getAsBoolean();
+	}
+	
+	static long heap() throws InterruptedException {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
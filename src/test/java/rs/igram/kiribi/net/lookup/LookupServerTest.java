@@ -0,0 +1,519 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.lookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.io.EncodableBytes;
+import rs.igram.kiribi.io.VarOutputStream;
+import rs.igram.kiribi.net.Address;
+import rs.igram.kiribi.net.NetworkExecutor;
+import rs.igram.kiribi.net.ShardRing;
+import rs.igram.kiribi.net.TCPEndpointFactory;
+import rs.igram.kiribi.net.stack.NetworkMux;
+import rs.igram.kiribi.net.stack.lookup.Lookup;
+import rs.igram.kiribi.net.stack.lookup.LookupProtocol;
+import rs.igram.kiribi.net.stack.lookup.NLPProcessor;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class LookupServerTest {
+	
+	// shared by the servers of replicated clusters
+	static final byte[] KEY = "cluster key".getBytes();
+	// simulated clients, each with its own connection: -Dlookup.clients=n
+	static final int CLIENTS = Integer.getInteger("lookup.clients", 2000);
+	// concurrent callers driving the clients
+	static final int WORKERS = 64;
+	static final long DURATION = 2000;
+	
+	@Test
+	public void testLoad() throws IOException, InterruptedException, Exception {
+		assertTrue(load(6776) > 0);
+	}
+	
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testLoadBenchmark() throws IOException, InterruptedException, Exception {
+		var lookups = load(6803);
+		System.out.println("lookup server: " + (lookups * 1000 / DURATION) + " lookups/s from " + CLIENTS + " clients");
+	}
+	
+	// registers the clients then looks up random addresses for the duration,
+	// returning the number of lookups
+	private static long load(int port) throws Exception {
+		var lookupAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+		var server = new LookupServer();
+		server.start(lookupAddress);
+		
+		var executor = Executors.newFixedThreadPool(WORKERS);
+		var addresses = new ArrayList<Address>();
+		var clients = new ArrayList<Lookup>();
+		try {
+			// register in steps the handshake pool admits
+			for(int i = 0; i < CLIENTS; i++) {
+				var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+				addresses.add(address);
+				clients.add(new Lookup(address, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 10000 + i), lookupAddress));
+			}
+			for(int i = 0; i < CLIENTS; i += WORKERS) {
+				var step = new ArrayList<CompletableFuture<Void>>();
+				for(var client : clients.subList(i, Math.min(i + WORKERS, CLIENTS))) {
+					step.add(CompletableFuture.runAsync(() -> call(client::register), executor));
+				}
+				for(var f : step) f.get(30, TimeUnit.SECONDS);
+			}
+			assertEquals(CLIENTS, server.registrations());
+			
+			// random lookups from random clients
+			var lookups = new LongAdder();
+			var end = System.currentTimeMillis() + DURATION;
+			var workers = new ArrayList<CompletableFuture<Void>>();
+			for(int i = 0; i < WORKERS; i++) {
+				workers.add(CompletableFuture.runAsync(() -> {
+					var random = ThreadLocalRandom.current();
+					while(System.currentTimeMillis() < end) {
+						var client = clients.get(random.nextInt(CLIENTS));
+						var address = addresses.get(random.nextInt(CLIENTS));
+						call(() -> assertNotNull(client.lookup(address)));
+						lookups.increment();
+					}
+				}, executor));
+			}
+			for(var f : workers) f.get(DURATION + 30_000, TimeUnit.MILLISECONDS);
+			
+			assertTrue(server.requests() >= CLIENTS + lookups.sum());
+			return lookups.sum();
+		} finally {
+			clients.forEach(Lookup::close);
+			executor.shutdown();
+			server.stop();
+		}
+	}
+	
+	@Test
+	public void testLeases() throws IOException, InterruptedException, Exception {
+		var lookupAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6779);
+		var server = new LookupServer(300);
+		server.start(lookupAddress);
+		
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var socketAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6780);
+		var lookup = new Lookup(address, socketAddress, lookupAddress);
+		lookup.register();
+		
+		// the client renews its registration before the lease ends
+		TimeUnit.MILLISECONDS.sleep(1000);
+		assertEquals(socketAddress, lookup.lookup(address));
+		assertEquals(0, server.expired());
+		
+		// and the registration expires once it stops
+		lookup.close();
+		TimeUnit.MILLISECONDS.sleep(700);
+		assertEquals(0, server.registrations());
+		assertEquals(1, server.expired());
+		server.stop();
+	}
+	
+	@Test
+	public void testRestart() throws IOException, InterruptedException, Exception {
+		var lookupAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6781);
+		var dir = Files.createTempDirectory("lookup");
+		var server = new LookupServer(LookupServer.DEFAULT_TTL, dir);
+		server.start(lookupAddress);
+		
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var socketAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6782);
+		var lookup = new Lookup(address, socketAddress, lookupAddress);
+		lookup.register();
+		lookup.close();
+		server.stop();
+		
+		// a new server recovers the registration
+		server = new LookupServer(LookupServer.DEFAULT_TTL, dir);
+		server.start(lookupAddress);
+		assertEquals(1, server.registrations());
+		lookup = new Lookup(address, socketAddress, lookupAddress);
+		assertEquals(socketAddress, lookup.lookup(address));
+		lookup.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testCluster() throws IOException, InterruptedException, Exception {
+		var servers = new ArrayList<InetSocketAddress>();
+		for(int i = 0; i < 3; i++) servers.add(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6786 + i));
+		var ring = new ShardRing(servers);
+		var cluster = new ArrayList<LookupServer>();
+		for(var s : servers) {
+			var server = new LookupServer();
+			server.cluster(ring, s);
+			server.start(s);
+			cluster.add(server);
+		}
+		
+		var addresses = new ArrayList<Address>();
+		var clients = new ArrayList<Lookup>();
+		try {
+			// clients register with the owner of their address
+			for(int i = 0; i < 30; i++) {
+				var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+				addresses.add(address);
+				var client = new Lookup(address, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 20000 + i), ring);
+				client.register();
+				clients.add(client);
+			}
+			var total = 0;
+			for(var server : cluster) {
+				assertTrue(server.registrations() > 0);
+				total += server.registrations();
+				assertEquals(0, server.redirects());
+			}
+			assertEquals(30, total);
+			for(int i = 0; i < 30; i++) {
+				assertEquals(20000 + i, clients.get(0).lookup(addresses.get(i)).getPort());
+			}
+			
+			// a client configured with a single server is redirected
+			var single = new Lookup(addresses.get(0), new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 20000), servers.get(0));
+			for(int i = 0; i < 30; i++) {
+				assertEquals(20000 + i, single.lookup(addresses.get(i)).getPort());
+			}
+			var all = single.lookupAll(addresses);
+			assertEquals(addresses, new ArrayList<>(all.keySet()));
+			for(int i = 0; i < 30; i++) assertEquals(20000 + i, all.get(addresses.get(i)).getPort());
+			assertTrue(cluster.get(0).redirects() > 0);
+			single.close();
+		} finally {
+			clients.forEach(Lookup::close);
+			for(var server : cluster) server.stop();
+		}
+	}
+	
+	@Test
+	public void testIdleClients() throws IOException, InterruptedException, Exception {
+		var lookupAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6806);
+		var server = new LookupServer();
+		server.start(lookupAddress);
+		var clients = new ArrayList<Lookup>();
+		try {
+			var addresses = new ArrayList<Address>();
+			for(int i = 0; i < 100; i++) {
+				var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+				var client = new Lookup(address, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 20000 + i), lookupAddress);
+				client.register();
+				addresses.add(address);
+				clients.add(client);
+			}
+			// the connections stay open without a server thread each
+			var serving = Thread.getAllStackTraces().keySet().stream()
+				.map(Thread::getName)
+				.filter(n -> n.startsWith("lookup-server-") || n.startsWith("tcp-dispatch"))
+				.count();
+			assertTrue(serving < clients.size() / 4, serving + " threads serving");
+			for(int i = 0; i < 100; i++) assertEquals(20000 + i, clients.get(99 - i).lookup(addresses.get(i)).getPort());
+		} finally {
+			clients.forEach(Lookup::close);
+			server.stop();
+		}
+	}
+	
+	@Test
+	public void testDeadShard() throws IOException, InterruptedException, Exception {
+		var healthy = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6804);
+		var dead = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6805);
+		var ring = new ShardRing(List.of(healthy, dead));
+		var server = new LookupServer();
+		server.cluster(ring, healthy);
+		server.start(healthy);
+		// accepts connections but never completes a handshake
+		var silent = new ServerSocket(dead.getPort(), 50, dead.getAddress());
+		
+		var live = owned(ring, healthy);
+		var stuck = owned(ring, dead);
+		var client = new Lookup(live, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 20000), ring);
+		try {
+			client.register();
+			var blocked = CompletableFuture.supplyAsync(() -> {
+				try {
+					return client.lookup(stuck);
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			// give the stuck lookup time to start its handshake
+			Thread.sleep(200);
+			var start = System.nanoTime();
+			for(int i = 0; i < 10; i++) assertEquals(20000, client.lookup(live).getPort());
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+			assertFalse(blocked.isDone());
+			
+			// the handshake with the silent owner times out
+			var e = assertThrows(ExecutionException.class, () -> blocked.get(30, TimeUnit.SECONDS));
+			assertTrue(e.getCause().getCause() instanceof IOException);
+		} finally {
+			client.close();
+			silent.close();
+			server.stop();
+		}
+	}
+	
+	// an address owned by the given server
+	private static Address owned(ShardRing ring, InetSocketAddress owner) throws Exception {
+		while(true) {
+			var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+			if(ring.owner(address).equals(owner)) return address;
+		}
+	}
+	
+	@Test
+	public void testReplication() throws IOException, InterruptedException, Exception {
+		var servers = new ArrayList<InetSocketAddress>();
+		for(int i = 0; i < 3; i++) servers.add(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6792 + i));
+		var ring = new ShardRing(servers, ShardRing.DEFAULT_POINTS, 2);
+		var cluster = new ArrayList<LookupServer>();
+		assertThrows(IllegalArgumentException.class, () -> new LookupServer().cluster(ring, servers.get(0)));
+		for(var s : servers) {
+			var server = new LookupServer();
+			server.cluster(ring, s, KEY);
+			server.start(s);
+			cluster.add(server);
+		}
+		
+		var addresses = new ArrayList<Address>();
+		var clients = new ArrayList<Lookup>();
+		try {
+			for(int i = 0; i < 30; i++) {
+				var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+				addresses.add(address);
+				var client = new Lookup(address, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 20000 + i), ring);
+				client.register();
+				clients.add(client);
+			}
+			// every registration reaches its second replica
+			awaitReplication(cluster);
+			var total = 0;
+			for(var server : cluster) total += server.registrations();
+			assertEquals(60, total);
+			
+			// a later registration at another replica wins on both
+			var address = addresses.get(0);
+			var replicas = ring.replicas(address);
+			var moved = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 30000);
+			var other = new Lookup(address, moved, replicas.get(1));
+			other.register();
+			awaitReplication(cluster);
+			for(var replica : replicas) {
+				var single = new Lookup(address, moved, replica);
+				assertEquals(moved, single.lookup(address));
+				single.close();
+			}
+			other.close();
+			
+			// updates without the cluster key are refused
+			var forged = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 30004);
+			var now = System.currentTimeMillis();
+			assertEquals(LookupProtocol.ERROR, request(replicas.get(0), replication(replicas.get(1), address, forged, now, new byte[KEY.length])));
+			// updates stamped far ahead are dropped
+			assertEquals(LookupProtocol.ACK, request(replicas.get(0), replication(replicas.get(1), address, forged, now + 10 * LookupServer.MAX_DRIFT, KEY)));
+			var single = new Lookup(address, moved, replicas.get(0));
+			assertEquals(moved, single.lookup(address));
+			single.close();
+			
+			// reads fail over once a server stops
+			cluster.get(0).stop();
+			for(int i = 1; i < 30; i++) {
+				assertEquals(20000 + i, clients.get(1).lookup(addresses.get(i)).getPort());
+			}
+			var all = clients.get(1).lookupAll(addresses.subList(1, 30));
+			for(int i = 1; i < 30; i++) assertEquals(20000 + i, all.get(addresses.get(i)).getPort());
+		} finally {
+			clients.forEach(Lookup::close);
+			for(var server : cluster) server.stop();
+		}
+	}
+	
+	@Test
+	public void testDatagrams() throws IOException, InterruptedException, Exception {
+		var lookupAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6795);
+		var server = new LookupServer();
+		server.datagrams();
+		server.start(lookupAddress);
+		
+		var mux = new Mux(new NetworkExecutor());
+		var nlp = new NLPProcessor(lookupAddress);
+		mux.register(nlp);
+		mux.open(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6796));
+		try {
+			var keys = KeyPairGenerator.generateKeyPair();
+			var address = new Address(keys.getPublic());
+			var socketAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 30001);
+			assertNull(nlp.lookup(address));
+			assertEquals(LookupServer.DEFAULT_TTL, nlp.register(address, socketAddress, keys));
+			assertEquals(socketAddress, nlp.lookup(address));
+			
+			// the address is served over connections as well
+			var lookup = new Lookup(new Address(KeyPairGenerator.generateKeyPair().getPublic()), socketAddress, lookupAddress);
+			try {
+				assertEquals(socketAddress, lookup.lookup(address));
+			} finally {
+				lookup.close();
+			}
+			
+			// registrations signed with another key are rejected
+			var other = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 30002);
+			assertThrows(IOException.class, () -> nlp.register(address, other, KeyPairGenerator.generateKeyPair()));
+			assertEquals(socketAddress, nlp.lookup(address));
+			assertTrue(server.requests() >= 5);
+		} finally {
+			mux.close();
+			server.stop();
+		}
+		
+		// unanswered requests fail once retried
+		var silent = new NLPProcessor(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6797));
+		mux = new Mux(new NetworkExecutor());
+		mux.register(silent);
+		mux.open(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6798));
+		try {
+			var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+			assertThrows(IOException.class, () -> silent.lookup(address));
+		} finally {
+			mux.close();
+		}
+	}
+	
+	@Test
+	public void testSignedRegistration() throws IOException, Exception {
+		var keys = KeyPairGenerator.generateKeyPair();
+		var address = new Address(keys.getPublic());
+		var socketAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 30003);
+		var now = System.currentTimeMillis();
+		var b = NLPProcessor.registration(address, socketAddress, now, keys);
+		
+		assertTrue(NLPProcessor.verify(b, b.length, now));
+		// stale or early registrations
+		assertFalse(NLPProcessor.verify(b, b.length, now + LookupProtocol.MAX_SKEW + 1));
+		assertFalse(NLPProcessor.verify(b, b.length, now - LookupProtocol.MAX_SKEW - 1));
+		// truncated
+		assertFalse(NLPProcessor.verify(b, b.length - 1, now));
+		// the request id is not signed, the socket address is
+		b[1] ^= 1;
+		assertTrue(NLPProcessor.verify(b, b.length, now));
+		b[LookupProtocol.OFF_INET + 17] ^= 1;
+		assertFalse(NLPProcessor.verify(b, b.length, now));
+		
+		// another key for the address
+		b = NLPProcessor.registration(address, socketAddress, now, KeyPairGenerator.generateKeyPair());
+		assertFalse(NLPProcessor.verify(b, b.length, now));
+	}
+	
+	// opens the datagram socket of a mux outside a stack
+	private static final class Mux extends NetworkMux {
+		Mux(NetworkExecutor executor) {
+			super(executor);
+		}
+		
+		void open(InetSocketAddress inet) {
+			start(inet);
+		}
+		
+		void close() {
+			shutdown();
+		}
+	}
+	
+	private static byte[] replication(InetSocketAddress sender, Address address, InetSocketAddress socketAddress, long timestamp, byte[] key) throws IOException {
+		var out = new VarOutputStream();
+		out.write(LookupProtocol.REPLICATE);
+		out.writeAddress(sender);
+		out.writeInt(1);
+		out.write(LookupProtocol.REGISTER);
+		out.write(address);
+		out.writeLong(timestamp);
+		out.writeAddress(socketAddress);
+		var request = out.toByteArray();
+		out.write(Replicator.mac(key, request, request.length));
+		return out.toByteArray();
+	}
+	
+	// the status of the response
+	private static byte request(InetSocketAddress server, byte[] request) throws Exception {
+		var endpoint = TCPEndpointFactory.open(server);
+		try {
+			endpoint.write(new EncodableBytes(request));
+			return endpoint.read(EncodableBytes::new).bytes()[0];
+		} finally {
+			endpoint.close();
+		}
+	}
+	
+	private static void awaitReplication(List<LookupServer> cluster) throws InterruptedException {
+		var end = System.currentTimeMillis() + 5000;
+		while(System.currentTimeMillis() < end) {
+			var pending = 0;
+			for(var server : cluster) pending += server.pending();
+			if(pending == 0) {
+				// let the last batches be applied
+				TimeUnit.MILLISECONDS.sleep(100);
+				return;
+			}
+			TimeUnit.MILLISECONDS.sleep(20);
+		}
+		fail("Replication pending");
+	}
+	
+	private static void call(Call call) {
+		try {
+			call.call();
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private interface Call {
+		void call() throws Exception;
+	}
+}
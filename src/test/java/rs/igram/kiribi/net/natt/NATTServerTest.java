@@ -0,0 +1,165 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.natt;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.net.Address;
+import rs.igram.kiribi.net.stack.NetworkMux;
+import rs.igram.kiribi.net.ShardRing;
+
+import static rs.igram.kiribi.net.natt.NATT.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class NATTServerTest {
+	
+	@Test
+	public void testLeases() throws Exception {
+		var serverAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6777);
+		var server = new NATTServer(300);
+		server.start(serverAddress);
+		
+		var b = new byte[20];
+		new SecureRandom().nextBytes(b);
+		var address = new Address(b);
+		var socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6778));
+		socket.setSoTimeout(5000);
+		
+		var buf = new byte[PACKET_SIZE];
+		buf[0] = NATT_PROTOCOL;
+		buf[OFF_CMD] = REG;
+		System.arraycopy(address.bytes(), 0, buf, OFF_DATA, 20);
+		socket.send(new DatagramPacket(buf, buf.length, serverAddress));
+		var response = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+		socket.receive(response);
+		assertEquals(ADR, response.getData()[OFF_CMD]);
+		assertEquals(1, server.registrations());
+		
+		// keep alives from the registered socket renew the lease
+		for(int i = 0; i < 8; i++) {
+			socket.send(new DatagramPacket(KA_DATA, 2, serverAddress));
+			socket.receive(response);
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+		assertEquals(1, server.registrations());
+		assertEquals(0, server.expired());
+		
+		TimeUnit.MILLISECONDS.sleep(700);
+		assertEquals(0, server.registrations());
+		assertEquals(1, server.expired());
+		socket.close();
+	}
+	
+	@Test
+	public void testCluster() throws Exception {
+		var first = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6789);
+		var second = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6790);
+		var ring = ShardRing.of(first, second);
+		var servers = new NATTServer[2];
+		for(int i = 0; i < 2; i++) {
+			servers[i] = new NATTServer();
+			servers[i].cluster(ring, i == 0 ? first : second);
+			servers[i].start(i == 0 ? first : second);
+		}
+		var socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6791));
+		socket.setSoTimeout(5000);
+		
+		// an address owned by the second server
+		var b = new byte[20];
+		var random = new SecureRandom();
+		do random.nextBytes(b); while(!ring.owner(b, 0).equals(second));
+		
+		var buf = new byte[PACKET_SIZE];
+		buf[0] = NATT_PROTOCOL;
+		buf[OFF_CMD] = REG;
+		System.arraycopy(b, 0, buf, OFF_DATA, 20);
+		socket.send(new DatagramPacket(buf, buf.length, first));
+		var response = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+		socket.receive(response);
+		assertEquals(RDR, response.getData()[OFF_CMD]);
+		assertEquals(second, NetworkMux.inet(response.getData(), OFF_DATA + 20));
+		assertEquals(0, servers[0].registrations());
+		
+		socket.send(new DatagramPacket(buf, buf.length, second));
+		socket.receive(response);
+		assertEquals(ADR, response.getData()[OFF_CMD]);
+		assertEquals(1, servers[1].registrations());
+		
+		for(var server : servers) server.shutdown();
+		socket.close();
+	}
+	
+	@Test
+	public void testRestart() throws Exception {
+		var serverAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6783);
+		var dir = Files.createTempDirectory("natt");
+		var server = new NATTServer(NATTServer.DEFAULT_TTL, dir);
+		server.start(serverAddress);
+		
+		var b = new byte[20];
+		new SecureRandom().nextBytes(b);
+		var socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6784));
+		socket.setSoTimeout(5000);
+		
+		var buf = new byte[PACKET_SIZE];
+		buf[0] = NATT_PROTOCOL;
+		buf[OFF_CMD] = REG;
+		System.arraycopy(b, 0, buf, OFF_DATA, 20);
+		socket.send(new DatagramPacket(buf, buf.length, serverAddress));
+		var response = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+		socket.receive(response);
+		assertEquals(ADR, response.getData()[OFF_CMD]);
+		server.shutdown();
+		
+		// a new server recovers the registration and tunnels to it
+		serverAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6785);
+		server = new NATTServer(NATTServer.DEFAULT_TTL, dir);
+		server.start(serverAddress);
+		assertEquals(1, server.registrations());
+		
+		buf[OFF_CMD] = CON;
+		System.arraycopy(b, 0, buf, OFF_DATA, 20);
+		socket.send(new DatagramPacket(buf, buf.length, serverAddress));
+		socket.receive(response);
+		assertEquals(TUN, response.getData()[OFF_CMD]);
+		socket.receive(response);
+		assertEquals(ADC, response.getData()[OFF_CMD]);
+		server.shutdown();
+		socket.close();
+	}
+}
@@ -0,0 +1,131 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.stack;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.net.NetworkExecutor;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class LeasesTest {
+	
+	@Test
+	public void testExpiry() throws Exception {
+		var registry = new Registry(1, 1, 16, 200);
+		Set<Byte> expired = ConcurrentHashMap.newKeySet();
+		var leases = new Leases(new NetworkExecutor(), registry, key -> {
+			var removed = registry.expire(key, 0, null, 0);
+			if(removed) expired.add(key[0]);
+			return removed;
+		});
+		leases.start();
+		
+		var a = new byte[]{'a'};
+		var b = new byte[]{'b'};
+		var c = new byte[]{'c'};
+		registry.put(a, 0, a, 0);
+		registry.put(b, 0, b, 0);
+		registry.put(c, 0, c, 0);
+		registry.remove(c, 0);
+		assertEquals(2, leases.live());
+		
+		// a is renewed past the ttl, b is not
+		for(int i = 0; i < 6; i++) {
+			TimeUnit.MILLISECONDS.sleep(100);
+			assertTrue(leases.touch(a, 0));
+		}
+		assertEquals(Set.of((byte)'b'), expired);
+		assertFalse(leases.touch(b, 0));
+		assertEquals(1, leases.live());
+		assertEquals(1, leases.expired());
+		
+		// storing a again renews it as well
+		registry.put(a, 0, a, 0);
+		TimeUnit.MILLISECONDS.sleep(100);
+		assertEquals(1, leases.live());
+		
+		TimeUnit.MILLISECONDS.sleep(500);
+		assertEquals(Set.of((byte)'a', (byte)'b'), expired);
+		assertEquals(0, leases.live());
+		assertEquals(2, leases.expired());
+		leases.stop();
+	}
+	
+	@Test
+	public void testRenewed() throws Exception {
+		var registry = new Registry(1, 1, 16, 50);
+		var a = new byte[]{'a'};
+		registry.put(a, 0, a, 0);
+		assertFalse(registry.expire(a, 0, null, 0));
+		
+		TimeUnit.MILLISECONDS.sleep(100);
+		// a lease renewed after it was found passed is not expired
+		var found = new byte[1][];
+		registry.expired(key -> found[0] = key);
+		assertArrayEquals(a, found[0]);
+		registry.touch(a, 0);
+		assertFalse(registry.expire(a, 0, null, 0));
+		
+		TimeUnit.MILLISECONDS.sleep(100);
+		var value = new byte[1];
+		assertTrue(registry.expire(a, 0, value, 0));
+		assertArrayEquals(a, value);
+		assertEquals(0, registry.size());
+		
+		// a key removed and stored again before its bucket comes due is
+		// reported once, under its latest filing only
+		var b = new byte[]{'b'};
+		registry.put(b, 0, b, 0);
+		registry.remove(b, 0);
+		registry.put(b, 0, b, 0);
+		TimeUnit.MILLISECONDS.sleep(100);
+		var count = new int[1];
+		registry.expired(key -> count[0]++);
+		assertEquals(1, count[0]);
+		// kept by the owner, so reported again the next tick
+		TimeUnit.MILLISECONDS.sleep(20);
+		registry.expired(key -> count[0]++);
+		assertEquals(2, count[0]);
+		assertTrue(registry.expire(b, 0, null, 0));
+		TimeUnit.MILLISECONDS.sleep(20);
+		registry.expired(key -> count[0]++);
+		assertEquals(2, count[0]);
+		
+		// entries of a registry which is not leased never expire
+		var unleased = new Registry(1, 1, 16);
+		unleased.put(a, 0, a, 0);
+		assertFalse(unleased.expire(a, 0, null, 0));
+		assertThrows(IllegalArgumentException.class, () -> new Leases(new NetworkExecutor(), unleased, key -> true));
+	}
+}
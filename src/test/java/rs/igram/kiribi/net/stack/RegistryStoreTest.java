@@ -0,0 +1,196 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.stack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class RegistryStoreTest {
+	
+	// entries written by the volume test and benchmark: -Dregistry.entries=n
+	static final int ENTRIES = Integer.getInteger("registry.entries", 200000);
+	
+	@Test
+	public void testRecovery() throws Exception {
+		var dir = Files.createTempDirectory("registry");
+		var registry = new Registry(4, 4, 16);
+		var store = new RegistryStore(dir, registry);
+		assertEquals(0, store.recover());
+		
+		var b = new byte[4];
+		for(int i = 0; i < 1000; i++) store.put(key(b, i), 0, key(new byte[4], -i), 0);
+		store.snapshot();
+		for(int i = 0; i < 1000; i += 2) assertTrue(store.remove(key(b, i), 0));
+		// unchanged values are not journaled
+		store.put(key(b, 1), 0, key(new byte[4], -1), 0);
+		assertEquals(500, store.records());
+		store.put(key(b, 1), 0, key(new byte[4], 7), 0);
+		store.close();
+		
+		var recovered = recover(dir, 4, 4);
+		assertEquals(500, recovered.size());
+		var value = new byte[4];
+		for(int i = 0; i < 1000; i++) {
+			assertEquals(i % 2 == 1, recovered.get(key(b, i), 0, value, 0));
+			if(i % 2 == 1) assertArrayEquals(key(new byte[4], i == 1 ? 7 : -i), value);
+		}
+	}
+	
+	@Test
+	public void testTornJournal() throws Exception {
+		var dir = Files.createTempDirectory("registry");
+		var store = new RegistryStore(dir, new Registry(4, 4, 16));
+		store.recover();
+		var b = new byte[4];
+		for(int i = 0; i < 10; i++) store.put(key(b, i), 0, b, 0);
+		store.close();
+		
+		// a record cut short by a failure is dropped
+		try(var stream = Files.newDirectoryStream(dir, "journal-*")){
+			for(var p : stream) {
+				try(var channel = FileChannel.open(p, WRITE, APPEND)){
+					channel.write(ByteBuffer.wrap(new byte[]{1, 0, 0}));
+				}
+			}
+		}
+		var recovered = recover(dir, 4, 4);
+		assertEquals(10, recovered.size());
+		
+		// and later journals still replay
+		var store2 = new RegistryStore(dir, new Registry(4, 4, 16));
+		store2.recover();
+		store2.remove(key(b, 3), 0);
+		store2.close();
+		assertEquals(9, recover(dir, 4, 4).size());
+	}
+	
+	@Test
+	public void testVolume() throws Exception {
+		var random = new Random(7);
+		var keys = new byte[ENTRIES * Registry.ADDRESS_LENGTH];
+		var values = new byte[ENTRIES * Registry.SOCKET_ADDRESS_LENGTH];
+		random.nextBytes(keys);
+		random.nextBytes(values);
+		
+		var dir = Files.createTempDirectory("registry");
+		var store = new RegistryStore(dir, new Registry());
+		store.recover();
+		for(int i = 0; i < ENTRIES; i++) {
+			store.put(keys, i * Registry.ADDRESS_LENGTH, values, i * Registry.SOCKET_ADDRESS_LENGTH);
+		}
+		
+		// recovered from the journal, then from the snapshot replacing it
+		var replayed = recover(dir, Registry.ADDRESS_LENGTH, Registry.SOCKET_ADDRESS_LENGTH);
+		store.snapshot();
+		store.close();
+		var loaded = recover(dir, Registry.ADDRESS_LENGTH, Registry.SOCKET_ADDRESS_LENGTH);
+		
+		assertEquals(ENTRIES, replayed.size());
+		assertEquals(ENTRIES, loaded.size());
+		var value = new byte[Registry.SOCKET_ADDRESS_LENGTH];
+		for(int i = 0; i < ENTRIES; i += 997) {
+			assertTrue(loaded.get(keys, i * Registry.ADDRESS_LENGTH, value, 0));
+			assertArrayEquals(Arrays.copyOfRange(values, i * Registry.SOCKET_ADDRESS_LENGTH, (i + 1) * Registry.SOCKET_ADDRESS_LENGTH), value);
+		}
+	}
+	
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testBenchmark() throws Exception {
+		var random = new Random(7);
+		var keys = new byte[ENTRIES * Registry.ADDRESS_LENGTH];
+		var values = new byte[ENTRIES * Registry.SOCKET_ADDRESS_LENGTH];
+		random.nextBytes(keys);
+		random.nextBytes(values);
+		
+		var registry = new Registry();
+		var start = System.nanoTime();
+		for(int i = 0; i < ENTRIES; i++) {
+			registry.put(keys, i * Registry.ADDRESS_LENGTH, values, i * Registry.SOCKET_ADDRESS_LENGTH);
+		}
+		var memory = System.nanoTime() - start;
+		
+		var dir = Files.createTempDirectory("registry");
+		var store = new RegistryStore(dir, new Registry());
+		store.recover();
+		start = System.nanoTime();
+		for(int i = 0; i < ENTRIES; i++) {
+			store.put(keys, i * Registry.ADDRESS_LENGTH, values, i * Registry.SOCKET_ADDRESS_LENGTH);
+		}
+		var journaled = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		var replayed = recover(dir, Registry.ADDRESS_LENGTH, Registry.SOCKET_ADDRESS_LENGTH);
+		var replay = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		store.snapshot();
+		var snapshot = System.nanoTime() - start;
+		store.close();
+		
+		start = System.nanoTime();
+		var loaded = recover(dir, Registry.ADDRESS_LENGTH, Registry.SOCKET_ADDRESS_LENGTH);
+		var load = System.nanoTime() - start;
+		
+		assertEquals(ENTRIES, replayed.size());
+		assertEquals(ENTRIES, loaded.size());
+		System.out.format("registry store: %d entries, put %d ns in memory, %d ns journaled%n", 
+			ENTRIES, memory / ENTRIES, journaled / ENTRIES);
+		System.out.format("registry store: journal replay %d ms, snapshot %d ms, snapshot recovery %d ms%n", 
+			replay / 1000000, snapshot / 1000000, load / 1000000);
+	}
+	
+	private static Registry recover(Path dir, int keyLength, int valueLength) throws IOException {
+		var registry = new Registry(keyLength, valueLength, 16);
+		var store = new RegistryStore(dir, registry);
+		store.recover();
+		store.close();
+		return registry;
+	}
+	
+	private static byte[] key(byte[] b, int i) {
+		b[0] = (byte)(i >> 24);
+		b[1] = (byte)(i >> 16);
+		b[2] = (byte)(i >> 8);
+		b[3] = (byte)i;
+		return b;
+	}
+}
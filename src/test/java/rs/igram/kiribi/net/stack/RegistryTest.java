@@ -0,0 +1,137 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.stack;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.net.Address;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class RegistryTest {
+	
+	@Test
+	public void testEncoding() throws Exception {
+		var b = new byte[Registry.SOCKET_ADDRESS_LENGTH + 2];
+		var ipv4 = new InetSocketAddress(InetAddress.getByName("192.168.1.7"), 65535);
+		Registry.encode(ipv4, b, 2);
+		assertEquals(ipv4, Registry.decode(b, 2));
+		
+		var ipv6 = new InetSocketAddress(InetAddress.getByName("fe80::1"), 7732);
+		Registry.encode(ipv6, b, 0);
+		assertEquals(ipv6, Registry.decode(b, 0));
+	}
+	
+	@Test
+	public void testRegistry() throws Exception {
+		var registry = new Registry();
+		var model = new HashMap<Address, InetSocketAddress>();
+		var random = new Random(7);
+		var addresses = new Address[20000];
+		for(int i = 0; i < addresses.length; i++) {
+			var b = new byte[20];
+			random.nextBytes(b);
+			addresses[i] = new Address(b);
+			var socketAddress = new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, (byte)(i >> 8), (byte)i}), i);
+			registry.put(addresses[i], socketAddress);
+			model.put(addresses[i], socketAddress);
+		}
+		// remove and re-add so the tables fill with deleted slots
+		for(int n = 0; n < 5; n++) {
+			for(int i = n; i < addresses.length; i += 3) {
+				assertEquals(model.remove(addresses[i]) != null, registry.remove(addresses[i]));
+				assertFalse(registry.remove(addresses[i]));
+			}
+			for(int i = n; i < addresses.length; i += 6) {
+				var socketAddress = new InetSocketAddress(InetAddress.getByName("::1"), n);
+				registry.put(addresses[i], socketAddress);
+				model.put(addresses[i], socketAddress);
+			}
+			assertEquals(model.size(), registry.size());
+			for(var address : addresses) assertEquals(model.get(address), registry.get(address));
+		}
+		// deleted slots are reclaimed rather than growing the tables
+		var slotLength = 1 + Registry.ADDRESS_LENGTH + Registry.SOCKET_ADDRESS_LENGTH;
+		assertTrue(registry.memory() <= (8L * registry.size() + 16 * 128) * slotLength);
+	}
+	
+	@Test
+	public void testRaw() throws Exception {
+		var registry = new Registry(4, 2, 4);
+		var key = new byte[]{9, 1, 2, 3, 4};
+		var value = new byte[]{5, 6};
+		var dst = new byte[3];
+		assertFalse(registry.get(key, 1, dst, 1));
+		assertTrue(registry.put(key, 1, value, 0));
+		assertFalse(registry.put(key, 1, value, 0));
+		assertTrue(registry.get(key, 1, dst, 1));
+		assertArrayEquals(new byte[]{0, 5, 6}, dst);
+		
+		// conditional remove only removes the matching value
+		assertFalse(registry.remove(key, 1, new byte[]{5, 7}, 0));
+		assertTrue(registry.remove(key, 1, value, 0));
+		assertEquals(0, registry.size());
+	}
+	
+	@Test
+	public void testConcurrency() throws Exception {
+		var registry = new Registry(4, 4, 16);
+		var writer = new Thread(() -> {
+			var b = new byte[4];
+			for(int i = 0; i < 200000; i++) {
+				put(b, i % 50000);
+				registry.put(b, 0, b, 0);
+				if(i % 3 == 0) registry.remove(b, 0);
+			}
+		});
+		writer.start();
+		// a reader racing the writer and resizes only sees values written for the key
+		var key = new byte[4];
+		var value = new byte[4];
+		while(writer.isAlive()) {
+			for(int i = 0; i < 50000; i += 7) {
+				put(key, i);
+				if(registry.get(key, 0, value, 0)) assertArrayEquals(key, value);
+			}
+		}
+		writer.join();
+	}
+	
+	private static void put(byte[] b, int i) {
+		b[0] = (byte)(i >> 24);
+		b[1] = (byte)(i >> 16);
+		b[2] = (byte)(i >> 8);
+		b[3] = (byte)i;
+	}
+}
@@ -0,0 +1,76 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.net.stack;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import rs.igram.kiribi.net.NetworkExecutor;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class TimingWheelTest {
+	
+	@Test
+	public void testExpiry() throws IOException, InterruptedException {
+		Map<String,Long> expired = new ConcurrentHashMap<>();
+		var wheel = new TimingWheel<String>(new NetworkExecutor(), 10, 16, k -> expired.put(k, System.currentTimeMillis()));
+		wheel.start();
+		
+		var start = System.currentTimeMillis();
+		// beyond one revolution
+		wheel.schedule("long", 400);
+		wheel.schedule("short", 50);
+		var touched = wheel.schedule("touched", 50);
+		var cancelled = wheel.schedule("cancelled", 50);
+		var shortened = wheel.schedule("shortened", 10_000);
+		cancelled.cancel();
+		shortened.touch(100);
+		assertEquals(5, wheel.size());
+		
+		TimeUnit.MILLISECONDS.sleep(30);
+		touched.touch(200);
+		
+		TimeUnit.MILLISECONDS.sleep(600);
+		wheel.stop();
+		
+		assertTrue(expired.get("short") - start >= 50);
+		assertTrue(expired.get("shortened") - start >= 100);
+		assertTrue(expired.get("shortened") - start < 10_000);
+		assertTrue(expired.get("touched") - start >= 230);
+		assertTrue(expired.get("long") - start >= 400);
+		assertFalse(expired.containsKey("cancelled"));
+		assertEquals(0, wheel.size());
+	}
+}
@@ -0,0 +1,215 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package rs.igram.kiribi.net.stack.lookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import rs.igram.kiribi.crypto.KeyPairGenerator;
+import rs.igram.kiribi.io.EncodableBytes;
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.io.VarOutputStream;
+import rs.igram.kiribi.net.Address;
+import rs.igram.kiribi.net.TCPEndpointFactory;
+import rs.igram.kiribi.net.lookup.LookupServer;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class LookupTest {
+	
+	@Test
+	public void testPipelining() throws IOException, InterruptedException, Exception {
+		var lookupAddress = local(6760);
+		var server = new LookupServer();
+		server.start(lookupAddress);
+		
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var socketAddress = local(6761);
+		var lookup = new Lookup(address, socketAddress, lookupAddress);
+		lookup.register();
+		
+		// concurrent lookups share the connection opened by register
+		var handshakes = TCPEndpointFactory.handshakePool().completed();
+		var futures = new ArrayList<CompletableFuture<InetSocketAddress>>();
+		for(int i = 0; i < 200; i++) {
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return lookup.lookup(address);
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		for(var f : futures) assertEquals(socketAddress, f.get(10, TimeUnit.SECONDS));
+		assertEquals(handshakes, TCPEndpointFactory.handshakePool().completed());
+		
+		lookup.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testInFlight() throws IOException, InterruptedException, Exception {
+		var inFlight = 8;
+		var socketAddress = local(6808);
+		// answers only once all the requests arrived, last first
+		var server = TCPEndpointFactory.server(local(6807));
+		server.accept(endpoint -> {
+			try {
+				var ids = new ArrayList<Long>();
+				while(ids.size() < inFlight) {
+					var in = new VarInputStream(endpoint.read(EncodableBytes::new).bytes());
+					assertEquals(LookupProtocol.PIPELINED, in.readByte());
+					ids.add(in.readLong());
+				}
+				for(int i = ids.size() - 1; i >= 0; i--) {
+					var out = new VarOutputStream();
+					out.writeLong(ids.get(i));
+					out.write(LookupProtocol.ACK);
+					out.writeAddress(socketAddress);
+					endpoint.write(new EncodableBytes(out.toByteArray()));
+				}
+			} catch(IOException e) {
+				// closed
+			}
+		});
+		
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var lookup = new Lookup(address, socketAddress, local(6807));
+		var futures = new ArrayList<CompletableFuture<InetSocketAddress>>();
+		for(int i = 0; i < inFlight; i++) {
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return lookup.lookup(address);
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		// each answer reaches its request although they arrive in reverse
+		for(var f : futures) assertEquals(socketAddress, f.get(10, TimeUnit.SECONDS));
+		
+		lookup.close();
+		server.close();
+	}
+	
+	@Test
+	@EnabledIfSystemProperty(named = "kiribi.benchmark", matches = "true")
+	public void testPipeliningBenchmark() throws IOException, InterruptedException, Exception {
+		var lookupAddress = local(6809);
+		var server = new LookupServer();
+		server.start(lookupAddress);
+		
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var socketAddress = local(6810);
+		var lookup = new Lookup(address, socketAddress, lookupAddress);
+		lookup.register();
+		
+		// one lookup per connection as before
+		var rounds = 20;
+		var start = System.nanoTime();
+		for(int i = 0; i < rounds; i++) {
+			var l = new Lookup(address, socketAddress, lookupAddress);
+			l.lookup(address);
+			l.close();
+		}
+		var single = (System.nanoTime() - start) / rounds / 1000;
+		start = System.nanoTime();
+		for(int i = 0; i < 10 * rounds; i++) lookup.lookup(address);
+		var pipelined = (System.nanoTime() - start) / (10 * rounds) / 1000;
+		System.out.println("Lookup: " + single + " us per connection, " + pipelined + " us pipelined");
+		
+		lookup.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testLookupMany() throws IOException, InterruptedException, Exception {
+		var lookupAddress = local(6769);
+		var server = new LookupServer();
+		server.start(lookupAddress);
+		
+		var registered = new LinkedHashMap<Address,InetSocketAddress>();
+		for(int i = 0; i < 3; i++) {
+			var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+			var l = new Lookup(address, local(6770 + i), lookupAddress);
+			l.register();
+			l.close();
+			registered.put(address, local(6770 + i));
+		}
+		
+		// more than one batch with the registered addresses in the last
+		var addresses = new ArrayList<Address>();
+		for(int i = 0; i < LookupProtocol.MAX_BATCH + 10; i++) addresses.add(new Address(KeyPairGenerator.generateKeyPair().getPublic()));
+		addresses.addAll(registered.keySet());
+		
+		var lookup = new Lookup(addresses.get(0), local(6773), lookupAddress);
+		var result = lookup.lookupAll(addresses);
+		assertEquals(addresses, new ArrayList<>(result.keySet()));
+		for(var address : addresses) assertEquals(registered.get(address), result.get(address));
+		
+		lookup.close();
+		server.stop();
+	}
+	
+	@Test
+	public void testReconnect() throws IOException, InterruptedException, Exception {
+		var lookupAddress = local(6762);
+		var server = new LookupServer();
+		server.start(lookupAddress);
+		
+		var address = new Address(KeyPairGenerator.generateKeyPair().getPublic());
+		var socketAddress = local(6763);
+		var lookup = new Lookup(address, socketAddress, lookupAddress);
+		lookup.register();
+		assertEquals(socketAddress, lookup.lookup(address));
+		
+		// the lookup reconnects to a restarted server
+		server.stop();
+		server = new LookupServer();
+		server.start(lookupAddress);
+		assertNull(lookup.lookup(address));
+		lookup.register();
+		assertEquals(socketAddress, lookup.lookup(address));
+		
+		lookup.close();
+		server.stop();
+	}
+	
+	private static InetSocketAddress local(int port) throws IOException {
+		return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+	}
+}